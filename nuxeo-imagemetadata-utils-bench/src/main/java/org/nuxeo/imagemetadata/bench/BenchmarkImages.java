@@ -0,0 +1,102 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.imagemetadata.bench;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * The images used by the benchmarks:
+ * <ul>
+ * <li>The images of the unit tests of the plug-in (a.png, a.gif, a.tif,
+ * a.jpg, with-xmp.jpg), found in the directory given by the
+ * <code>imagemetadata.bench.images</code> system property (default
+ * <code>../nuxeo-imagemetadata-utils-plugin/src/test/resources/images</code>)</li>
+ * <li>Large files, generated once in the temp. directory: large.jpg and
+ * large.png (6000x4000, random pixels so they don't compress well)</li>
+ * </ul>
+ *
+ * @since 7.1
+ */
+public class BenchmarkImages {
+
+    public static final String IMAGES_DIR_PROP = "imagemetadata.bench.images";
+
+    public static final String DEFAULT_IMAGES_DIR = "../nuxeo-imagemetadata-utils-plugin/src/test/resources/images";
+
+    public static final int LARGE_WIDTH = 6000;
+
+    public static final int LARGE_HEIGHT = 4000;
+
+    protected static final String[] GENERATED = { "large.jpg", "large.png" };
+
+    /**
+     * @return the full path of the image
+     * @throws IOException
+     */
+    public static synchronized String getImage(String inName)
+            throws IOException {
+
+        for (String generated : GENERATED) {
+            if (generated.equals(inName)) {
+                return getGeneratedImage(inName).getAbsolutePath();
+            }
+        }
+
+        File f = new File(System.getProperty(IMAGES_DIR_PROP,
+                DEFAULT_IMAGES_DIR), inName);
+        if (!f.isFile()) {
+            throw new IOException(f.getAbsolutePath() + " not found. Set -D"
+                    + IMAGES_DIR_PROP + " to the directory of the images");
+        }
+        return f.getAbsolutePath();
+    }
+
+    protected static File getGeneratedImage(String inName) throws IOException {
+
+        File dir = new File(System.getProperty("java.io.tmpdir"),
+                "imagemetadata-bench");
+        File f = new File(dir, inName);
+        if (f.isFile()) {
+            return f;
+        }
+
+        dir.mkdirs();
+        BufferedImage image = new BufferedImage(LARGE_WIDTH, LARGE_HEIGHT,
+                BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(42);
+        for (int y = 0; y < LARGE_HEIGHT; y++) {
+            for (int x = 0; x < LARGE_WIDTH; x++) {
+                image.setRGB(x, y, random.nextInt(0xFFFFFF));
+            }
+        }
+
+        String format = inName.substring(inName.lastIndexOf('.') + 1);
+        File tmp = new File(dir, inName + ".tmp");
+        if (!ImageIO.write(image, format, tmp)) {
+            throw new IOException("No writer for " + format);
+        }
+        if (!tmp.renameTo(f)) {
+            throw new IOException("Cannot rename " + tmp);
+        }
+        return f;
+    }
+}
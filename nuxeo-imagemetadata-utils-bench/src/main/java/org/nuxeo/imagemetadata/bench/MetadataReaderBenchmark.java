@@ -0,0 +1,130 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.imagemetadata.bench;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.im4java.core.InfoException;
+import org.nuxeo.imagemetadata.ExifToolProcessPool;
+import org.nuxeo.imagemetadata.ImageMetadataConstants;
+import org.nuxeo.imagemetadata.ImageMetadataReader;
+import org.nuxeo.imagemetadata.ImageMetadataReader.WHICH_TOOL;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of each backend of {@link ImageMetadataReader}, per image.
+ * <p>
+ * A new reader is used for each call, as the operations do, so nothing
+ * cached in a reader is reused. The readers are built on a path: the result
+ * cache (which needs the digest of a blob) is not involved.
+ *
+ * @since 7.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.AverageTime, Mode.Throughput })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetadataReaderBenchmark {
+
+    @Param({ "a.png", "a.gif", "a.tif", "a.jpg", "with-xmp.jpg", "large.jpg",
+            "large.png" })
+    public String image;
+
+    protected String path;
+
+    protected static final String[] EXIFTOOL_KEYS = { "ImageWidth",
+            "ImageHeight", "XResolution", "YResolution", "ResolutionUnit" };
+
+    @Setup
+    public void setup() throws IOException {
+        path = BenchmarkImages.getImage(image);
+    }
+
+    @TearDown
+    public void tearDown() {
+        ExifToolProcessPool.shutdownInstance();
+    }
+
+    /*
+     * The default keys, as used by the ExtractMetadataInDocument operation
+     * when no properties are given
+     */
+    @Benchmark
+    public HashMap<String, String> defaultKeysImageMagick() {
+        return new ImageMetadataReader(path).getMetadata(
+                ImageMetadataConstants.DEFAULT_KEYS, WHICH_TOOL.IMAGEMAGICK);
+    }
+
+    @Benchmark
+    public HashMap<String, String> defaultKeysGraphicsMagick() {
+        return new ImageMetadataReader(path).getMetadata(
+                ImageMetadataConstants.DEFAULT_KEYS,
+                WHICH_TOOL.GRAPHICSMAGICK);
+    }
+
+    /*
+     * Format is not read from the header of the file: ImageMagick is always
+     * called
+     */
+    @Benchmark
+    public HashMap<String, String> formatImageMagick() {
+        String[] keys = { ImageMetadataConstants.KEYS.FORMAT };
+        return new ImageMetadataReader(path).getMetadata(keys,
+                WHICH_TOOL.IMAGEMAGICK);
+    }
+
+    @Benchmark
+    public HashMap<String, String> exifTool() {
+        return new ImageMetadataReader(path).getMetadata(EXIFTOOL_KEYS,
+                WHICH_TOOL.EXIFTOOL);
+    }
+
+    @Benchmark
+    public HashMap<String, String> getMetadataWithExifTool() {
+        return new ImageMetadataReader(path).getMetadataWithExifTool(EXIFTOOL_KEYS);
+    }
+
+    @Benchmark
+    public String getXMP() {
+        return new ImageMetadataReader(path).getXMP();
+    }
+
+    @Benchmark
+    public String getXMPWithExifTool() {
+        return new ImageMetadataReader(path).getXMPWithExifTool();
+    }
+
+    @Benchmark
+    public String getAllMetadata() throws InfoException {
+        return new ImageMetadataReader(path).getAllMetadata();
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.imagemetadata.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.imagemetadata.ImageMetadataConstants.RESOLUTION_UNITS;
+import org.nuxeo.imagemetadata.XYResolutionDPI;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Conversion of the resolution returned by ImageMagick to DPI, done for every
+ * document.
+ *
+ * @since 7.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.AverageTime, Mode.Throughput })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XYResolutionDPIBenchmark {
+
+    @Param({ "72x72", "37.79x37.79", "300.5x299.5", "" })
+    public String resolution;
+
+    @Param({ RESOLUTION_UNITS.PIXELS_PER_INCH,
+            RESOLUTION_UNITS.PIXELS_PER_CENTIMETER, RESOLUTION_UNITS.UNDEFINED })
+    public String units;
+
+    @Benchmark
+    public int fromString() {
+        XYResolutionDPI dpi = new XYResolutionDPI(resolution, units);
+        return dpi.getX() + dpi.getY();
+    }
+
+    @Benchmark
+    public int fromValues() {
+        XYResolutionDPI dpi = new XYResolutionDPI(37.79, 37.79, units);
+        return dpi.getX() + dpi.getY();
+    }
+}
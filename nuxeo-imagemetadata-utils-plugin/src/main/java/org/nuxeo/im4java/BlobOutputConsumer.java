@@ -0,0 +1,93 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.im4java;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+import org.im4java.process.OutputConsumer;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Copies the output of a tool to a temp file, and returns it as a blob. The
+ * output is never loaded in memory (for an XMP packet of several MB for
+ * example).
+ *
+ * @since 7.1
+ */
+public class BlobOutputConsumer implements OutputConsumer {
+
+    protected static final int BUFFER_SIZE = 8192;
+
+    protected String mimeType;
+
+    protected File file = null;
+
+    protected Blob blob = null;
+
+    protected long length = 0;
+
+    /**
+     * @param inMimeType the mime type of the blob. Can be null
+     */
+    public BlobOutputConsumer(String inMimeType) {
+        mimeType = inMimeType;
+    }
+
+    @Override
+    public void consumeOutput(InputStream inStream) throws IOException {
+
+        if (file == null) {
+            file = File.createTempFile("IMDR-out-", "");
+            // Deleted when the blob is garbage collected, not the consumer
+            blob = new FileBlob(file, mimeType);
+            Framework.trackFile(file, blob);
+        }
+
+        length = 0;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (OutputStream out = new BufferedOutputStream(
+                Files.newOutputStream(file.toPath()))) {
+            int count;
+            while ((count = inStream.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+                length += count;
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes written by the tool
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return the output as a blob, null if there was no output at all
+     */
+    public Blob getBlob() {
+
+        return length == 0 ? null : blob;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.im4java;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of concurrent calls to an external tool, so a burst of
+ * extractions (bulk import, ...) does not start hundreds of processes which
+ * slow each other down.
+ * <p>
+ * The calls wait for a permit in a fair (FIFO) queue, at most
+ * <code>imagemetadata.bulkhead.maxWait</code> seconds (default 60, 0 to fail
+ * immediately). A {@link ToolSaturatedException} is thrown when no permit
+ * became available in time.
+ * <p>
+ * The number of permits is set for each tool with
+ * <code>imagemetadata.bulkhead.{tool}</code> (<code>exiftool</code>,
+ * <code>imagemagick</code>, <code>graphicsmagick</code>). Default value is the
+ * number of processors. 0 means no limit.
+ *
+ * @since 7.1
+ */
+public class Bulkhead {
+
+    public static final String PROP_PREFIX = "imagemetadata.bulkhead.";
+
+    public static final String MAX_WAIT_PROP = PROP_PREFIX + "maxWait";
+
+    protected static final ConcurrentHashMap<String, Bulkhead> bulkheads = new ConcurrentHashMap<String, Bulkhead>();
+
+    protected final String tool;
+
+    protected final int permits;
+
+    protected final long maxWaitMs;
+
+    // null when there is no limit
+    protected final Semaphore semaphore;
+
+    protected final AtomicLong acquired = new AtomicLong(0);
+
+    protected final AtomicLong rejected = new AtomicLong(0);
+
+    // Also counted when there is no limit
+    protected final AtomicInteger running = new AtomicInteger(0);
+
+    protected final AtomicInteger peakRunning = new AtomicInteger(0);
+
+    protected final AtomicLong totalWaitNanos = new AtomicLong(0);
+
+    protected volatile long maxWaitNanos = 0;
+
+    public Bulkhead(String inTool, int inPermits, long inMaxWaitMs) {
+        tool = inTool;
+        permits = inPermits;
+        maxWaitMs = inMaxWaitMs;
+        semaphore = inPermits > 0 ? new Semaphore(inPermits, true) : null;
+    }
+
+    /**
+     * @param inTool "exiftool", "imagemagick", "graphicsmagick"
+     * @return the bulkhead of the tool, created with the nuxeo.conf
+     *         configuration the first time
+     */
+    public static Bulkhead get(String inTool) {
+
+        Bulkhead bulkhead = bulkheads.get(inTool);
+        if (bulkhead == null) {
+            bulkhead = new Bulkhead(inTool,
+                    (int) TimedCommand.getLongProperty(PROP_PREFIX + inTool,
+                            Runtime.getRuntime().availableProcessors()),
+                    TimedCommand.getLongProperty(MAX_WAIT_PROP, 60) * 1000);
+            Bulkhead existing = bulkheads.putIfAbsent(inTool, bulkhead);
+            if (existing != null) {
+                bulkhead = existing;
+            } else {
+                ToolMetrics.registerBulkheadGauges(inTool);
+            }
+        }
+        return bulkhead;
+    }
+
+    /**
+     * Forgets all the bulkheads (they are created again with the current
+     * configuration)
+     */
+    public static void resetAll() {
+        bulkheads.clear();
+    }
+
+    /**
+     * Waits for a permit. Each successful call must be followed by a call to
+     * {@link #release()}
+     *
+     * @throws ToolSaturatedException
+     * @throws InterruptedException
+     */
+    public void acquire() throws ToolSaturatedException, InterruptedException {
+
+        if (semaphore == null) {
+            acquired.incrementAndGet();
+            recordRunning();
+            return;
+        }
+
+        long start = System.nanoTime();
+        // (The untimed tryAcquire() would not respect the queue)
+        boolean ok = semaphore.tryAcquire(maxWaitMs, TimeUnit.MILLISECONDS);
+        long waited = System.nanoTime() - start;
+        ToolMetrics.recordBulkheadWait(tool, waited);
+        totalWaitNanos.addAndGet(waited);
+        if (waited > maxWaitNanos) {
+            maxWaitNanos = waited;
+        }
+        if (!ok) {
+            rejected.incrementAndGet();
+            throw new ToolSaturatedException(tool, waited / 1000000);
+        }
+        acquired.incrementAndGet();
+        recordRunning();
+    }
+
+    protected void recordRunning() {
+        int now = running.incrementAndGet();
+        int peak = peakRunning.get();
+        while (now > peak && !peakRunning.compareAndSet(peak, now)) {
+            peak = peakRunning.get();
+        }
+    }
+
+    public void release() {
+        running.decrementAndGet();
+        if (semaphore != null) {
+            semaphore.release();
+        }
+    }
+
+    /**
+     * @return false if a call would have to wait for a permit
+     */
+    public boolean hasAvailablePermit() {
+        return semaphore == null
+                || (semaphore.availablePermits() > 0 && !semaphore.hasQueuedThreads());
+    }
+
+    public String getTool() {
+        return tool;
+    }
+
+    /**
+     * @return the number of permits, 0 if there is no limit
+     */
+    public int getPermits() {
+        return permits;
+    }
+
+    /**
+     * @return how long a call can wait for a permit, in ms.
+     *         (<code>imagemetadata.bulkhead.maxWait</code>)
+     */
+    public long getWaitLimitMs() {
+        return maxWaitMs;
+    }
+
+    /**
+     * @return the number of calls currently running
+     */
+    public int getActiveCount() {
+        return semaphore == null ? 0 : permits - semaphore.availablePermits();
+    }
+
+    /**
+     * @return the highest number of calls which were running at the same
+     *         time
+     */
+    public int getPeakActiveCount() {
+        return peakRunning.get();
+    }
+
+    /**
+     * @return the (estimated) number of calls waiting for a permit
+     */
+    public int getQueueLength() {
+        return semaphore == null ? 0 : semaphore.getQueueLength();
+    }
+
+    /**
+     * @return the number of calls which got a permit
+     */
+    public long getAcquiredCount() {
+        return acquired.get();
+    }
+
+    /**
+     * @return the number of calls rejected because the tool was saturated
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the average time spent waiting for a permit, in ms.
+     */
+    public double getAverageWaitMs() {
+        long count = acquired.get() + rejected.get();
+        return count == 0 ? 0 : totalWaitNanos.get() / 1000000.0 / count;
+    }
+
+    /**
+     * @return the longest time spent waiting for a permit, in ms.
+     */
+    public double getMaxWaitMs() {
+        return maxWaitNanos / 1000000.0;
+    }
+}
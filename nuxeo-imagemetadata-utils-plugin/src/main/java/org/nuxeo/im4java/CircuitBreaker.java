@@ -0,0 +1,227 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.im4java;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * One breaker per external tool. When too many of the recent calls to a tool
+ * failed (timeout, crash, tool not found), the breaker opens: the next calls
+ * fail immediately with a {@link ToolUnavailableException} instead of piling
+ * up blocked threads. After a while, one call is let through (half-open): if
+ * it succeeds the breaker closes, otherwise it opens again.
+ * <p>
+ * A tool which runs and rejects the file (unsupported or corrupted image) is
+ * not a failure: the tool is working.
+ * <p>
+ * Configured with the following properties (nuxeo.conf):
+ * <ul>
+ * <li><code>imagemetadata.breaker.window</code>: number of recent calls
+ * considered (default 20). 0 disables the breakers</li>
+ * <li><code>imagemetadata.breaker.minCalls</code>: the breaker does not open
+ * before this number of calls in the window (default 10)</li>
+ * <li><code>imagemetadata.breaker.failureRatio</code>: percentage of failed
+ * calls in the window which opens the breaker (default 50)</li>
+ * <li><code>imagemetadata.breaker.openDuration</code>: seconds before a call
+ * is let through again (default 30)</li>
+ * </ul>
+ * Callers must call {@link #acquire()} before running the tool, then exactly
+ * one of {@link #recordSuccess()}, {@link #recordFailure()} or
+ * {@link #release()}.
+ *
+ * @since 7.1
+ */
+public class CircuitBreaker {
+
+    private static final Log log = LogFactory.getLog(CircuitBreaker.class);
+
+    public enum STATE {
+        CLOSED, OPEN, HALF_OPEN
+    };
+
+    public static final String PROP_PREFIX = "imagemetadata.breaker.";
+
+    protected static final ConcurrentHashMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+
+    protected final String tool;
+
+    protected final int minCalls;
+
+    protected final int failureRatio;
+
+    protected final long openDurationMs;
+
+    // true for a failed call, used as a ring buffer
+    protected final boolean[] window;
+
+    protected int position = 0;
+
+    protected int callCount = 0;
+
+    protected int failureCount = 0;
+
+    protected STATE state = STATE.CLOSED;
+
+    protected long openedAt = 0;
+
+    protected boolean probing = false;
+
+    public CircuitBreaker(String inTool, int inWindow, int inMinCalls,
+            int inFailureRatio, long inOpenDurationMs) {
+        tool = inTool;
+        window = new boolean[Math.max(inWindow, 0)];
+        minCalls = Math.max(inMinCalls, 1);
+        failureRatio = inFailureRatio;
+        openDurationMs = inOpenDurationMs;
+    }
+
+    /**
+     * @param inTool "exiftool", "imagemagick", "graphicsmagick"
+     * @return the breaker of the tool, created with the nuxeo.conf
+     *         configuration the first time
+     */
+    public static CircuitBreaker get(String inTool) {
+
+        CircuitBreaker breaker = breakers.get(inTool);
+        if (breaker == null) {
+            breaker = new CircuitBreaker(inTool,
+                    (int) TimedCommand.getLongProperty(PROP_PREFIX + "window",
+                            20), (int) TimedCommand.getLongProperty(
+                            PROP_PREFIX + "minCalls", 10),
+                    (int) TimedCommand.getLongProperty(PROP_PREFIX
+                            + "failureRatio", 50),
+                    TimedCommand.getLongProperty(PROP_PREFIX + "openDuration",
+                            30) * 1000);
+            CircuitBreaker existing = breakers.putIfAbsent(inTool, breaker);
+            if (existing != null) {
+                breaker = existing;
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * Forgets all the breakers (they are created again with the current
+     * configuration)
+     */
+    public static void resetAll() {
+        breakers.clear();
+    }
+
+    /**
+     * @throws ToolUnavailableException if the breaker is open, or half-open
+     *             and another call is already probing the tool
+     */
+    public synchronized void acquire() throws ToolUnavailableException {
+
+        if (window.length == 0) {
+            return;
+        }
+        if (state == STATE.OPEN) {
+            if (System.currentTimeMillis() - openedAt < openDurationMs) {
+                throw new ToolUnavailableException(tool);
+            }
+            state = STATE.HALF_OPEN;
+            probing = false;
+        }
+        if (state == STATE.HALF_OPEN) {
+            if (probing) {
+                throw new ToolUnavailableException(tool);
+            }
+            probing = true;
+        }
+    }
+
+    public synchronized void recordSuccess() {
+
+        if (window.length == 0) {
+            return;
+        }
+        if (state == STATE.HALF_OPEN) {
+            log.info(tool + " is working again");
+            state = STATE.CLOSED;
+            probing = false;
+            clearWindow();
+            return;
+        }
+        add(false);
+    }
+
+    public synchronized void recordFailure() {
+
+        if (window.length == 0) {
+            return;
+        }
+        if (state == STATE.HALF_OPEN) {
+            open();
+            return;
+        }
+        add(true);
+        if (state == STATE.CLOSED && callCount >= minCalls
+                && failureCount * 100 >= failureRatio * callCount) {
+            open();
+        }
+    }
+
+    /**
+     * The call was interrupted before the tool answered: it says nothing
+     * about the tool
+     */
+    public synchronized void release() {
+        if (state == STATE.HALF_OPEN) {
+            probing = false;
+        }
+    }
+
+    public synchronized STATE getState() {
+        return state;
+    }
+
+    protected void add(boolean inFailed) {
+
+        if (callCount == window.length) {
+            if (window[position]) {
+                failureCount -= 1;
+            }
+        } else {
+            callCount += 1;
+        }
+        window[position] = inFailed;
+        if (inFailed) {
+            failureCount += 1;
+        }
+        position = (position + 1) % window.length;
+    }
+
+    protected void open() {
+        log.warn(tool + " failed too often, not called for the next "
+                + openDurationMs + " ms.");
+        state = STATE.OPEN;
+        openedAt = System.currentTimeMillis();
+        probing = false;
+        clearWindow();
+    }
+
+    protected void clearWindow() {
+        position = 0;
+        callCount = 0;
+        failureCount = 0;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.im4java;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.LinkedList;
+
+import org.im4java.core.IMOperation;
+import org.im4java.core.IdentifyCmd;
+import org.im4java.core.InfoException;
+import org.im4java.process.OutputConsumer;
+import org.im4java.process.Pipe;
+
+/**
+ * Same as the <code>Info</code> class of im4java (parses the output of
+ * <code>identify -verbose</code>, same property names), but the tool is
+ * chosen for each instance: <code>Info</code> reads the
+ * <code>im4java.useGM</code> system property, which is global to the JVM.
+ * <p>
+ * So threads can run ImageMagick and GraphicsMagick at the same time, without
+ * locking.
+ *
+ * @since 7.1
+ */
+public class IdentifyInfo {
+
+    protected Hashtable<String, String> attributes = null;
+
+    protected LinkedList<Hashtable<String, String>> attributesList = new LinkedList<Hashtable<String, String>>();
+
+    protected int oldIndent = 0;
+
+    protected String prefix = "";
+
+    /**
+     * @param inImage the path to the image, or "-" (or "format:-") when
+     *            inStream is not null. Can be followed by a frame selector
+     *            ("file.tif[0]", "gif:-[0]")
+     * @param inStream the image, piped to identify. Can be null
+     * @param inUseGM true to run <code>gm identify</code>, false to run
+     *            <code>identify</code>
+     * @throws InfoException
+     */
+    public IdentifyInfo(String inImage, InputStream inStream, boolean inUseGM)
+            throws InfoException {
+
+        String piped = inImage.replaceFirst("\\[[0-9,-]+\\]$", "");
+        if (inStream != null && !piped.equals("-") && !piped.endsWith(":-")) {
+            throw new IllegalArgumentException(
+                    "illegal filename for piped input");
+        }
+
+        IMOperation op = new IMOperation();
+        op.verbose();
+        op.addImage(inImage);
+        try {
+            IdentifyCmd identify = new IdentifyCmd(inUseGM);
+            // Parsed while it is read: the lines of a -verbose output (the
+            // histogram can be huge) are not kept
+            identify.setOutputConsumer(new OutputConsumer() {
+                @Override
+                public void consumeOutput(InputStream inOutput)
+                        throws IOException {
+                    parse(new BufferedReader(new InputStreamReader(inOutput)));
+                }
+            });
+            if (inStream != null) {
+                identify.setInputProvider(new Pipe(inStream, null));
+            }
+            TimedCommand.run(identify, inUseGM ? TimedCommand.GRAPHICSMAGICK
+                    : TimedCommand.IMAGEMAGICK, op);
+
+        } catch (ToolTimeoutException | ToolUnavailableException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new InfoException(e);
+        }
+    }
+
+    /*
+     * Lines without ":" are continuations of the previous value
+     */
+    protected void parse(BufferedReader inLines) throws IOException {
+
+        StringBuilder value = new StringBuilder(80);
+        String line;
+        while ((line = inLines.readLine()) != null) {
+            if (line.length() == 0) {
+                value.append("\n\n");
+            } else if (line.indexOf(':') == -1) {
+                value.append("\n").append(line);
+            } else if (value.length() > 0) {
+                parseLine(value.toString());
+                value.setLength(0);
+                value.append(line);
+            } else {
+                value.append(line);
+            }
+        }
+        if (value.length() > 0) {
+            parseLine(value.toString());
+        }
+        if (attributes == null) {
+            attributes = new Hashtable<String, String>();
+        }
+        addBaseInfo();
+        attributesList.add(attributes);
+    }
+
+    /*
+     * The nesting level is given by the indentation (2 spaces): nested keys
+     * are prefixed with their parents ("Channel depth:red")
+     */
+    protected void parseLine(String inLine) {
+
+        if (inLine.startsWith("Image:")) {
+            // New frame
+            if (attributes != null) {
+                addBaseInfo();
+                attributesList.add(attributes);
+            }
+            attributes = new Hashtable<String, String>();
+        }
+
+        String trimmed = inLine.trim();
+        int indent = inLine.indexOf(trimmed) / 2;
+        String[] keyValue = trimmed.split(": ", 2);
+        if (indent < oldIndent) {
+            int pos = prefix.length() - 1;
+            for (int i = 0; i < oldIndent - indent; ++i) {
+                pos = prefix.lastIndexOf(':', pos - 1);
+            }
+            prefix = pos == -1 ? "" : prefix.substring(0, pos + 1);
+        }
+        oldIndent = indent;
+        if (keyValue.length == 1) {
+            prefix = prefix + keyValue[0];
+        } else if (attributes != null) {
+            attributes.put(prefix + keyValue[0], keyValue[1]);
+        }
+    }
+
+    protected void addBaseInfo() {
+
+        String geometry = attributes.get("Geometry");
+        if (geometry != null) {
+            String[] values = geometry.split("x|\\+");
+            attributes.put("Width", values[0]);
+            attributes.put("Height", values[1]);
+        }
+
+        geometry = attributes.get("Page geometry");
+        if (geometry != null) {
+            String[] values = geometry.split("x|\\+");
+            attributes.put("PageWidth", values[0]);
+            attributes.put("PageHeight", values[1]);
+            attributes.put("PageGeometry", geometry);
+        }
+    }
+
+    /**
+     * @return the value for the last frame
+     */
+    public String getProperty(String inName) {
+        return attributes.get(inName);
+    }
+
+    public String getProperty(String inName, int inFrame) {
+        return attributesList.get(inFrame).get(inName);
+    }
+
+    /**
+     * @return the names of the properties of the last frame
+     */
+    public Enumeration<String> getPropertyNames() {
+        return attributes.keys();
+    }
+
+    public int getSceneCount() {
+        return attributesList.size();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.im4java;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import org.im4java.process.OutputConsumer;
+
+/**
+ * Parses the <code>key: value</code> lines of a tool output (exiftool -s, for
+ * example) while they are read, and gives each pair to a {@link Sink}. No
+ * String is built for the whole output.
+ * <p>
+ * The line is split at the first ':', the key and the value are trimmed. The
+ * keys are interned: the same tag names come back for every file, the maps
+ * kept in the cache share them.
+ * Lines with no ':' are ignored (the "N image files read" summary of exiftool
+ * for example), except the <code>======== path</code> lines, written by
+ * exiftool before the values of each file when several files are read: the
+ * sink is told a new block starts.
+ *
+ * @since 7.1
+ */
+public class KeyValueOutputConsumer implements OutputConsumer {
+
+    public static final String BLOCK_HEADER = "======== ";
+
+    /**
+     * Receives the values, in the order of the output
+     */
+    public interface Sink {
+
+        /**
+         * Called for each <code>======== name</code> line
+         */
+        void startBlock(String inName);
+
+        void put(String inKey, String inValue);
+    }
+
+    protected Sink sink;
+
+    public KeyValueOutputConsumer(Sink inSink) {
+        sink = inSink;
+    }
+
+    @Override
+    public void consumeOutput(InputStream inStream) throws IOException {
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                inStream, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith(BLOCK_HEADER)) {
+                sink.startBlock(line.substring(BLOCK_HEADER.length()));
+                continue;
+            }
+            int pos = line.indexOf(':');
+            if (pos > 0) {
+                sink.put(line.substring(0, pos).trim().intern(),
+                        line.substring(pos + 1).trim());
+            }
+        }
+        reader.close();
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.im4java;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import org.im4java.core.IMOperation;
+import org.im4java.core.IdentifyCmd;
+import org.im4java.core.InfoException;
+import org.im4java.process.ArrayListOutputConsumer;
+import org.im4java.process.Pipe;
+
+/**
+ * Runs <code>identify -ping -format</code> (or <code>gm identify</code>) with
+ * the given escapes (<code>%w</code>, <code>%[colorspace]</code>, ...).
+ * <p>
+ * Unlike <code>identify -verbose</code> (see {@link IdentifyInfo}), the
+ * pixels are not read: no statistics, no histogram, so the cost does not
+ * depend on the size of the image.
+ * <p>
+ * As with {@link IdentifyInfo}, the values are the ones of the last frame.
+ *
+ * @since 7.1
+ */
+public class PingInfo {
+
+    // Escapes never return these
+    protected static final String SEPARATOR = "\t";
+
+    protected static final String END_OF_FRAME = "\n";
+
+    protected String[] values;
+
+    /**
+     * @param inImage the path to the image, or "-" when inStream is not null.
+     *            Can be followed by a frame selector ("file.tif[0]")
+     * @param inStream the image, piped to identify. Can be null
+     * @param inUseGM true to run <code>gm identify</code>
+     * @param inEscapes the escapes, one per value
+     * @throws InfoException
+     */
+    public PingInfo(String inImage, InputStream inStream, boolean inUseGM,
+            String[] inEscapes) throws InfoException {
+
+        StringBuilder format = new StringBuilder();
+        for (int i = 0; i < inEscapes.length; i++) {
+            if (i > 0) {
+                format.append(SEPARATOR);
+            }
+            format.append(inEscapes[i]);
+        }
+        format.append(END_OF_FRAME);
+
+        IMOperation op = new IMOperation();
+        op.ping();
+        op.format(format.toString());
+        op.addImage(inImage);
+
+        ArrayListOutputConsumer output = new ArrayListOutputConsumer();
+        try {
+            IdentifyCmd identify = new IdentifyCmd(inUseGM);
+            identify.setOutputConsumer(output);
+            if (inStream != null) {
+                identify.setInputProvider(new Pipe(inStream, null));
+            }
+            TimedCommand.run(identify, inUseGM ? TimedCommand.GRAPHICSMAGICK
+                    : TimedCommand.IMAGEMAGICK, op);
+        } catch (ToolTimeoutException | ToolUnavailableException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new InfoException(e);
+        }
+
+        String lastFrame = null;
+        ArrayList<String> lines = output.getOutput();
+        for (String line : lines) {
+            if (!line.isEmpty()) {
+                lastFrame = line;
+            }
+        }
+        if (lastFrame == null) {
+            throw new InfoException("No output for " + inImage);
+        }
+
+        values = lastFrame.split(SEPARATOR, -1);
+        if (values.length != inEscapes.length) {
+            throw new InfoException("Unexpected output: " + lastFrame);
+        }
+    }
+
+    /**
+     * @param inIndex index of the escape
+     * @return the value, trimmed
+     */
+    public String getValue(int inIndex) {
+        return values[inIndex].trim();
+    }
+}
@@ -26,12 +26,21 @@ import org.im4java.process.OutputConsumer;
 /*
  * Utility class use by exiftool wrappers (mainly), to get the result of a command as
  * a String. im4java already provides an ArrayListOutputConsumer
+ *
+ * The output is appended to a StringBuilder, which is kept (and reused) by
+ * clear(). With keepLineEndings, the output is copied as is (by blocks, no
+ * line splitting), which is what we want for an XML packet for example.
  */
 public class StringOutputConsumer implements OutputConsumer {
-    protected String output = "";
+
+    protected static final int BUFFER_SIZE = 8192;
+
+    protected StringBuilder output = new StringBuilder();
 
     private String charset = null;
 
+    private boolean keepLineEndings = false;
+
     public StringOutputConsumer() {
 
     }
@@ -40,12 +49,33 @@ public class StringOutputConsumer implements OutputConsumer {
         charset = inCharset;
     }
 
+    /**
+     * @param inCharset
+     * @param inKeepLineEndings if true, the output is not split in lines
+     *            (line endings are kept as they are)
+     *
+     * @since 7.1
+     */
+    public StringOutputConsumer(String inCharset, boolean inKeepLineEndings) {
+        charset = inCharset;
+        keepLineEndings = inKeepLineEndings;
+    }
+
     public String getOutput() {
-        return output;
+        return output.toString();
+    }
+
+    /**
+     * @return the length of the output, without building the String
+     *
+     * @since 7.1
+     */
+    public int length() {
+        return output.length();
     }
 
     public void clear() {
-        output = "";
+        output.setLength(0);
     }
 
     @Override
@@ -57,12 +87,23 @@ public class StringOutputConsumer implements OutputConsumer {
         } else {
             isr = new InputStreamReader(inStream, charset);
         }
+
+        if (keepLineEndings) {
+            char[] buffer = new char[BUFFER_SIZE];
+            int count;
+            while ((count = isr.read(buffer)) > 0) {
+                output.append(buffer, 0, count);
+            }
+            isr.close();
+            return;
+        }
+
         BufferedReader reader = new BufferedReader(isr);
         String line;
         do {
             line = reader.readLine();
             if (line != null) {
-                output += line + "\n";
+                output.append(line).append('\n');
             }
         } while (line != null);
 
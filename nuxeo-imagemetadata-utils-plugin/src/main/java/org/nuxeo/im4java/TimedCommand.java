@@ -0,0 +1,305 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.im4java;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.im4java.core.CommandException;
+import org.im4java.core.IM4JavaException;
+import org.im4java.core.ImageCommand;
+import org.im4java.core.Operation;
+import org.im4java.process.ProcessEvent;
+import org.im4java.process.ProcessEventListener;
+import org.im4java.process.ProcessTask;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Runs an im4java command (<code>identify</code>, <code>gm</code>,
+ * <code>exiftool</code>, ...) with a timeout, and through the
+ * {@link CircuitBreaker} and the {@link Bulkhead} of the tool. The calls are
+ * measured, see {@link ToolMetrics}.
+ * <p>
+ * When the timeout expires, the process and all its children are killed
+ * (ImageMagick starts delegates, like <code>gs</code> for PDF and EPS, which
+ * would keep running if only <code>identify</code> was killed) and a
+ * {@link ToolTimeoutException} is thrown.
+ * <p>
+ * The timeouts are set in seconds with the
+ * <code>imagemetadata.timeout.{tool}</code> nuxeo.conf properties:
+ * <code>imagemetadata.timeout.exiftool</code> (default 30),
+ * <code>imagemetadata.timeout.imagemagick</code> and
+ * <code>imagemetadata.timeout.graphicsmagick</code> (default 60). 0 means no
+ * timeout.
+ *
+ * @since 7.1
+ */
+public class TimedCommand {
+
+    private static final Log log = LogFactory.getLog(TimedCommand.class);
+
+    public static final String EXIFTOOL = "exiftool";
+
+    public static final String IMAGEMAGICK = "imagemagick";
+
+    public static final String GRAPHICSMAGICK = "graphicsmagick";
+
+    public static final String TIMEOUT_PROP_PREFIX = "imagemetadata.timeout.";
+
+    protected static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+        protected final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable inRunnable) {
+            Thread t = new Thread(inRunnable, "imagemetadata-tool-"
+                    + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private TimedCommand() {
+    }
+
+    /**
+     * Same as <code>inCommand.run(inOp, inImages)</code>, with the timeout,
+     * the circuit breaker and the bulkhead of inTool
+     *
+     * @param inCommand
+     * @param inTool {@link #EXIFTOOL}, {@link #IMAGEMAGICK} or
+     *            {@link #GRAPHICSMAGICK}
+     * @param inOp
+     * @param inImages
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws IM4JavaException
+     * @throws ToolTimeoutException
+     * @throws ToolUnavailableException
+     * @throws ToolSaturatedException
+     */
+    public static void run(ImageCommand inCommand, final String inTool,
+            Operation inOp, Object... inImages) throws IOException,
+            InterruptedException, IM4JavaException {
+
+        CircuitBreaker breaker = CircuitBreaker.get(inTool);
+        try {
+            breaker.acquire();
+        } catch (ToolUnavailableException e) {
+            ToolMetrics.recordFailure(inTool, ToolMetrics.UNAVAILABLE);
+            throw e;
+        }
+        Bulkhead bulkhead = Bulkhead.get(inTool);
+        try {
+            bulkhead.acquire();
+        } catch (ToolSaturatedException | InterruptedException e) {
+            breaker.release();
+            ToolMetrics.recordFailure(inTool, ToolMetrics.getCause(e));
+            throw e;
+        }
+
+        // null when the call succeeds
+        String failure = ToolMetrics.CRASH;
+        boolean interrupted = false;
+        long start = System.nanoTime();
+        try {
+            final AtomicReference<Process> process = new AtomicReference<Process>();
+            inCommand.addProcessEventListener(new ProcessEventListener() {
+                @Override
+                public void processInitiated(ProcessEvent inEvent) {
+                }
+
+                @Override
+                public void processStarted(ProcessEvent inEvent) {
+                    process.set(inEvent.getProcess());
+                    ToolMetrics.processLaunched(inTool);
+                }
+
+                @Override
+                public void processTerminated(ProcessEvent inEvent) {
+                }
+            });
+
+            ProcessTask task = inCommand.getProcessTask(inOp, inImages);
+            executor.execute(task);
+
+            long timeoutMs = getTimeoutMs(inTool);
+            ProcessEvent event;
+            try {
+                event = timeoutMs > 0 ? task.get(timeoutMs,
+                        TimeUnit.MILLISECONDS) : task.get();
+            } catch (TimeoutException e) {
+                kill(process.get());
+                task.cancel(true);
+                failure = ToolMetrics.TIMEOUT;
+                throw new ToolTimeoutException(inTool, timeoutMs);
+            } catch (InterruptedException e) {
+                kill(process.get());
+                task.cancel(true);
+                interrupted = true;
+                throw e;
+            } catch (ExecutionException e) {
+                throw new CommandException(e.getCause());
+            }
+
+            Exception error = event.getException();
+            if (error == null) {
+                failure = null;
+                return;
+            }
+            // The tool ran and rejected the file: it is working
+            if (error instanceof CommandException
+                    && ((CommandException) error).getReturnCode() > 0) {
+                failure = ToolMetrics.REJECTED;
+            }
+            if (error instanceof IM4JavaException) {
+                throw (IM4JavaException) error;
+            }
+            throw new CommandException(error);
+
+        } finally {
+            bulkhead.release();
+            ToolMetrics.recordWallTime(inTool, System.nanoTime() - start);
+            if (interrupted) {
+                breaker.release();
+            } else if (ToolMetrics.CRASH.equals(failure)
+                    || ToolMetrics.TIMEOUT.equals(failure)) {
+                breaker.recordFailure();
+            } else {
+                breaker.recordSuccess();
+            }
+            if (!interrupted && failure != null) {
+                ToolMetrics.recordFailure(inTool, failure);
+            }
+        }
+    }
+
+    /**
+     * @param inTool
+     * @return the timeout of the tool, in ms. 0 if there is no timeout
+     */
+    public static long getTimeoutMs(String inTool) {
+        return getLongProperty(TIMEOUT_PROP_PREFIX + inTool,
+                EXIFTOOL.equals(inTool) ? 30 : 60) * 1000;
+    }
+
+    protected static long getLongProperty(String inName, long inDefault) {
+        String value = Framework.getProperty(inName);
+        if (value == null || value.trim().isEmpty()) {
+            return inDefault;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid value for " + inName + " (" + value
+                    + "), using " + inDefault);
+            return inDefault;
+        }
+    }
+
+    /**
+     * Kills the process and its children. Best effort: the children are only
+     * found on systems with <code>pgrep</code>
+     *
+     * @param inProcess can be null (not started yet)
+     */
+    public static void kill(Process inProcess) {
+
+        if (inProcess == null) {
+            return;
+        }
+
+        long pid = getPid(inProcess);
+        if (pid > 0) {
+            List<Long> descendants = new ArrayList<Long>();
+            addDescendants(pid, descendants);
+            for (Long child : descendants) {
+                try {
+                    new ProcessBuilder("kill", "-9", child.toString()).start().waitFor();
+                } catch (IOException e) {
+                    break;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        inProcess.destroyForcibly();
+    }
+
+    /*
+     * Process.pid() only exists in Java 9 and later, UNIXProcess has a "pid"
+     * field in Java 8
+     */
+    protected static long getPid(Process inProcess) {
+        try {
+            return ((Number) Process.class.getMethod("pid").invoke(inProcess)).longValue();
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Java 8
+        }
+        try {
+            Field f = inProcess.getClass().getDeclaredField("pid");
+            f.setAccessible(true);
+            return f.getLong(inProcess);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    protected static void addDescendants(long inPid, List<Long> inList) {
+
+        try {
+            Process pgrep = new ProcessBuilder("pgrep", "-P",
+                    String.valueOf(inPid)).redirectErrorStream(true).start();
+            List<Long> children = new ArrayList<Long>();
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(pgrep.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    try {
+                        children.add(Long.valueOf(line.trim()));
+                    } catch (NumberFormatException e) {
+                        // Not a pid
+                    }
+                }
+            }
+            pgrep.waitFor();
+            for (Long child : children) {
+                inList.add(child);
+                addDescendants(child, inList);
+            }
+        } catch (IOException e) {
+            // No pgrep, only the process itself is killed
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.im4java;
+
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+
+/**
+ * Metrics of the calls to the external tools, in the Nuxeo metrics registry
+ * (so they are exposed by the reporters configured in Nuxeo, and in JMX).
+ * <p>
+ * For each tool (<code>exiftool</code>, <code>imagemagick</code>,
+ * <code>graphicsmagick</code>), under <code>nuxeo.imagemetadata.tool.{tool}</code>:
+ * <ul>
+ * <li><code>launches</code>: number of processes started</li>
+ * <li><code>wall</code>: duration of the calls (timer)</li>
+ * <li><code>parse</code>: time spent parsing the output, when it is not done
+ * while the tool runs (timer)</li>
+ * <li><code>failures.{cause}</code>: failed calls, by cause:
+ * <code>timeout</code>, <code>saturated</code>, <code>unavailable</code>,
+ * <code>crash</code> (the tool could not run, or died) and
+ * <code>rejected</code> (the tool could not read the file)</li>
+ * <li><code>bulkhead.wait</code> (timer), <code>bulkhead.active</code> and
+ * <code>bulkhead.queue</code> (gauges): see {@link Bulkhead}</li>
+ * </ul>
+ *
+ * @since 7.1
+ */
+public class ToolMetrics {
+
+    public static final String PREFIX = "nuxeo.imagemetadata.tool";
+
+    public static final String TIMEOUT = "timeout";
+
+    public static final String SATURATED = "saturated";
+
+    public static final String UNAVAILABLE = "unavailable";
+
+    public static final String CRASH = "crash";
+
+    public static final String REJECTED = "rejected";
+
+    protected static final MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+
+    private ToolMetrics() {
+    }
+
+    public static void processLaunched(String inTool) {
+        registry.counter(MetricRegistry.name(PREFIX, inTool, "launches")).inc();
+    }
+
+    public static void recordWallTime(String inTool, long inNanos) {
+        registry.timer(MetricRegistry.name(PREFIX, inTool, "wall")).update(
+                inNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public static void recordParseTime(String inTool, long inNanos) {
+        registry.timer(MetricRegistry.name(PREFIX, inTool, "parse")).update(
+                inNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public static void recordBulkheadWait(String inTool, long inNanos) {
+        registry.timer(MetricRegistry.name(PREFIX, inTool, "bulkhead", "wait")).update(
+                inNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param inTool
+     * @param inCause {@link #TIMEOUT}, {@link #SATURATED}, ...
+     */
+    public static void recordFailure(String inTool, String inCause) {
+        registry.counter(MetricRegistry.name(PREFIX, inTool, "failures", inCause)).inc();
+    }
+
+    /**
+     * Same as recordFailure(String, String), the cause is deduced from the
+     * exception
+     */
+    public static void recordFailure(String inTool, Throwable inError) {
+        recordFailure(inTool, getCause(inError));
+    }
+
+    public static String getCause(Throwable inError) {
+        if (inError instanceof ToolTimeoutException) {
+            return TIMEOUT;
+        }
+        if (inError instanceof ToolSaturatedException) {
+            return SATURATED;
+        }
+        if (inError instanceof ToolUnavailableException) {
+            return UNAVAILABLE;
+        }
+        return CRASH;
+    }
+
+    /*
+     * The gauges read the current bulkhead of the tool, so they survive
+     * Bulkhead.resetAll()
+     */
+    protected static synchronized void registerBulkheadGauges(
+            final String inTool) {
+
+        String active = MetricRegistry.name(PREFIX, inTool, "bulkhead",
+                "active");
+        if (registry.getGauges().containsKey(active)) {
+            return;
+        }
+        registry.register(active, new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return Bulkhead.get(inTool).getActiveCount();
+            }
+        });
+        registry.register(MetricRegistry.name(PREFIX, inTool, "bulkhead",
+                "queue"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return Bulkhead.get(inTool).getQueueLength();
+            }
+        });
+    }
+}
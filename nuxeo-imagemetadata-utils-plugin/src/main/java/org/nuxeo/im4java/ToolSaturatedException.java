@@ -0,0 +1,34 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.im4java;
+
+/**
+ * Thrown without running the tool when no permit of its {@link Bulkhead}
+ * became available in time: too many calls to the tool are already running
+ * or waiting.
+ *
+ * @since 7.1
+ */
+public class ToolSaturatedException extends ToolUnavailableException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ToolSaturatedException(String inTool, long inWaitedMs) {
+        super(inTool, inTool + " is saturated, no call slot after "
+                + inWaitedMs + " ms.");
+    }
+}
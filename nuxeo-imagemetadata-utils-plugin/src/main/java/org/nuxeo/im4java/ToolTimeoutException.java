@@ -0,0 +1,50 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.im4java;
+
+import org.nuxeo.ecm.core.api.ClientException;
+
+/**
+ * Thrown when an external tool (exiftool, identify, gm) did not complete in
+ * the time allowed (see {@link TimedCommand}). The process (and its children)
+ * was killed.
+ *
+ * @since 7.1
+ */
+public class ToolTimeoutException extends ClientException {
+
+    private static final long serialVersionUID = 1L;
+
+    protected final String tool;
+
+    protected final long timeoutMs;
+
+    public ToolTimeoutException(String inTool, long inTimeoutMs) {
+        super(inTool + " did not complete in " + inTimeoutMs
+                + " ms. and was killed");
+        tool = inTool;
+        timeoutMs = inTimeoutMs;
+    }
+
+    public String getTool() {
+        return tool;
+    }
+
+    public long getTimeoutMs() {
+        return timeoutMs;
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.im4java;
+
+import org.nuxeo.ecm.core.api.ClientException;
+
+/**
+ * Thrown without running the tool when its {@link CircuitBreaker} is open:
+ * the tool failed (timeouts, crashes) too often recently.
+ *
+ * @since 7.1
+ */
+public class ToolUnavailableException extends ClientException {
+
+    private static final long serialVersionUID = 1L;
+
+    protected final String tool;
+
+    public ToolUnavailableException(String inTool) {
+        super(inTool + " is temporarily disabled after repeated failures");
+        tool = inTool;
+    }
+
+    protected ToolUnavailableException(String inTool, String inMessage) {
+        super(inMessage);
+        tool = inTool;
+    }
+
+    public String getTool() {
+        return tool;
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.imagemetadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Copies the blobs which are not backed by a file to temporary files, when a
+ * tool needs a file, and deletes the copies as soon as they are released (see
+ * {@link ImageMetadataReader#close()}).
+ * <p>
+ * Configured with the following properties (nuxeo.conf):
+ * <ul>
+ * <li><code>imagemetadata.materialize.dir</code>: the directory of the copies
+ * (a tmpfs for example). Default is the temp. directory of the JVM</li>
+ * <li><code>imagemetadata.materialize.maxBytes</code>: maximum total size of
+ * the copies. A copy which would exceed it fails with an
+ * <code>IOException</code>. Default value is 0 (no limit)</li>
+ * <li><code>imagemetadata.materialize.linger</code>: a released copy is kept
+ * this number of seconds (default 5), so the next operations of a chain
+ * working on the same blob (same digest) reuse it. 0 deletes the copies
+ * immediately</li>
+ * </ul>
+ * The copies still there when the server stops are deleted.
+ *
+ * @since 7.1
+ */
+public class BlobMaterializer {
+
+    private static final Log log = LogFactory.getLog(BlobMaterializer.class);
+
+    public static final String DIR_PROP = "imagemetadata.materialize.dir";
+
+    public static final String MAX_BYTES_PROP = "imagemetadata.materialize.maxBytes";
+
+    public static final String LINGER_PROP = "imagemetadata.materialize.linger";
+
+    public static final int DEFAULT_LINGER = 5;
+
+    protected static BlobMaterializer instance = null;
+
+    // The instance can be created again after shutdownInstance(), the hook is
+    // registered only once
+    protected static boolean shutdownHookAdded = false;
+
+    protected final File dir;
+
+    protected final long maxBytes;
+
+    protected final long lingerMs;
+
+    // The copies which can be shared, by digest
+    protected final HashMap<String, Copy> shared = new HashMap<String, Copy>();
+
+    protected final HashSet<Copy> all = new HashSet<Copy>();
+
+    protected long usedBytes = 0;
+
+    protected final ScheduledExecutorService cleaner = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable inRunnable) {
+            Thread t = new Thread(inRunnable, "BlobMaterializer-cleaner");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * A copy of a blob. Read only, it can be used by several readers.
+     */
+    public static class Copy {
+
+        protected final String key;
+
+        protected final File file;
+
+        protected final long length;
+
+        protected int users = 1;
+
+        protected ScheduledFuture<?> pendingDelete = null;
+
+        protected boolean deleted = false;
+
+        protected Copy(String inKey, File inFile) {
+            key = inKey;
+            file = inFile;
+            length = inFile.length();
+        }
+
+        public String getPath() {
+            return file.getAbsolutePath();
+        }
+
+        public long getLength() {
+            return length;
+        }
+    }
+
+    /**
+     * @param inDir null for the temp. directory of the JVM
+     * @param inMaxBytes 0 for no limit
+     * @param inLingerMs
+     */
+    public BlobMaterializer(File inDir, long inMaxBytes, long inLingerMs) {
+        dir = inDir;
+        maxBytes = inMaxBytes;
+        lingerMs = inLingerMs;
+    }
+
+    public static synchronized BlobMaterializer getInstance() {
+
+        if (instance == null) {
+            String dirPath = Framework.getProperty(DIR_PROP);
+            File dir = null;
+            if (dirPath != null && !dirPath.trim().isEmpty()) {
+                dir = new File(dirPath.trim());
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                    log.warn("Cannot create " + dir
+                            + ", using the temp. directory");
+                    dir = null;
+                }
+            }
+            long maxBytes = 0;
+            String value = Framework.getProperty(MAX_BYTES_PROP);
+            if (value != null && !value.trim().isEmpty()) {
+                try {
+                    maxBytes = Long.parseLong(value.trim());
+                } catch (NumberFormatException e) {
+                    log.warn("Invalid value for " + MAX_BYTES_PROP + " ("
+                            + value + "), using 0");
+                }
+            }
+            instance = new BlobMaterializer(dir, maxBytes,
+                    ExifToolProcessPool.getIntProperty(LINGER_PROP,
+                            DEFAULT_LINGER) * 1000L);
+
+            if (!shutdownHookAdded) {
+                shutdownHookAdded = true;
+                Runtime.getRuntime().addShutdownHook(
+                        new Thread("BlobMaterializer-shutdown") {
+                            @Override
+                            public void run() {
+                                BlobMaterializer.shutdownInstance();
+                            }
+                        });
+            }
+        }
+
+        return instance;
+    }
+
+    public static synchronized void shutdownInstance() {
+        if (instance != null) {
+            instance.deleteAll();
+            instance = null;
+        }
+    }
+
+    /**
+     * Returns a copy of the blob: an existing one if the same blob (same
+     * digest) is already copied, else a new one. It must be given back with
+     * {@link #release(Copy)}.
+     *
+     * @param inBlob
+     * @return the copy
+     * @throws IOException if the blob cannot be copied, or if the copy would
+     *             exceed the quota
+     */
+    public Copy acquire(Blob inBlob) throws IOException {
+
+        String digest = inBlob.getDigest();
+        String key = digest == null || digest.isEmpty() ? null : digest + "/"
+                + inBlob.getLength();
+        long expected = Math.max(inBlob.getLength(), 0);
+
+        synchronized (this) {
+            if (key != null) {
+                Copy copy = shared.get(key);
+                if (copy != null) {
+                    copy.users += 1;
+                    if (copy.pendingDelete != null) {
+                        copy.pendingDelete.cancel(false);
+                        copy.pendingDelete = null;
+                    }
+                    ImageMetadataMetrics.recordMaterializationReuse();
+                    return copy;
+                }
+            }
+            reserve(expected);
+        }
+
+        // Not copied in the lock, other threads use other copies meanwhile
+        long start = System.nanoTime();
+        File file = null;
+        try {
+            file = File.createTempFile("IMDR-", "", dir);
+            inBlob.transferTo(file);
+        } catch (IOException e) {
+            if (file != null) {
+                file.delete();
+            }
+            synchronized (this) {
+                usedBytes -= expected;
+            }
+            throw e;
+        }
+
+        Copy copy = new Copy(key, file);
+        ImageMetadataMetrics.recordMaterialization(System.nanoTime() - start,
+                copy.length);
+        synchronized (this) {
+            // The length of the blob may have been unknown
+            usedBytes -= expected;
+            try {
+                reserve(copy.length);
+            } catch (IOException e) {
+                file.delete();
+                throw e;
+            }
+            all.add(copy);
+            // Another thread may have copied the same blob meanwhile: ours is
+            // then not shared
+            if (key != null && !shared.containsKey(key)) {
+                shared.put(key, copy);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * The copy is deleted when it has no more users, after the linger delay.
+     *
+     * @param inCopy
+     */
+    public synchronized void release(final Copy inCopy) {
+
+        inCopy.users -= 1;
+        if (inCopy.users > 0 || inCopy.deleted) {
+            return;
+        }
+
+        if (lingerMs > 0 && inCopy.key != null
+                && shared.get(inCopy.key) == inCopy) {
+            inCopy.pendingDelete = cleaner.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    expire(inCopy);
+                }
+            }, lingerMs, TimeUnit.MILLISECONDS);
+        } else {
+            delete(inCopy);
+        }
+    }
+
+    protected synchronized void expire(Copy inCopy) {
+        if (inCopy.users == 0) {
+            delete(inCopy);
+        }
+    }
+
+    protected void delete(Copy inCopy) {
+
+        if (inCopy.deleted) {
+            return;
+        }
+        inCopy.deleted = true;
+        if (inCopy.pendingDelete != null) {
+            inCopy.pendingDelete.cancel(false);
+            inCopy.pendingDelete = null;
+        }
+        if (inCopy.key != null && shared.get(inCopy.key) == inCopy) {
+            shared.remove(inCopy.key);
+        }
+        all.remove(inCopy);
+        usedBytes -= inCopy.length;
+        if (!inCopy.file.delete() && inCopy.file.exists()) {
+            log.warn("Cannot delete " + inCopy.file);
+        }
+    }
+
+    /*
+     * Adds inBytes to the used bytes, deleting the unused copies if needed
+     */
+    protected void reserve(long inBytes) throws IOException {
+
+        if (maxBytes > 0 && usedBytes + inBytes > maxBytes) {
+            for (Copy copy : new ArrayList<Copy>(shared.values())) {
+                if (copy.users == 0) {
+                    delete(copy);
+                    if (usedBytes + inBytes <= maxBytes) {
+                        break;
+                    }
+                }
+            }
+            if (usedBytes + inBytes > maxBytes) {
+                throw new IOException("Cannot copy the blob (" + inBytes
+                        + " bytes): the copies already use " + usedBytes
+                        + " of the " + maxBytes + " bytes allowed ("
+                        + MAX_BYTES_PROP + ")");
+            }
+        }
+        usedBytes += inBytes;
+    }
+
+    protected synchronized void deleteAll() {
+        for (Copy copy : new ArrayList<Copy>(all)) {
+            delete(copy);
+        }
+        cleaner.shutdownNow();
+    }
+
+    /**
+     * @return the total size of the copies
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return the number of copies on disk, used or waiting to be deleted
+     */
+    public synchronized int getCopyCount() {
+        return all.size();
+    }
+}
@@ -0,0 +1,428 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.imagemetadata;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.im4java.core.InfoException;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.model.PropertyException;
+import org.nuxeo.imagemetadata.ImageMetadataConstants.*;
+import org.nuxeo.imagemetadata.ImageMetadataReader.SCAN_DEPTH;
+import org.nuxeo.imagemetadata.ImageMetadataReader.WHICH_TOOL;
+
+/**
+ * Extracts the metadata of the picture stored in a document and stores the
+ * values in the document (does not save it). This is what the
+ * {@link SavePictureMeadataInDocument} operation does for each document.
+ * <p>
+ * <code>properties</code> has the xpath as key and the metadata property as
+ * value. If it is null or empty, width, height, colorspace and resolution are
+ * stored in the <code>image_metadata</code> schema.
+ *
+ * @since 7.1
+ */
+public class DocumentMetadataUpdater {
+
+    /**
+     * Added to the documents by markExtracted(): what the last extraction was
+     * done with (schema <code>image_metadata_extraction</code>)
+     */
+    public static final String EXTRACTED_FACET = "ImageMetadataExtracted";
+
+    public static final String EXTRACTED_DIGEST = "imdx:digest";
+
+    public static final String EXTRACTED_TOOL = "imdx:tool";
+
+    public static final String EXTRACTED_MAPPING = "imdx:mapping";
+
+    protected static final int DIGEST_BUFFER_SIZE = 64 * 1024;
+
+    protected String xpath;
+
+    protected Map<String, String> properties;
+
+    protected WHICH_TOOL tool;
+
+    protected SCAN_DEPTH scanDepth = SCAN_DEPTH.FULL;
+
+    public DocumentMetadataUpdater(String inXPath,
+            Map<String, String> inProperties, WHICH_TOOL inTool) {
+        xpath = inXPath;
+        properties = inProperties;
+        tool = inTool;
+    }
+
+    /**
+     * @param inTool "ImageMagick", "GraphicsMagick", "ExifTool" or "Auto",
+     *            case insensitive. Anything else is ImageMagick
+     */
+    public static WHICH_TOOL toolFromName(String inTool) {
+
+        switch (inTool == null ? "" : inTool.toLowerCase()) {
+        case "graphicsmagick":
+            return WHICH_TOOL.GRAPHICSMAGICK;
+
+        case "exiftool":
+            return WHICH_TOOL.EXIFTOOL;
+
+        case "auto":
+            return WHICH_TOOL.AUTO;
+
+        default:
+            return WHICH_TOOL.IMAGEMAGICK;
+        }
+    }
+
+    /**
+     * @param inDepth "Full", "Fast" or "Fastest", case insensitive. Anything
+     *            else is Full
+     *
+     * @since 7.1
+     */
+    public static SCAN_DEPTH scanDepthFromName(String inDepth) {
+
+        switch (inDepth == null ? "" : inDepth.toLowerCase()) {
+        case "fast":
+            return SCAN_DEPTH.FAST;
+
+        case "fastest":
+            return SCAN_DEPTH.FASTEST;
+
+        default:
+            return SCAN_DEPTH.FULL;
+        }
+    }
+
+    public WHICH_TOOL getTool() {
+        return tool;
+    }
+
+    /**
+     * @since 7.1
+     */
+    public SCAN_DEPTH getScanDepth() {
+        return scanDepth;
+    }
+
+    /**
+     * Set on the reader by update(), see
+     * {@link ImageMetadataReader#setScanDepth(SCAN_DEPTH)}
+     *
+     * @since 7.1
+     */
+    public void setScanDepth(SCAN_DEPTH inDepth) {
+        scanDepth = inDepth == null ? SCAN_DEPTH.FULL : inDepth;
+    }
+
+    public String getXPath() {
+        return xpath;
+    }
+
+    public Map<String, String> getProperties() {
+        return properties;
+    }
+
+    /**
+     * @return a hash of the xpath and the properties, the same for the same
+     *         properties whatever their order
+     */
+    public static String getMappingHash(String inXPath,
+            Map<String, String> inProperties) {
+
+        String props = inProperties == null ? "{}" : new TreeMap<String, String>(
+                inProperties).toString();
+        return Integer.toHexString((inXPath + props).hashCode());
+    }
+
+    /**
+     * A blob which is not stored yet (set in the document being saved) has no
+     * digest: it is computed here, with MD5, the default of the binary
+     * manager. Reading the file is still much cheaper than starting a tool.
+     *
+     * @return the digest of the blob, null if it can't be read
+     */
+    public static String getDigest(Blob inBlob) {
+
+        String digest = inBlob.getDigest();
+        if (digest != null && !digest.isEmpty()) {
+            return digest;
+        }
+
+        try (InputStream in = inBlob.getStream()) {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] buffer = new byte[DIGEST_BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                md.update(buffer, 0, count);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : md.digest()) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(
+                        Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks what can be checked without the digest of the blob, which may
+     * have to be computed (see getDigest()).
+     *
+     * @return false if isUpToDate() returns false whatever the digest: no
+     *         values were stored in the document, or with another tool or
+     *         other properties
+     */
+    public boolean mayBeUpToDate(DocumentModel inDoc) throws ClientException {
+
+        if (!inDoc.hasFacet(EXTRACTED_FACET)) {
+            return false;
+        }
+        Serializable digest = inDoc.getPropertyValue(EXTRACTED_DIGEST);
+        return digest != null && !digest.toString().isEmpty()
+                && tool.name().equals(inDoc.getPropertyValue(EXTRACTED_TOOL))
+                && getMappingHash(xpath, properties).equals(
+                        inDoc.getPropertyValue(EXTRACTED_MAPPING));
+    }
+
+    /**
+     * @param inDigest the digest of the blob (see getDigest())
+     * @return true if the values of this blob were already stored in the
+     *         document, with the same tool and the same properties (see
+     *         markExtracted()). False if inDigest is null
+     */
+    public boolean isUpToDate(DocumentModel inDoc, String inDigest)
+            throws ClientException {
+
+        if (inDigest == null || !inDoc.hasFacet(EXTRACTED_FACET)) {
+            return false;
+        }
+        return inDigest.equals(inDoc.getPropertyValue(EXTRACTED_DIGEST))
+                && tool.name().equals(inDoc.getPropertyValue(EXTRACTED_TOOL))
+                && getMappingHash(xpath, properties).equals(
+                        inDoc.getPropertyValue(EXTRACTED_MAPPING));
+    }
+
+    /**
+     * Records the digest of the blob (see getDigest()), the tool and the properties in the
+     * document (adds the <code>ImageMetadataExtracted</code> facet if
+     * needed). Does not save the document.
+     */
+    public void markExtracted(DocumentModel inDoc, String inDigest)
+            throws ClientException {
+
+        if (!inDoc.hasFacet(EXTRACTED_FACET)) {
+            inDoc.addFacet(EXTRACTED_FACET);
+        }
+        inDoc.setPropertyValue(EXTRACTED_DIGEST, inDigest);
+        inDoc.setPropertyValue(EXTRACTED_TOOL, tool.name());
+        inDoc.setPropertyValue(EXTRACTED_MAPPING,
+                getMappingHash(xpath, properties));
+    }
+
+    public boolean hasProperties() {
+        return properties != null && properties.size() > 0;
+    }
+
+    /**
+     * @return the names of the metadata properties to read (the values of the
+     *         map), in the order of the map
+     */
+    public String[] getKeys() {
+
+        String[] keysStr = new String[properties.size()];
+        int idx = 0;
+        for (String inXPath : properties.keySet()) {
+            keysStr[idx] = properties.get(inXPath);
+            idx += 1;
+        }
+        return keysStr;
+    }
+
+    /**
+     * @return true if a metadata property is "all" (all the values are stored
+     *         in the field)
+     */
+    public boolean hasAllKey() {
+
+        if (hasProperties()) {
+            for (String value : properties.values()) {
+                if (value.toLowerCase().equals("all")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The keys to pass to the reader. When "all" is used with ExifTool, all
+     * the values are read at once, so the selected keys and the "all" field
+     * come from a single exiftool call (ImageMagick and GraphicsMagick are run
+     * once per reader anyway).
+     *
+     * @return the keys, or null to read all the values
+     */
+    public String[] getKeysToRead() {
+        return tool == WHICH_TOOL.EXIFTOOL && hasAllKey() ? null : getKeys();
+    }
+
+    /**
+     * We do nothing if we don't have the correct kind of document. We could
+     * return an error, but we are more generic here, avoiding an hassle to the
+     * caller. If properties is not used, we check the document has the
+     * image_metadata schema. We also give up silently if there is no binary.
+     *
+     * @return the blob to read, or null if the document must be ignored
+     */
+    public Blob getBlob(DocumentModel inDoc) {
+
+        if (inDoc.isImmutable()
+                || (!hasProperties() && !inDoc.hasSchema("image_metadata"))) {
+            return null;
+        }
+
+        try {
+            return (Blob) inDoc.getPropertyValue(xpath);
+        } catch (PropertyException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the values and stores them in the document.
+     *
+     * @return true if the values could be read (and were stored in the
+     *         document)
+     */
+    public boolean update(DocumentModel inDoc, ImageMetadataReader inReader)
+            throws ClientException, IOException, InfoException {
+
+        inReader.setScanDepth(scanDepth);
+
+        if (hasProperties()) {
+            // Only the mapped keys are copied from the output of the tool
+            MetadataView view = inReader.getMetadataView(getKeysToRead(), tool);
+            try {
+                view.prefetch();
+            } catch (Exception e) {
+                // Just ignore if the tool can't read the file (a .csv for
+                // example)
+                return false;
+            }
+            return setValues(inDoc, inReader, view);
+        }
+
+        // Most of the time, no need to start ImageMagick for these values
+        ImageHeaderInfo header = inReader.getHeaderInfo();
+        if (header != null) {
+            inDoc.setPropertyValue("imd:pixel_xdimension", header.getWidth());
+            inDoc.setPropertyValue("imd:pixel_ydimension", header.getHeight());
+            inDoc.setPropertyValue("imd:color_space", header.getColorspace());
+
+            XYResolutionDPI dpi = header.getResolutionDPI();
+            inDoc.setPropertyValue("imd:xresolution", dpi.getX());
+            inDoc.setPropertyValue("imd:yresolution", dpi.getY());
+
+            return true;
+        }
+
+        String[] keysStr = { KEYS.WIDTH, KEYS.HEIGHT, KEYS.COLORSPACE,
+                KEYS.RESOLUTION, KEYS.UNITS };
+
+        MetadataView result = inReader.getMetadataView(keysStr,
+                WHICH_TOOL.IMAGEMAGICK);
+        try {
+            result.prefetch();
+        } catch (Exception e) {
+            // Just ignore if the tool can't read the file (a .csv for
+            // example)
+            return false;
+        }
+
+        // Store the values in the schema
+        inDoc.setPropertyValue("imd:pixel_xdimension", result.get(KEYS.WIDTH));
+        inDoc.setPropertyValue("imd:pixel_ydimension", result.get(KEYS.HEIGHT));
+        inDoc.setPropertyValue("imd:color_space", result.get(KEYS.COLORSPACE));
+
+        // Resolution needs extra work
+        XYResolutionDPI dpi = new XYResolutionDPI(result.get(KEYS.RESOLUTION),
+                result.get(KEYS.UNITS));
+        inDoc.setPropertyValue("imd:xresolution", dpi.getX());
+        inDoc.setPropertyValue("imd:yresolution", dpi.getY());
+
+        return true;
+    }
+
+    /**
+     * Stores the values read for <code>properties</code> in the document,
+     * converted to the type of each field. There is a special property: If a
+     * key is "all", then all the properties (from the same tool) are stored in
+     * the field (which must be a String field)
+     *
+     * @return true
+     */
+    public boolean setValues(DocumentModel inDoc, ImageMetadataReader inReader,
+            HashMap<String, String> inValues) throws ClientException,
+            InfoException {
+        return setValues(inDoc, inReader, MetadataView.fromValues(inValues));
+    }
+
+    /**
+     * Same as setValues(DocumentModel, ImageMetadataReader, HashMap), only
+     * the mapped keys are read from the view.
+     * <p>
+     * All the values are converted (see {@link FieldConverter}) before the
+     * document is modified, and stored with the type of the field.
+     *
+     * @return true
+     */
+    public boolean setValues(DocumentModel inDoc, ImageMetadataReader inReader,
+            MetadataView inValues) throws ClientException, InfoException {
+
+        MetadataRecord record = new MetadataRecord(properties.size());
+        String xpathForAll = "";
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+            String inXPath = entry.getKey();
+            if (entry.getValue().toLowerCase().equals("all")) {
+                xpathForAll = inXPath;
+            }
+
+            // "" if all the values were read, and this one does not exist
+            FieldConverter.getConverter(inDoc, inXPath).convert(
+                    inValues.get(entry.getValue()), record);
+        }
+        record.setInDocument(inDoc);
+
+        if (!xpathForAll.isEmpty()) {
+            inDoc.setPropertyValue(xpathForAll, inReader.getAllMetadata(tool));
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,427 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.imagemetadata;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.im4java.process.OutputConsumer;
+import org.im4java.process.Pipe;
+import org.nuxeo.im4java.TimedCommand;
+import org.nuxeo.im4java.ToolMetrics;
+import org.nuxeo.im4java.ToolTimeoutException;
+
+/**
+ * One long-lived <code>exiftool -stay_open True -@ -</code> process.
+ * <p>
+ * Each request is written to the stdin of the process (which exiftool reads as
+ * an argument file, one argument per line), followed by
+ * <code>-executeNNN</code>. exiftool then writes the result to stdout and
+ * terminates it with <code>{readyNNN}</code>, which is how we split the
+ * output of consecutive requests.
+ * <p>
+ * stderr is read all the time by a thread of the process, so exiftool never
+ * blocks on a full stderr pipe. Each request also asks exiftool to write
+ * <code>{readyNNN}</code> to stderr once it is done (<code>-echo4</code>),
+ * so the errors of a request are not mixed with the ones of the next
+ * request.
+ * <p>
+ * An instance is not thread safe: it is used by one thread at a time, the
+ * {@link ExifToolProcessPool} takes care of this.
+ *
+ * @since 7.1
+ */
+public class ExifToolProcess {
+
+    private static final Log log = LogFactory.getLog(ExifToolProcess.class);
+
+    protected static final int BUFFER_SIZE = 8192;
+
+    // The output buffer is kept between requests, unless it grew bigger
+    protected static final int MAX_KEPT_BUFFER_SIZE = 1024 * 1024;
+
+    // Kills the processes which exceed their timeout
+    protected static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable inRunnable) {
+            Thread t = new Thread(inRunnable, "ExifToolProcess-watchdog");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    protected OutputBuffer out = null;
+
+    protected Process process;
+
+    protected OutputStream stdin;
+
+    protected InputStream stdout;
+
+    protected InputStream stderr;
+
+    // What was read from stderr, and not taken by a request yet. Also the
+    // lock for stderrClosed
+    protected final StringBuilder errors = new StringBuilder();
+
+    protected boolean stderrClosed = false;
+
+    protected int requestCount = 0;
+
+    protected int executeId = 0;
+
+    protected boolean broken = false;
+
+    protected volatile boolean timedOut = false;
+
+    /*
+     * No process, used by the pool as a marker in its queue
+     */
+    protected ExifToolProcess() {
+        broken = true;
+    }
+
+    public ExifToolProcess(String inExifToolPath) throws IOException {
+
+        ProcessBuilder pb = new ProcessBuilder(inExifToolPath, "-stay_open",
+                "True", "-@", "-");
+        process = pb.start();
+        ToolMetrics.processLaunched(TimedCommand.EXIFTOOL);
+        stdin = process.getOutputStream();
+        stdout = process.getInputStream();
+        stderr = process.getErrorStream();
+
+        Thread errorReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readErrors();
+            }
+        }, "ExifToolProcess-stderr");
+        errorReader.setDaemon(true);
+        errorReader.start();
+    }
+
+    /**
+     * Runs one exiftool command and returns its raw stdout.
+     * <p>
+     * <code>inArgs</code> are the arguments as they would be passed on the
+     * command line (one item per argument, no quoting needed). An argument
+     * can't contain a new line.
+     * <p>
+     * If exiftool reports an error on stderr (<code>Error: ...</code>), an
+     * <code>IOException</code> is thrown. The process is still usable in this
+     * case. Any other <code>IOException</code> means the process is not usable
+     * anymore (see {@link #isHealthy()}).
+     *
+     * @param inArgs
+     * @return the bytes written to stdout by exiftool
+     * @throws IOException
+     */
+    public byte[] execute(List<String> inArgs) throws IOException {
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        execute(inArgs, new Pipe(null, result));
+        return result.toByteArray();
+    }
+
+    /**
+     * Same as execute(List<String> inArgs), but the output is given to
+     * inConsumer, read from the internal buffer of the process (no copy).
+     * This buffer receives the whole output (up to the ready marker) before
+     * inConsumer is called, so the output is held in memory: it is not
+     * streamed.
+     * <p>
+     * If the consumer throws an <code>IOException</code>, the process is
+     * still usable.
+     *
+     * @param inArgs
+     * @param inConsumer
+     * @throws IOException
+     *
+     * @since 7.1
+     */
+    public void execute(List<String> inArgs, OutputConsumer inConsumer)
+            throws IOException {
+        execute(inArgs, inConsumer, 0);
+    }
+
+    /**
+     * Same as execute(List<String> inArgs, OutputConsumer inConsumer), but
+     * the process is killed if exiftool did not answer after inTimeoutMs. A
+     * {@link ToolTimeoutException} is then thrown, and the process is not
+     * usable anymore.
+     *
+     * @param inArgs
+     * @param inConsumer
+     * @param inTimeoutMs 0 for no timeout
+     * @throws IOException
+     * @throws ToolTimeoutException
+     *
+     * @since 7.1
+     */
+    public void execute(List<String> inArgs, OutputConsumer inConsumer,
+            final long inTimeoutMs) throws IOException {
+
+        executeId += 1;
+        requestCount += 1;
+        byte[] readyMarker = ("{ready" + executeId + "}").getBytes(StandardCharsets.US_ASCII);
+        int markerPos;
+
+        ScheduledFuture<?> timeout = null;
+        if (inTimeoutMs > 0) {
+            timeout = watchdog.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    log.warn("exiftool did not answer in " + inTimeoutMs
+                            + " ms., killing it");
+                    timedOut = true;
+                    TimedCommand.kill(process);
+                }
+            }, inTimeoutMs, TimeUnit.MILLISECONDS);
+        }
+
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (String arg : inArgs) {
+                if (arg.indexOf('\n') > -1 || arg.indexOf('\r') > -1) {
+                    throw new IllegalArgumentException(
+                            "An exiftool argument can't contain a new line");
+                }
+                sb.append(arg).append('\n');
+            }
+            sb.append("-echo4\n").append(new String(readyMarker,
+                    StandardCharsets.US_ASCII)).append('\n');
+            sb.append("-execute").append(executeId).append('\n');
+            stdin.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            stdin.flush();
+
+            if (out == null) {
+                out = new OutputBuffer();
+            }
+            out.reset();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            markerPos = -1;
+            while (markerPos < 0) {
+                int count = stdout.read(buffer);
+                if (count < 0) {
+                    throw new IOException("exiftool process ended unexpectedly");
+                }
+                out.write(buffer, 0, count);
+                markerPos = findReadyMarker(out, readyMarker);
+            }
+
+            String errorText = takeErrors(new String(readyMarker,
+                    StandardCharsets.US_ASCII));
+            if (errorText.startsWith("Error") || errorText.contains("\nError")) {
+                throw new ExifToolErrorException(errorText.trim());
+            }
+            if (!errorText.isEmpty() && log.isDebugEnabled()) {
+                log.debug("exiftool: " + errorText.trim());
+            }
+
+        } catch (ExifToolErrorException e) {
+            throw e;
+        } catch (IOException e) {
+            broken = true;
+            if (timedOut) {
+                throw new ToolTimeoutException(TimedCommand.EXIFTOOL,
+                        inTimeoutMs);
+            }
+            throw e;
+        } finally {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+        }
+
+        long start = System.nanoTime();
+        try {
+            inConsumer.consumeOutput(new ByteArrayInputStream(out.getBuffer(),
+                    0, markerPos));
+        } finally {
+            ToolMetrics.recordParseTime(TimedCommand.EXIFTOOL,
+                    System.nanoTime() - start);
+            if (out.getBuffer().length > MAX_KEPT_BUFFER_SIZE) {
+                out = null;
+            }
+        }
+    }
+
+    /*
+     * Returns the position of the "{readyNNN}" marker if the output ends with
+     * it (followed by a new line), -1 otherwise
+     */
+    protected int findReadyMarker(OutputBuffer inOutput, byte[] inMarker) {
+
+        byte[] bytes = inOutput.getBuffer();
+        int size = inOutput.size();
+        int end = size;
+        while (end > 0 && (bytes[end - 1] == '\n' || bytes[end - 1] == '\r')) {
+            end -= 1;
+        }
+        if (end == size) {
+            return -1;
+        }
+
+        int start = end - inMarker.length;
+        if (start < 0) {
+            return -1;
+        }
+        for (int i = 0; i < inMarker.length; i++) {
+            if (bytes[start + i] != inMarker[i]) {
+                return -1;
+            }
+        }
+        return start;
+    }
+
+    /*
+     * Runs in the stderr thread of the process, until the process ends
+     */
+    protected void readErrors() {
+
+        char[] buffer = new char[BUFFER_SIZE];
+        try (Reader reader = new InputStreamReader(stderr,
+                StandardCharsets.UTF_8)) {
+            int count;
+            while ((count = reader.read(buffer)) >= 0) {
+                synchronized (errors) {
+                    errors.append(buffer, 0, count);
+                    errors.notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            // The process was killed or closed
+        } finally {
+            synchronized (errors) {
+                stderrClosed = true;
+                errors.notifyAll();
+            }
+        }
+    }
+
+    /*
+     * Waits for the marker on stderr, and returns what exiftool wrote before
+     * it (the errors of the request)
+     */
+    protected String takeErrors(String inMarker) throws IOException {
+
+        synchronized (errors) {
+            int pos;
+            while ((pos = errors.indexOf(inMarker)) < 0) {
+                if (stderrClosed) {
+                    throw new IOException("exiftool process ended unexpectedly");
+                }
+                try {
+                    errors.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            String result = errors.substring(0, pos);
+            int end = pos + inMarker.length();
+            while (end < errors.length()
+                    && (errors.charAt(end) == '\n' || errors.charAt(end) == '\r')) {
+                end += 1;
+            }
+            errors.delete(0, end);
+            return result;
+        }
+    }
+
+    public int getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * A process is healthy if it is still running and no I/O error occurred
+     * while talking to it
+     *
+     * @return true if the process can be used for another request
+     */
+    public boolean isHealthy() {
+        return !broken && process.isAlive();
+    }
+
+    /**
+     * Asks exiftool to terminate, and kills it if it does not quit in a
+     * reasonable time.
+     */
+    public void close() {
+        try {
+            if (process.isAlive()) {
+                stdin.write("-stay_open\nFalse\n".getBytes(StandardCharsets.US_ASCII));
+                stdin.flush();
+                stdin.close();
+                process.waitFor(2, TimeUnit.SECONDS);
+            }
+        } catch (IOException e) {
+            // Just kill it, see below
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (process.isAlive()) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    /*
+     * Gives access to the internal buffer, so we don't copy the whole output
+     * every time we look for the marker
+     */
+    protected static class OutputBuffer extends ByteArrayOutputStream {
+
+        public OutputBuffer() {
+            super(BUFFER_SIZE);
+        }
+
+        public byte[] getBuffer() {
+            return buf;
+        }
+    }
+
+    /**
+     * Thrown when exiftool reports an error for a request (file not found,
+     * unknown file type, ...). Contrary to other <code>IOException</code>, the
+     * process can still be used.
+     */
+    public static class ExifToolErrorException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public ExifToolErrorException(String inMessage) {
+            super(inMessage);
+        }
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.imagemetadata;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.im4java.process.OutputConsumer;
+import org.im4java.process.Pipe;
+import org.nuxeo.im4java.Bulkhead;
+import org.nuxeo.im4java.CircuitBreaker;
+import org.nuxeo.im4java.TimedCommand;
+import org.nuxeo.im4java.ToolMetrics;
+import org.nuxeo.im4java.ToolSaturatedException;
+import org.nuxeo.im4java.ToolTimeoutException;
+import org.nuxeo.im4java.ToolUnavailableException;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * A pool of long-lived {@link ExifToolProcess}, so we don't pay the startup of
+ * a Perl interpreter for every call to exiftool.
+ * <p>
+ * The pool is configured with the following properties (nuxeo.conf):
+ * <ul>
+ * <li><code>imagemetadata.exiftool.pool.size</code>: Max. number of exiftool
+ * processes (default 2). 0 disables the pool, exiftool is then started for
+ * every call</li>
+ * <li><code>imagemetadata.exiftool.pool.maxRequests</code>: A process is
+ * recycled after this number of requests (default 500)</li>
+ * <li><code>imagemetadata.exiftool.path</code>: The exiftool command (default
+ * <code>exiftool</code>)</li>
+ * </ul>
+ * Processes are started lazily, when needed.
+ * <p>
+ * The requests are subject to the exiftool timeout
+ * (<code>imagemetadata.timeout.exiftool</code>), circuit breaker and
+ * bulkhead, see {@link TimedCommand}. With a bulkhead bigger than the pool,
+ * the calls which got a permit wait for a process, as long as they could wait
+ * for a permit (<code>imagemetadata.bulkhead.maxWait</code>) and never longer
+ * than the exiftool timeout. A {@link ToolSaturatedException} is thrown when
+ * no process became available in time.
+ *
+ * @since 7.1
+ */
+public class ExifToolProcessPool {
+
+    private static final Log log = LogFactory.getLog(ExifToolProcessPool.class);
+
+    public static final String POOL_SIZE_PROP = "imagemetadata.exiftool.pool.size";
+
+    public static final String MAX_REQUESTS_PROP = "imagemetadata.exiftool.pool.maxRequests";
+
+    public static final String EXIFTOOL_PATH_PROP = "imagemetadata.exiftool.path";
+
+    public static final int DEFAULT_POOL_SIZE = 2;
+
+    public static final int DEFAULT_MAX_REQUESTS = 500;
+
+    protected static ExifToolProcessPool instance = null;
+
+    // The instance can be created again after shutdownInstance(), the hook is
+    // registered only once
+    protected static boolean shutdownHookAdded = false;
+
+    // Put in the queue by shutdown(), wakes the threads waiting in borrow()
+    protected static final ExifToolProcess SHUTDOWN_MARKER = new ExifToolProcess();
+
+    protected final int poolSize;
+
+    protected final int maxRequests;
+
+    protected final String exifToolPath;
+
+    protected final LinkedBlockingQueue<ExifToolProcess> idle = new LinkedBlockingQueue<ExifToolProcess>();
+
+    protected final AtomicInteger processCount = new AtomicInteger(0);
+
+    protected final AtomicLong startedProcesses = new AtomicLong(0);
+
+    protected final AtomicLong requests = new AtomicLong(0);
+
+    protected volatile boolean shutdown = false;
+
+    public ExifToolProcessPool(int inPoolSize, int inMaxRequests,
+            String inExifToolPath) {
+        poolSize = inPoolSize;
+        maxRequests = inMaxRequests;
+        exifToolPath = inExifToolPath;
+    }
+
+    public static synchronized ExifToolProcessPool getInstance() {
+
+        if (instance == null) {
+            instance = new ExifToolProcessPool(getIntProperty(POOL_SIZE_PROP,
+                    DEFAULT_POOL_SIZE), getIntProperty(MAX_REQUESTS_PROP,
+                    DEFAULT_MAX_REQUESTS), Framework.getProperty(
+                    EXIFTOOL_PATH_PROP, "exiftool"));
+
+            if (!shutdownHookAdded) {
+                shutdownHookAdded = true;
+                Runtime.getRuntime().addShutdownHook(
+                        new Thread("ExifToolProcessPool-shutdown") {
+                            @Override
+                            public void run() {
+                                ExifToolProcessPool.shutdownInstance();
+                            }
+                        });
+            }
+        }
+
+        return instance;
+    }
+
+    public static synchronized void shutdownInstance() {
+        if (instance != null) {
+            instance.shutdown();
+            instance = null;
+        }
+    }
+
+    protected static int getIntProperty(String inName, int inDefault) {
+        String value = Framework.getProperty(inName);
+        if (value == null || value.trim().isEmpty()) {
+            return inDefault;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid value for " + inName + " (" + value
+                    + "), using " + inDefault);
+            return inDefault;
+        }
+    }
+
+    public boolean isEnabled() {
+        return poolSize > 0 && !shutdown;
+    }
+
+    /**
+     * Runs the command in one of the processes of the pool. Waits for a
+     * process to be available if they are all busy.
+     *
+     * @param inArgs the arguments, as they would be passed to exiftool in the
+     *            command line
+     * @return the raw output of exiftool
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public byte[] execute(List<String> inArgs) throws IOException,
+            InterruptedException {
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        execute(inArgs, new Pipe(null, result));
+        return result.toByteArray();
+    }
+
+    /**
+     * Same as execute(List<String> inArgs), but the output is given to
+     * inConsumer while the process is still borrowed, so it is not copied in
+     * a byte array. It is not streamed though: the whole output is first read
+     * in the internal buffer of the process (see
+     * {@link ExifToolProcess#execute(List, OutputConsumer)}).
+     * <p>
+     * Throws a {@link org.nuxeo.im4java.ToolTimeoutException} if exiftool did
+     * not answer in time, and a
+     * {@link org.nuxeo.im4java.ToolUnavailableException} without borrowing a
+     * process if exiftool failed too often recently.
+     *
+     * @param inArgs
+     * @param inConsumer
+     * @throws IOException
+     * @throws InterruptedException
+     *
+     * @since 7.1
+     */
+    public void execute(List<String> inArgs, OutputConsumer inConsumer)
+            throws IOException, InterruptedException {
+
+        CircuitBreaker breaker = CircuitBreaker.get(TimedCommand.EXIFTOOL);
+        try {
+            breaker.acquire();
+        } catch (ToolUnavailableException e) {
+            ToolMetrics.recordFailure(TimedCommand.EXIFTOOL,
+                    ToolMetrics.UNAVAILABLE);
+            throw e;
+        }
+        Bulkhead bulkhead = Bulkhead.get(TimedCommand.EXIFTOOL);
+        try {
+            bulkhead.acquire();
+        } catch (ToolSaturatedException | InterruptedException e) {
+            breaker.release();
+            ToolMetrics.recordFailure(TimedCommand.EXIFTOOL,
+                    ToolMetrics.getCause(e));
+            throw e;
+        }
+
+        ExifToolProcess process = null;
+        boolean canBeReused = false;
+        boolean interrupted = false;
+        // null when the call succeeds
+        String failure = ToolMetrics.CRASH;
+        boolean saturated = false;
+        long start = System.nanoTime();
+        try {
+            long maxWaitMs = bulkhead.getWaitLimitMs();
+            long timeoutMs = TimedCommand.getTimeoutMs(TimedCommand.EXIFTOOL);
+            if (timeoutMs > 0 && timeoutMs < maxWaitMs) {
+                maxWaitMs = timeoutMs;
+            }
+            process = borrow(maxWaitMs);
+            process.execute(inArgs, inConsumer,
+                    TimedCommand.getTimeoutMs(TimedCommand.EXIFTOOL));
+            canBeReused = true;
+            failure = null;
+        } catch (ExifToolProcess.ExifToolErrorException e) {
+            canBeReused = true;
+            failure = ToolMetrics.REJECTED;
+            throw e;
+        } catch (IOException e) {
+            // An error of the consumer does not break the process
+            canBeReused = process != null && process.isHealthy();
+            if (canBeReused) {
+                failure = null;
+            }
+            throw e;
+        } catch (ToolSaturatedException e) {
+            // Not a failure of exiftool
+            saturated = true;
+            failure = ToolMetrics.SATURATED;
+            throw e;
+        } catch (ToolTimeoutException e) {
+            failure = ToolMetrics.TIMEOUT;
+            throw e;
+        } catch (InterruptedException e) {
+            interrupted = true;
+            throw e;
+        } finally {
+            bulkhead.release();
+            ToolMetrics.recordWallTime(TimedCommand.EXIFTOOL,
+                    System.nanoTime() - start);
+            if (!interrupted && failure != null) {
+                ToolMetrics.recordFailure(TimedCommand.EXIFTOOL, failure);
+            }
+            // exiftool answered (even with an error) or a consumer failed:
+            // the tool is working
+            if (interrupted || saturated) {
+                breaker.release();
+            } else if (canBeReused) {
+                breaker.recordSuccess();
+            } else {
+                breaker.recordFailure();
+            }
+            if (process != null) {
+                requests.incrementAndGet();
+                giveBack(process, canBeReused);
+            }
+        }
+    }
+
+    /*
+     * Waits at most inMaxWaitMs for a process when they are all busy (and
+     * the pool is full)
+     */
+    protected ExifToolProcess borrow(long inMaxWaitMs) throws IOException,
+            InterruptedException {
+
+        long start = System.nanoTime();
+        while (true) {
+            if (shutdown) {
+                throw new IOException("The exiftool pool is shut down");
+            }
+
+            ExifToolProcess process = idle.poll();
+            if (process == null) {
+                // Start a new one if we can
+                if (processCount.incrementAndGet() <= poolSize) {
+                    try {
+                        process = new ExifToolProcess(exifToolPath);
+                        startedProcesses.incrementAndGet();
+                        return process;
+                    } catch (IOException e) {
+                        processCount.decrementAndGet();
+                        throw e;
+                    }
+                }
+                processCount.decrementAndGet();
+
+                // Wait for one to be given back
+                long remainingMs = inMaxWaitMs
+                        - (System.nanoTime() - start) / 1000000;
+                if (remainingMs > 0) {
+                    process = idle.poll(remainingMs, TimeUnit.MILLISECONDS);
+                }
+                if (process == null) {
+                    throw new ToolSaturatedException(TimedCommand.EXIFTOOL,
+                            (System.nanoTime() - start) / 1000000);
+                }
+            }
+
+            if (process == SHUTDOWN_MARKER) {
+                // Left in the queue for the other waiting threads
+                idle.offer(process);
+                throw new IOException("The exiftool pool is shut down");
+            }
+            if (process.isHealthy()) {
+                return process;
+            }
+            discard(process);
+        }
+    }
+
+    protected void giveBack(ExifToolProcess inProcess, boolean inCanBeReused) {
+
+        if (!shutdown && inCanBeReused && inProcess.isHealthy()
+                && inProcess.getRequestCount() < maxRequests) {
+            idle.offer(inProcess);
+            return;
+        }
+
+        discard(inProcess);
+        // Someone may be waiting in borrow(): start a replacement for them
+        if (!shutdown && idle.isEmpty()) {
+            try {
+                if (processCount.incrementAndGet() <= poolSize) {
+                    idle.offer(new ExifToolProcess(exifToolPath));
+                    startedProcesses.incrementAndGet();
+                } else {
+                    processCount.decrementAndGet();
+                }
+            } catch (IOException e) {
+                processCount.decrementAndGet();
+                log.error("Cannot start a new exiftool process", e);
+            }
+        }
+    }
+
+    protected void discard(ExifToolProcess inProcess) {
+        processCount.decrementAndGet();
+        inProcess.close();
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        ExifToolProcess process;
+        while ((process = idle.poll()) != null) {
+            if (process != SHUTDOWN_MARKER) {
+                discard(process);
+            }
+        }
+        idle.offer(SHUTDOWN_MARKER);
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * @return the number of exiftool processes currently running
+     */
+    public int getProcessCount() {
+        return processCount.get();
+    }
+
+    /**
+     * @return the number of exiftool processes started since the pool was
+     *         created
+     */
+    public long getStartedProcesses() {
+        return startedProcesses.get();
+    }
+
+    /**
+     * @return the number of requests handled since the pool was created
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+}
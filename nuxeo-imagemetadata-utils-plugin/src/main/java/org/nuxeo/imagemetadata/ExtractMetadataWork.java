@@ -0,0 +1,249 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.imagemetadata;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.im4java.core.InfoException;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentRef;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.work.AbstractWork;
+import org.nuxeo.ecm.core.work.api.Work.State;
+import org.nuxeo.ecm.core.work.api.WorkManager;
+import org.nuxeo.ecm.core.work.api.WorkManager.Scheduling;
+import org.nuxeo.imagemetadata.ImageMetadataReader.SCAN_DEPTH;
+import org.nuxeo.imagemetadata.ImageMetadataReader.WHICH_TOOL;
+import org.nuxeo.runtime.api.Framework;
+
+import com.codahale.metrics.Timer;
+
+/**
+ * Extracts the metadata of a document in a worker thread, and saves the
+ * document (see {@link DocumentMetadataUpdater} for the work done).
+ * <p>
+ * The works run in the <code>imageMetadata</code> queue (see
+ * OSGI-INF/extensions/org.nuxeo.imagemetadata.WorkQueue.xml), which has its
+ * own threads. The id of a work is built from the document, the xpath and the
+ * parameters: scheduling the same extraction while a previous one is still
+ * waiting in the queue does nothing.
+ *
+ * @since 7.1
+ */
+public class ExtractMetadataWork extends AbstractWork {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String CATEGORY = "imageMetadata";
+
+    public static final String CAPACITY_PROP = "imagemetadata.work.capacity";
+
+    public static final int DEFAULT_CAPACITY = 1000;
+
+    protected String xpath;
+
+    protected HashMap<String, String> properties;
+
+    protected WHICH_TOOL tool;
+
+    protected boolean markExtracted = false;
+
+    protected SCAN_DEPTH scanDepth = SCAN_DEPTH.FULL;
+
+    public ExtractMetadataWork(String inRepositoryName, String inDocId,
+            String inXPath, Map<String, String> inProperties, WHICH_TOOL inTool) {
+        this(inRepositoryName, inDocId, inXPath, inProperties, inTool, false);
+    }
+
+    /**
+     * @param inMarkExtracted if true, the digest of the blob is recorded in
+     *            the document (see
+     *            {@link DocumentMetadataUpdater#markExtracted(DocumentModel, String)}
+     *            ), and the work is skipped when it did not change
+     *
+     * @since 7.1
+     */
+    public ExtractMetadataWork(String inRepositoryName, String inDocId,
+            String inXPath, Map<String, String> inProperties,
+            WHICH_TOOL inTool, boolean inMarkExtracted) {
+        this(inRepositoryName, inDocId, inXPath, inProperties, inTool,
+                inMarkExtracted, SCAN_DEPTH.FULL);
+    }
+
+    /**
+     * @param inDepth see {@link ImageMetadataReader#setScanDepth(SCAN_DEPTH)}
+     *
+     * @since 7.1
+     */
+    public ExtractMetadataWork(String inRepositoryName, String inDocId,
+            String inXPath, Map<String, String> inProperties,
+            WHICH_TOOL inTool, boolean inMarkExtracted, SCAN_DEPTH inDepth) {
+        super(buildId(inRepositoryName, inDocId, inXPath, inProperties, inTool,
+                inDepth));
+        setDocument(inRepositoryName, inDocId);
+        xpath = inXPath;
+        properties = inProperties == null ? null : new HashMap<String, String>(
+                inProperties);
+        tool = inTool;
+        markExtracted = inMarkExtracted;
+        scanDepth = inDepth == null ? SCAN_DEPTH.FULL : inDepth;
+    }
+
+    protected static String buildId(String inRepositoryName, String inDocId,
+            String inXPath, Map<String, String> inProperties, WHICH_TOOL inTool) {
+
+        // The same properties always give the same id
+        return CATEGORY + ":" + inRepositoryName + ":" + inDocId + ":"
+                + inXPath + ":" + inTool + ":"
+                + DocumentMetadataUpdater.getMappingHash(inXPath, inProperties);
+    }
+
+    protected static String buildId(String inRepositoryName, String inDocId,
+            String inXPath, Map<String, String> inProperties,
+            WHICH_TOOL inTool, SCAN_DEPTH inDepth) {
+
+        String id = buildId(inRepositoryName, inDocId, inXPath, inProperties,
+                inTool);
+        // Same id as before for the default depth
+        return inDepth == null || inDepth == SCAN_DEPTH.FULL ? id : id + ":"
+                + inDepth;
+    }
+
+    /**
+     * Schedules the extraction, after the current transaction is committed
+     * (so the work reads the saved document).
+     * <p>
+     * When the queue already has <code>imagemetadata.work.capacity</code>
+     * works waiting (default 1000), the work is not scheduled and false is
+     * returned: the caller is expected to do the extraction itself (which
+     * slows it down as long as the queue is full)
+     *
+     * @return true if the work was scheduled (or an identical one was already
+     *         waiting)
+     */
+    public static boolean schedule(DocumentModel inDoc, String inXPath,
+            Map<String, String> inProperties, WHICH_TOOL inTool) {
+        return schedule(inDoc, inXPath, inProperties, inTool, false);
+    }
+
+    /**
+     * Same as schedule(DocumentModel, String, Map, WHICH_TOOL), used by
+     * {@link ImageMetadataListener}
+     *
+     * @param inMarkExtracted see the constructor
+     */
+    public static boolean schedule(DocumentModel inDoc, String inXPath,
+            Map<String, String> inProperties, WHICH_TOOL inTool,
+            boolean inMarkExtracted) {
+        return schedule(inDoc, inXPath, inProperties, inTool, inMarkExtracted,
+                SCAN_DEPTH.FULL);
+    }
+
+    /**
+     * Same as schedule(DocumentModel, String, Map, WHICH_TOOL, boolean),
+     * the work reads the file with the given depth
+     *
+     * @since 7.1
+     */
+    public static boolean schedule(DocumentModel inDoc, String inXPath,
+            Map<String, String> inProperties, WHICH_TOOL inTool,
+            boolean inMarkExtracted, SCAN_DEPTH inDepth) {
+
+        WorkManager workManager = Framework.getLocalService(WorkManager.class);
+        String queueId = workManager.getCategoryQueueId(CATEGORY);
+        int capacity = ExifToolProcessPool.getIntProperty(CAPACITY_PROP,
+                DEFAULT_CAPACITY);
+        if (capacity > 0
+                && workManager.getQueueSize(queueId, State.SCHEDULED) >= capacity) {
+            return false;
+        }
+
+        workManager.schedule(new ExtractMetadataWork(
+                inDoc.getRepositoryName(), inDoc.getId(), inXPath,
+                inProperties, inTool, inMarkExtracted, inDepth),
+                Scheduling.IF_NOT_SCHEDULED, true);
+        return true;
+    }
+
+    @Override
+    public String getCategory() {
+        return CATEGORY;
+    }
+
+    @Override
+    public String getTitle() {
+        return "Image metadata extraction: " + docId + ", " + xpath;
+    }
+
+    @Override
+    public void work() {
+
+        setStatus("Extracting");
+        initSession();
+
+        DocumentRef ref = new IdRef(docId);
+        // The document may have been deleted since the work was scheduled
+        if (!session.exists(ref)) {
+            setStatus("Nothing to process");
+            return;
+        }
+
+        DocumentModel doc = session.getDocument(ref);
+        DocumentMetadataUpdater updater = new DocumentMetadataUpdater(xpath,
+                properties, tool);
+        updater.setScanDepth(scanDepth);
+        Blob theBlob = updater.getBlob(doc);
+        if (theBlob != null) {
+            String digest = null;
+            if (markExtracted && updater.mayBeUpToDate(doc)) {
+                digest = DocumentMetadataUpdater.getDigest(theBlob);
+                if (updater.isUpToDate(doc, digest)) {
+                    setStatus("Nothing to process");
+                    return;
+                }
+            }
+            try (ImageMetadataReader reader = new ImageMetadataReader(
+                    theBlob)) {
+                if (updater.update(doc, reader)) {
+                    if (markExtracted) {
+                        if (digest == null) {
+                            digest = DocumentMetadataUpdater.getDigest(theBlob);
+                        }
+                        updater.markExtracted(doc, digest);
+                    }
+                    // The values are set, nothing for the listener to do
+                    doc.putContextData(
+                            ImageMetadataListener.DISABLE_LISTENER, true);
+                    Timer.Context timer = ImageMetadataMetrics.startSave();
+                    try {
+                        session.saveDocument(doc);
+                    } finally {
+                        timer.stop();
+                    }
+                }
+            } catch (IOException | InfoException e) {
+                throw new ClientException(e);
+            }
+        }
+
+        setStatus("Done");
+    }
+}
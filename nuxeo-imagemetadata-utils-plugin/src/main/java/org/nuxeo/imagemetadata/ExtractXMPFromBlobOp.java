@@ -28,10 +28,12 @@ import org.nuxeo.ecm.automation.core.annotations.Param;
 import org.nuxeo.ecm.automation.core.collectors.BlobCollector;
 import org.nuxeo.ecm.core.api.Blob;
 
+import com.codahale.metrics.Timer;
+
 /**
  *
  */
-@Operation(id = ExtractXMPFromBlobOp.ID, category = Constants.CAT_BLOB, label = "Extract XMP", description = "Use <code>exiftool</code> to extract the XMP datat from the blob. Return the raw XMP as text (empty if there is no XMP metadata) in the <code>varName</code> context variable.")
+@Operation(id = ExtractXMPFromBlobOp.ID, category = Constants.CAT_BLOB, label = "Extract XMP", description = "Extract the XMP datat from the blob. Return the raw XMP as text (empty if there is no XMP metadata) in the <code>varName</code> context variable. For JPEG, PNG, GIF and TIFF, the XMP is read directly from the file, <code>exiftool</code> is used for other formats (or always, if <code>useExifTool</code> is true). If <code>asBlob</code> is true, <code>varName</code> receives a blob (null if there is no XMP), the XMP is then never loaded as a String.")
 public class ExtractXMPFromBlobOp {
 
     public static final String ID = "Blob.ExtractXMP";
@@ -42,15 +44,41 @@ public class ExtractXMPFromBlobOp {
     @Param(name = "varName", required = true)
     protected String varName;
 
+    @Param(name = "useExifTool", required = false, values = { "false" })
+    protected boolean useExifTool = false;
+
+    @Param(name = "asBlob", required = false, values = { "false" })
+    protected boolean asBlob = false;
+
     @OperationMethod(collector = BlobCollector.class)
     public Blob run(Blob inBlob) throws IOException {
 
-        String xmp;
+        Timer.Context timer = ImageMetadataMetrics.startOperation(ID);
+        try {
+            return extract(inBlob);
+        } finally {
+            timer.stop();
+        }
+    }
+
+    protected Blob extract(Blob inBlob) throws IOException {
+
+        try (ImageMetadataReader imdr = new ImageMetadataReader(inBlob)) {
+            if (asBlob) {
+                ctx.put(varName, useExifTool ? imdr.getXMPWithExifToolAsBlob()
+                        : imdr.getXMPAsBlob());
+                return inBlob;
+            }
 
-        ImageMetadataReader imdr = new ImageMetadataReader(inBlob);
-        xmp = imdr.getXMP();
+            String xmp;
+            if (useExifTool) {
+                xmp = imdr.getXMPWithExifTool();
+            } else {
+                xmp = imdr.getXMP();
+            }
 
-        ctx.put(varName, xmp);
+            ctx.put(varName, xmp);
+        }
 
         return inBlob;
     }
@@ -0,0 +1,145 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.imagemetadata;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.schema.types.Type;
+import org.nuxeo.imagemetadata.MetadataRecord.KIND;
+
+/**
+ * Converts a value read by a tool to the type of the field it is stored in
+ * (int and long, float, double, or String for anything else).
+ * <p>
+ * The type hierarchy of the field is walked only once: the converters are
+ * cached by xpath. A prefixed xpath ("imd:pixel_xdimension") names the same
+ * field of the same schema in every document, a non prefixed one is cached
+ * for each document type.
+ *
+ * @since 7.1
+ */
+public class FieldConverter {
+
+    protected static final ConcurrentHashMap<String, FieldConverter> converters = new ConcurrentHashMap<String, FieldConverter>();
+
+    protected final String xpath;
+
+    protected final KIND kind;
+
+    protected FieldConverter(String inXPath, KIND inKind) {
+        xpath = inXPath.intern();
+        kind = inKind;
+    }
+
+    /**
+     * @return the converter for the field of the document
+     * @throws ClientException if the document has no such field
+     */
+    public static FieldConverter getConverter(DocumentModel inDoc,
+            String inXPath) throws ClientException {
+
+        String cacheKey = inXPath.indexOf(':') > 0 ? inXPath : inDoc.getType()
+                + "/" + inXPath;
+        FieldConverter converter = converters.get(cacheKey);
+        if (converter == null) {
+            converter = new FieldConverter(inXPath, toKind(getBaseType(inDoc.getProperty(
+                    inXPath).getType())));
+            converters.putIfAbsent(cacheKey, converter);
+        }
+        return converter;
+    }
+
+    /**
+     * Called when the schemas change (hot reload, tests)
+     */
+    public static void clearCache() {
+        converters.clear();
+    }
+
+    protected static String getBaseType(Type inType) {
+
+        Type t = inType;
+        String theType;
+        do {
+            theType = t.getName();
+            t = t.getSuperType();
+        } while (t != null);
+
+        return theType;
+    }
+
+    protected static KIND toKind(String inBaseType) {
+
+        switch (inBaseType) {
+        case "int":
+        case "integer":
+        case "long":
+            return KIND.LONG;
+
+        case "float":
+            return KIND.FLOAT;
+
+        case "double":
+            return KIND.DOUBLE;
+
+        default:
+            return KIND.STRING;
+        }
+    }
+
+    public String getXPath() {
+        return xpath;
+    }
+
+    public KIND getKind() {
+        return kind;
+    }
+
+    /**
+     * Converts the value and puts it in the record, the xpath is the name. An
+     * empty value is 0 for a number.
+     *
+     * @throws NumberFormatException if the value is not a number and the
+     *             field is a number
+     */
+    public void convert(String inValue, MetadataRecord inRecord) {
+
+        String value = inValue == null ? "" : inValue;
+        switch (kind) {
+        case LONG:
+            inRecord.putLong(xpath, value.isEmpty() ? 0
+                    : Math.round(Double.parseDouble(value)));
+            break;
+
+        case FLOAT:
+            inRecord.putFloat(xpath, value.isEmpty() ? 0.0f
+                    : Float.parseFloat(value));
+            break;
+
+        case DOUBLE:
+            inRecord.putDouble(xpath, value.isEmpty() ? 0.0
+                    : Double.parseDouble(value));
+            break;
+
+        default:
+            inRecord.putString(xpath, value);
+            break;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.imagemetadata;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Random access to the bytes of an image file, used by the parsers which read
+ * the structure of the file (segments, chunks, IFDs, ...) without loading it.
+ * <p>
+ * Bytes are read through a small window, so reading the next few fields of a
+ * header does not hit the disk every time, and jumping over a large segment
+ * does not read it.
+ * <p>
+ * A blob which is not backed by a file is read with a
+ * {@link PrefixBytesReader}.
+ *
+ * @since 7.1
+ */
+public class ImageBytesReader implements Closeable {
+
+    protected static final int WINDOW_SIZE = 4096;
+
+    protected FileChannel channel;
+
+    protected long size;
+
+    protected ByteBuffer window = ByteBuffer.allocate(WINDOW_SIZE);
+
+    protected long windowStart = -1;
+
+    protected ByteOrder order = ByteOrder.BIG_ENDIAN;
+
+    public ImageBytesReader(File inFile) throws IOException {
+        channel = FileChannel.open(inFile.toPath(), StandardOpenOption.READ);
+        size = channel.size();
+    }
+
+    /**
+     * For the readers which do not read a file (see {@link PrefixBytesReader})
+     *
+     * @since 7.1
+     */
+    protected ImageBytesReader(long inSize) {
+        size = inSize;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Byte order used by the <code>readUxx</code> methods. Default is big
+     * endian.
+     */
+    public void setByteOrder(ByteOrder inOrder) {
+        order = inOrder;
+    }
+
+    /**
+     * Makes sure [inPos, inPos + inLength) is in the window.
+     */
+    protected void ensure(long inPos, int inLength) throws IOException {
+
+        if (inPos < 0 || inPos + inLength > size) {
+            throw new EOFException("Reading after the end of the file");
+        }
+
+        if (windowStart >= 0 && inPos >= windowStart
+                && inPos + inLength <= windowStart + window.limit()) {
+            return;
+        }
+
+        if (inLength > window.capacity()) {
+            window = ByteBuffer.allocate(inLength);
+        }
+        window.clear();
+        long pos = inPos;
+        while (window.hasRemaining() && pos < size) {
+            int count = channel.read(window, pos);
+            if (count < 0) {
+                break;
+            }
+            pos += count;
+        }
+        window.flip();
+        windowStart = inPos;
+        if (window.limit() < inLength) {
+            throw new EOFException("Reading after the end of the file");
+        }
+    }
+
+    /**
+     * Returns up to <code>inMaxLength</code> bytes, less if the end of the
+     * file is reached
+     */
+    public byte[] readBytes(long inPos, int inMaxLength) throws IOException {
+
+        int length = (int) Math.min(inMaxLength, size - inPos);
+        if (length <= 0) {
+            return new byte[0];
+        }
+
+        byte[] result = new byte[length];
+        if (length > WINDOW_SIZE) {
+            // Don't keep a big window for a one-time read
+            ByteBuffer bb = ByteBuffer.wrap(result);
+            long pos = inPos;
+            while (bb.hasRemaining()) {
+                int count = channel.read(bb, pos);
+                if (count < 0) {
+                    throw new EOFException("Reading after the end of the file");
+                }
+                pos += count;
+            }
+        } else {
+            ensure(inPos, length);
+            window.position((int) (inPos - windowStart));
+            window.get(result);
+        }
+        return result;
+    }
+
+    public int readU8(long inPos) throws IOException {
+        ensure(inPos, 1);
+        return window.get((int) (inPos - windowStart)) & 0xFF;
+    }
+
+    public int readU16(long inPos) throws IOException {
+        ensure(inPos, 2);
+        int idx = (int) (inPos - windowStart);
+        int b0 = window.get(idx) & 0xFF;
+        int b1 = window.get(idx + 1) & 0xFF;
+        return order == ByteOrder.BIG_ENDIAN ? (b0 << 8) | b1 : (b1 << 8) | b0;
+    }
+
+    public long readU32(long inPos) throws IOException {
+        ensure(inPos, 4);
+        int idx = (int) (inPos - windowStart);
+        long b0 = window.get(idx) & 0xFF;
+        long b1 = window.get(idx + 1) & 0xFF;
+        long b2 = window.get(idx + 2) & 0xFF;
+        long b3 = window.get(idx + 3) & 0xFF;
+        return order == ByteOrder.BIG_ENDIAN ? (b0 << 24) | (b1 << 16)
+                | (b2 << 8) | b3 : (b3 << 24) | (b2 << 16) | (b1 << 8) | b0;
+    }
+
+    /**
+     * @return true if the bytes at <code>inPos</code> are exactly
+     *         <code>inExpected</code>
+     */
+    public boolean matches(long inPos, byte[] inExpected) throws IOException {
+        if (inPos + inExpected.length > size) {
+            return false;
+        }
+        byte[] bytes = readBytes(inPos, inExpected.length);
+        for (int i = 0; i < inExpected.length; i++) {
+            if (bytes[i] != inExpected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public ImageFormat detectFormat() throws IOException {
+        byte[] signature = readBytes(0, ImageFormat.SIGNATURE_LENGTH);
+        return ImageFormat.detect(signature, signature.length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.imagemetadata;
+
+/**
+ * The image formats we can read without an external tool, detected from the
+ * first bytes of the file (never from the file name or the mime type)
+ *
+ * @since 7.1
+ */
+public enum ImageFormat {
+    JPEG, PNG, GIF, TIFF, UNKNOWN;
+
+    /**
+     * Number of bytes needed by {@link #detect(byte[], int)}
+     */
+    public static final int SIGNATURE_LENGTH = 8;
+
+    protected static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N',
+            'G', '\r', '\n', 0x1A, '\n' };
+
+    public static ImageFormat detect(byte[] inBytes, int inLength) {
+
+        if (inLength >= 3 && (inBytes[0] & 0xFF) == 0xFF
+                && (inBytes[1] & 0xFF) == 0xD8 && (inBytes[2] & 0xFF) == 0xFF) {
+            return JPEG;
+        }
+
+        if (inLength >= PNG_SIGNATURE.length) {
+            boolean isPNG = true;
+            for (int i = 0; i < PNG_SIGNATURE.length && isPNG; i++) {
+                isPNG = inBytes[i] == PNG_SIGNATURE[i];
+            }
+            if (isPNG) {
+                return PNG;
+            }
+        }
+
+        if (inLength >= 6 && inBytes[0] == 'G' && inBytes[1] == 'I'
+                && inBytes[2] == 'F' && inBytes[3] == '8'
+                && (inBytes[4] == '7' || inBytes[4] == '9')
+                && inBytes[5] == 'a') {
+            return GIF;
+        }
+
+        if (inLength >= 4
+                && ((inBytes[0] == 'I' && inBytes[1] == 'I' && inBytes[2] == 42 && inBytes[3] == 0) || (inBytes[0] == 'M'
+                        && inBytes[1] == 'M' && inBytes[2] == 0 && inBytes[3] == 42))) {
+            return TIFF;
+        }
+
+        return UNKNOWN;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.imagemetadata;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.HashMap;
+
+import org.nuxeo.imagemetadata.ImageMetadataConstants.*;
+
+/**
+ * The values of {@link ImageMetadataConstants#DEFAULT_KEYS}, as read from the
+ * header of the file by {@link ImageHeaderParser}.
+ * <p>
+ * {@link #toMetadata()} returns them formatted the same way ImageMagick
+ * formats them, so they can be used in place of the result of
+ * <code>ImageMetadataReader#getMetadata</code>.
+ *
+ * @since 7.1
+ */
+public class ImageHeaderInfo {
+
+    /**
+     * The keys {@link ImageHeaderParser} can handle (case sensitive)
+     */
+    public static final String[] SUPPORTED_KEYS = ImageMetadataConstants.DEFAULT_KEYS;
+
+    protected ImageFormat format;
+
+    protected int width;
+
+    protected int height;
+
+    protected String colorspace;
+
+    protected double xResolution;
+
+    protected double yResolution;
+
+    protected String units = RESOLUTION_UNITS.UNDEFINED;
+
+    public ImageHeaderInfo(ImageFormat inFormat, int inWidth, int inHeight,
+            String inColorspace) {
+        format = inFormat;
+        width = inWidth;
+        height = inHeight;
+        colorspace = inColorspace;
+    }
+
+    public static boolean isSupportedKey(String inKey) {
+        for (String key : SUPPORTED_KEYS) {
+            if (key.equals(inKey)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * inUnits must be one of ImageMetadataConstants.RESOLUTION_UNITS
+     */
+    public void setResolution(double inX, double inY, String inUnits) {
+        xResolution = inX;
+        yResolution = inY;
+        units = inUnits;
+    }
+
+    public void setUnits(String inUnits) {
+        units = inUnits;
+    }
+
+    public ImageFormat getFormat() {
+        return format;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public String getColorspace() {
+        return colorspace;
+    }
+
+    public double getXResolution() {
+        return xResolution;
+    }
+
+    public double getYResolution() {
+        return yResolution;
+    }
+
+    public String getUnits() {
+        return units;
+    }
+
+    public boolean hasResolution() {
+        return xResolution > 0 && yResolution > 0;
+    }
+
+    /**
+     * @return the resolution as "XxY", as ImageMagick returns it, or "" if
+     *         there is no resolution in the file (GIF is realigned to "72x72")
+     */
+    public String getResolution() {
+        if (hasResolution()) {
+            return formatNumber(xResolution) + "x" + formatNumber(yResolution);
+        }
+        if (format == ImageFormat.GIF) {
+            return "72x72";
+        }
+        return "";
+    }
+
+    public XYResolutionDPI getResolutionDPI() {
+        if (!hasResolution() && format == ImageFormat.GIF) {
+            return new XYResolutionDPI(72, 72, units);
+        }
+        return new XYResolutionDPI(xResolution, yResolution, units);
+    }
+
+    /**
+     * @return a map with the values of the default keys, same format as
+     *         ImageMagick
+     */
+    public HashMap<String, String> toMetadata() {
+
+        HashMap<String, String> result = new HashMap<String, String>();
+        result.put(KEYS.WIDTH, "" + width);
+        result.put(KEYS.HEIGHT, "" + height);
+        result.put(KEYS.COLORSPACE, colorspace);
+        result.put(KEYS.RESOLUTION, getResolution());
+        result.put(KEYS.UNITS, units);
+
+        return result;
+    }
+
+    /*
+     * Same as the "%g" of ImageMagick: 6 significant digits, no trailing zeros
+     */
+    protected static String formatNumber(double inValue) {
+        return new BigDecimal(inValue).round(new MathContext(6)).stripTrailingZeros().toPlainString();
+    }
+}
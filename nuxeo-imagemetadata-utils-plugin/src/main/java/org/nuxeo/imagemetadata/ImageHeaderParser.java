@@ -0,0 +1,446 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.imagemetadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.imagemetadata.ImageMetadataConstants.*;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Reads width, height, colorspace and resolution directly from the header of
+ * JPEG, PNG, GIF and TIFF files, without starting an external tool. Only the
+ * few bytes holding the values are read.
+ * <p>
+ * The goal is to return exactly what ImageMagick would return. So when the
+ * file contains something that could make ImageMagick return different values
+ * (an EXIF or Photoshop resolution without JFIF density, a multi-page TIFF,
+ * an unusual colorspace, ...), the parser gives up and returns
+ * null: the caller then uses the external tool.
+ *
+ * @since 7.1
+ */
+public class ImageHeaderParser {
+
+    private static final Log log = LogFactory.getLog(ImageHeaderParser.class);
+
+    /**
+     * nuxeo.conf property. Set it to false to always use the external tools
+     */
+    public static final String ENABLED_PROP = "imagemetadata.headerparser.enabled";
+
+    protected static final byte[] JFIF_ID = "JFIF\0".getBytes(StandardCharsets.US_ASCII);
+
+    protected static final byte[] EXIF_ID = "Exif\0\0".getBytes(StandardCharsets.US_ASCII);
+
+    protected static final byte[] PHOTOSHOP_ID = "Photoshop 3.0\0".getBytes(StandardCharsets.US_ASCII);
+
+    protected static final String COLORSPACE_RGB = "sRGB";
+
+    protected static final String COLORSPACE_GRAY = "Gray";
+
+    protected static final String COLORSPACE_CMYK = "CMYK";
+
+    public static boolean isEnabled() {
+        return !"false".equals(Framework.getProperty(ENABLED_PROP, "true"));
+    }
+
+    /**
+     * @param inFile
+     * @return the values, or null if the format is not handled or the file
+     *         contains something we can't interpret the same way ImageMagick
+     *         does
+     */
+    public static ImageHeaderInfo parse(File inFile) {
+
+        try (ImageBytesReader reader = new ImageBytesReader(inFile)) {
+            return parse(reader);
+        } catch (IOException e) {
+            // Truncated or corrupted file: let the external tool handle it
+            log.debug("Cannot parse the header of " + inFile, e);
+            return null;
+        }
+    }
+
+    public static ImageHeaderInfo parse(ImageBytesReader inReader)
+            throws IOException {
+
+        switch (inReader.detectFormat()) {
+        case JPEG:
+            return parseJPEG(inReader);
+
+        case PNG:
+            return parsePNG(inReader);
+
+        case GIF:
+            return parseGIF(inReader);
+
+        case TIFF:
+            return parseTIFF(inReader);
+
+        default:
+            return null;
+        }
+    }
+
+    protected static ImageHeaderInfo parseJPEG(ImageBytesReader inReader)
+            throws IOException {
+
+        inReader.setByteOrder(ByteOrder.BIG_ENDIAN);
+
+        boolean hasJFIF = false, hasOtherResolution = false;
+        int jfifUnits = 0, jfifX = 0, jfifY = 0;
+
+        long pos = 2;
+        while (true) {
+            if (inReader.readU8(pos) != 0xFF) {
+                return null;
+            }
+            int marker = inReader.readU8(pos + 1);
+            if (marker == 0xFF) {
+                // Fill byte
+                pos += 1;
+                continue;
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                // No length for these ones
+                pos += 2;
+                continue;
+            }
+            if (marker == 0xD9 || marker == 0xDA) {
+                // End of image or start of scan before any SOFn
+                return null;
+            }
+
+            int length = inReader.readU16(pos + 2);
+            long data = pos + 4;
+            if (marker == 0xE0 && inReader.matches(data, JFIF_ID)) {
+                hasJFIF = true;
+                jfifUnits = inReader.readU8(data + 7);
+                jfifX = inReader.readU16(data + 8);
+                jfifY = inReader.readU16(data + 10);
+
+            } else if ((marker == 0xE1 && inReader.matches(data, EXIF_ID))
+                    || (marker == 0xED && inReader.matches(data, PHOTOSHOP_ID))) {
+                hasOtherResolution = true;
+
+            } else if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4
+                    && marker != 0xC8 && marker != 0xCC) {
+                // SOFn: we have everything we need (APPn are before)
+                int height = inReader.readU16(data + 1);
+                int width = inReader.readU16(data + 3);
+                int components = inReader.readU8(data + 5);
+                if (width == 0 || height == 0) {
+                    return null;
+                }
+
+                String colorspace;
+                switch (components) {
+                case 1:
+                    colorspace = COLORSPACE_GRAY;
+                    break;
+                case 3:
+                    colorspace = COLORSPACE_RGB;
+                    break;
+                case 4:
+                    colorspace = COLORSPACE_CMYK;
+                    break;
+                default:
+                    return null;
+                }
+
+                ImageHeaderInfo info = new ImageHeaderInfo(ImageFormat.JPEG,
+                        width, height, colorspace);
+                // Same rule as ImageMagick: a JFIF density of 1 is just an
+                // aspect ratio
+                if (hasJFIF && jfifX != 1 && jfifY != 1) {
+                    String units;
+                    switch (jfifUnits) {
+                    case 1:
+                        units = RESOLUTION_UNITS.PIXELS_PER_INCH;
+                        break;
+                    case 2:
+                        units = RESOLUTION_UNITS.PIXELS_PER_CENTIMETER;
+                        break;
+                    default:
+                        units = RESOLUTION_UNITS.UNDEFINED;
+                        break;
+                    }
+                    info.setResolution(jfifX, jfifY, units);
+                } else if (hasOtherResolution) {
+                    // ImageMagick may use the EXIF or Photoshop resolution
+                    return null;
+                }
+                return info;
+            }
+
+            pos += 2 + length;
+        }
+    }
+
+    protected static ImageHeaderInfo parsePNG(ImageBytesReader inReader)
+            throws IOException {
+
+        inReader.setByteOrder(ByteOrder.BIG_ENDIAN);
+
+        // IHDR must be the first chunk
+        long pos = 8;
+        if (!"IHDR".equals(readChunkType(inReader, pos))) {
+            return null;
+        }
+        long width = inReader.readU32(pos + 8);
+        long height = inReader.readU32(pos + 12);
+        int colorType = inReader.readU8(pos + 17);
+        if (width == 0 || height == 0 || width > Integer.MAX_VALUE
+                || height > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        String colorspace;
+        switch (colorType) {
+        case 0:
+        case 4:
+            colorspace = COLORSPACE_GRAY;
+            break;
+        case 2:
+        case 3:
+        case 6:
+            colorspace = COLORSPACE_RGB;
+            break;
+        default:
+            return null;
+        }
+        ImageHeaderInfo info = new ImageHeaderInfo(ImageFormat.PNG,
+                (int) width, (int) height, colorspace);
+
+        // pHYs, if any, is before the first IDAT
+        pos += 12 + inReader.readU32(pos);
+        while (pos + 8 <= inReader.size()) {
+            long length = inReader.readU32(pos);
+            String type = readChunkType(inReader, pos);
+            if ("IDAT".equals(type) || "IEND".equals(type)) {
+                break;
+            }
+            if ("pHYs".equals(type) && length >= 9) {
+                long x = inReader.readU32(pos + 8);
+                long y = inReader.readU32(pos + 12);
+                int unit = inReader.readU8(pos + 16);
+                if (unit == 1) {
+                    // Pixels per meter, ImageMagick displays pixels per
+                    // centimeter
+                    info.setResolution(x / 100.0, y / 100.0,
+                            RESOLUTION_UNITS.PIXELS_PER_CENTIMETER);
+                } else {
+                    info.setResolution(x, y, RESOLUTION_UNITS.UNDEFINED);
+                }
+                break;
+            }
+            pos += 12 + length;
+        }
+
+        return info;
+    }
+
+    protected static String readChunkType(ImageBytesReader inReader,
+            long inChunkPos) throws IOException {
+        return new String(inReader.readBytes(inChunkPos + 4, 4),
+                StandardCharsets.US_ASCII);
+    }
+
+    protected static ImageHeaderInfo parseGIF(ImageBytesReader inReader)
+            throws IOException {
+
+        inReader.setByteOrder(ByteOrder.LITTLE_ENDIAN);
+
+        // ImageMagick returns the size of the image, not the logical screen
+        // size. Also, for an animated GIF, it returns the values of the last
+        // frame, so we must walk all the frames.
+        int flags = inReader.readU8(10);
+        long pos = 13;
+        if ((flags & 0x80) != 0) {
+            pos += 3 * (1 << ((flags & 0x07) + 1));
+        }
+
+        int width = 0, height = 0, imageCount = 0;
+        boolean done = false;
+        while (!done) {
+            int blockType = inReader.readU8(pos);
+            switch (blockType) {
+            case 0x2C:
+                // Image descriptor
+                imageCount += 1;
+                width = inReader.readU16(pos + 5);
+                height = inReader.readU16(pos + 7);
+                int imageFlags = inReader.readU8(pos + 9);
+                pos += 10;
+                if ((imageFlags & 0x80) != 0) {
+                    pos += 3 * (1 << ((imageFlags & 0x07) + 1));
+                }
+                // LZW minimum code size, then the data
+                pos = skipGIFSubBlocks(inReader, pos + 1);
+                break;
+
+            case 0x21:
+                // Extension
+                pos = skipGIFSubBlocks(inReader, pos + 2);
+                break;
+
+            case 0x3B:
+                // Trailer
+                done = true;
+                break;
+
+            default:
+                return null;
+            }
+        }
+
+        if (imageCount == 0 || width == 0 || height == 0) {
+            return null;
+        }
+        return new ImageHeaderInfo(ImageFormat.GIF, width, height,
+                COLORSPACE_RGB);
+    }
+
+    protected static long skipGIFSubBlocks(ImageBytesReader inReader,
+            long inPos) throws IOException {
+        long pos = inPos;
+        int size;
+        while ((size = inReader.readU8(pos)) != 0) {
+            pos += 1 + size;
+        }
+        return pos + 1;
+    }
+
+    protected static ImageHeaderInfo parseTIFF(ImageBytesReader inReader)
+            throws IOException {
+
+        inReader.setByteOrder(inReader.readU8(0) == 'I' ? ByteOrder.LITTLE_ENDIAN
+                : ByteOrder.BIG_ENDIAN);
+
+        long ifd = inReader.readU32(4);
+        int count = inReader.readU16(ifd);
+
+        long width = 0, height = 0;
+        int photometric = -1, resolutionUnit = 2;
+        double xRes = 0, yRes = 0;
+        for (int i = 0; i < count; i++) {
+            long entry = ifd + 2 + 12 * i;
+            int tag = inReader.readU16(entry);
+            int type = inReader.readU16(entry + 2);
+            switch (tag) {
+            case 256:
+                width = readTIFFInteger(inReader, entry, type);
+                break;
+            case 257:
+                height = readTIFFInteger(inReader, entry, type);
+                break;
+            case 262:
+                photometric = (int) readTIFFInteger(inReader, entry, type);
+                break;
+            case 282:
+                xRes = readTIFFRational(inReader, entry, type);
+                break;
+            case 283:
+                yRes = readTIFFRational(inReader, entry, type);
+                break;
+            case 296:
+                resolutionUnit = (int) readTIFFInteger(inReader, entry, type);
+                break;
+            }
+        }
+
+        // Multi-page: ImageMagick returns the values of the last page
+        long nextIFD = inReader.readU32(ifd + 2 + 12 * count);
+        if (nextIFD != 0) {
+            return null;
+        }
+        if (width <= 0 || height <= 0 || width > Integer.MAX_VALUE
+                || height > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        String colorspace;
+        switch (photometric) {
+        case 0:
+        case 1:
+            colorspace = COLORSPACE_GRAY;
+            break;
+        case 2:
+        case 3:
+            colorspace = COLORSPACE_RGB;
+            break;
+        case 5:
+            colorspace = COLORSPACE_CMYK;
+            break;
+        default:
+            return null;
+        }
+
+        String units;
+        switch (resolutionUnit) {
+        case 2:
+            units = RESOLUTION_UNITS.PIXELS_PER_INCH;
+            break;
+        case 3:
+            units = RESOLUTION_UNITS.PIXELS_PER_CENTIMETER;
+            break;
+        default:
+            units = RESOLUTION_UNITS.UNDEFINED;
+            break;
+        }
+
+        ImageHeaderInfo info = new ImageHeaderInfo(ImageFormat.TIFF,
+                (int) width, (int) height, colorspace);
+        info.setResolution(xRes, yRes, units);
+        return info;
+    }
+
+    /*
+     * SHORT or LONG, stored in the entry itself
+     */
+    protected static long readTIFFInteger(ImageBytesReader inReader,
+            long inEntry, int inType) throws IOException {
+        switch (inType) {
+        case 3:
+            return inReader.readU16(inEntry + 8);
+        case 4:
+            return inReader.readU32(inEntry + 8);
+        default:
+            return -1;
+        }
+    }
+
+    /*
+     * RATIONAL, stored at the offset given in the entry
+     */
+    protected static double readTIFFRational(ImageBytesReader inReader,
+            long inEntry, int inType) throws IOException {
+        if (inType != 5) {
+            return 0;
+        }
+        long offset = inReader.readU32(inEntry + 8);
+        long numerator = inReader.readU32(offset);
+        long denominator = inReader.readU32(offset + 4);
+        return denominator == 0 ? 0 : (double) numerator / denominator;
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.imagemetadata;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.nuxeo.ecm.core.api.ClientException;
+
+/**
+ * Cache of the results of {@link ImageMetadataReader}, shared by all the
+ * readers. The key is the digest of the blob + the tool + the requested keys,
+ * so the same binary (re-import, new version, copy, ...) is not sent again to
+ * the tools.
+ * <p>
+ * The least recently used entries are evicted when there are too many of them
+ * or when they use too much memory. Failures (the tool can't read the blob)
+ * are also cached, for a shorter time.
+ * <p>
+ * The cache is configured with the following properties (nuxeo.conf):
+ * <ul>
+ * <li><code>imagemetadata.cache.maxEntries</code>: Max. number of entries
+ * (default 1000). 0 disables the cache</li>
+ * <li><code>imagemetadata.cache.maxBytes</code>: Max. (estimated) memory used
+ * by the entries (default 16MB)</li>
+ * <li><code>imagemetadata.cache.ttl</code>: Time to live of an entry, in
+ * seconds (default 3600)</li>
+ * <li><code>imagemetadata.cache.failureTtl</code>: Time to live of a failure,
+ * in seconds (default 300)</li>
+ * </ul>
+ *
+ * @since 7.1
+ */
+public class ImageMetadataCache {
+
+    public static final String MAX_ENTRIES_PROP = "imagemetadata.cache.maxEntries";
+
+    public static final String MAX_BYTES_PROP = "imagemetadata.cache.maxBytes";
+
+    public static final String TTL_PROP = "imagemetadata.cache.ttl";
+
+    public static final String FAILURE_TTL_PROP = "imagemetadata.cache.failureTtl";
+
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    public static final int DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    public static final int DEFAULT_TTL = 3600;
+
+    public static final int DEFAULT_FAILURE_TTL = 300;
+
+    // Rough overhead of an entry (map entry, key, CacheEntry)
+    protected static final int ENTRY_OVERHEAD = 128;
+
+    protected static ImageMetadataCache instance = null;
+
+    protected final int maxEntries;
+
+    protected final long maxBytes;
+
+    protected final long ttlMs;
+
+    protected final long failureTtlMs;
+
+    // Access order => the eldest entry is the least recently used one
+    protected final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>(
+            16, 0.75f, true);
+
+    protected long bytes = 0;
+
+    protected long hits = 0;
+
+    protected long failureHits = 0;
+
+    protected long misses = 0;
+
+    protected long evictions = 0;
+
+    protected static class CacheEntry {
+
+        protected final Object value;
+
+        protected final String failure;
+
+        protected final long expires;
+
+        protected final long size;
+
+        protected CacheEntry(Object inValue, String inFailure, long inExpires,
+                long inSize) {
+            value = inValue;
+            failure = inFailure;
+            expires = inExpires;
+            size = inSize;
+        }
+    }
+
+    public ImageMetadataCache(int inMaxEntries, long inMaxBytes, int inTtl,
+            int inFailureTtl) {
+        maxEntries = inMaxEntries;
+        maxBytes = inMaxBytes;
+        ttlMs = inTtl * 1000L;
+        failureTtlMs = inFailureTtl * 1000L;
+    }
+
+    public static synchronized ImageMetadataCache getInstance() {
+
+        if (instance == null) {
+            instance = new ImageMetadataCache(
+                    ExifToolProcessPool.getIntProperty(MAX_ENTRIES_PROP,
+                            DEFAULT_MAX_ENTRIES),
+                    ExifToolProcessPool.getIntProperty(MAX_BYTES_PROP,
+                            DEFAULT_MAX_BYTES),
+                    ExifToolProcessPool.getIntProperty(TTL_PROP, DEFAULT_TTL),
+                    ExifToolProcessPool.getIntProperty(FAILURE_TTL_PROP,
+                            DEFAULT_FAILURE_TTL));
+        }
+
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return maxEntries > 0 && maxBytes > 0;
+    }
+
+    /**
+     * Builds the key of an entry. The order of the requested keys does not
+     * matter.
+     *
+     * @param inDigest digest of the blob
+     * @param inWhat the tool (or kind of result)
+     * @param inKeys the requested keys, null or empty for all
+     * @return the key
+     */
+    public static String buildKey(String inDigest, String inWhat,
+            String[] inKeys) {
+
+        String keys = "*";
+        if (inKeys != null && inKeys.length > 0) {
+            String[] sorted = inKeys.clone();
+            for (int i = 0; i < sorted.length; i++) {
+                if (sorted[i] == null) {
+                    sorted[i] = "";
+                }
+            }
+            Arrays.sort(sorted);
+            keys = Arrays.toString(sorted);
+        }
+        return inDigest + "/" + inWhat + "/" + keys;
+    }
+
+    /**
+     * @return a copy of the cached values, or null if not in the cache
+     * @throws ClientException if the reading failed the last time
+     */
+    public HashMap<String, String> getMetadata(String inKey)
+            throws ClientException {
+
+        @SuppressWarnings("unchecked")
+        HashMap<String, String> value = (HashMap<String, String>) get(inKey);
+        return value == null ? null : new HashMap<String, String>(value);
+    }
+
+    /**
+     * @return the cached value, or null if not in the cache
+     * @throws ClientException if the reading failed the last time
+     */
+    public String getString(String inKey) throws ClientException {
+        return (String) get(inKey);
+    }
+
+    public void putMetadata(String inKey, HashMap<String, String> inValues) {
+
+        long size = ENTRY_OVERHEAD;
+        for (Map.Entry<String, String> entry : inValues.entrySet()) {
+            size += ENTRY_OVERHEAD / 2 + 2 * length(entry.getKey()) + 2
+                    * length(entry.getValue());
+        }
+        put(inKey, new HashMap<String, String>(inValues), null, ttlMs, size);
+    }
+
+    public void putString(String inKey, String inValue) {
+        put(inKey, inValue, null, ttlMs, ENTRY_OVERHEAD + 2 * length(inValue));
+    }
+
+    /**
+     * Next calls to the getters for this key throw a ClientException with
+     * this message, until the failure expires.
+     */
+    public void putFailure(String inKey, String inMessage) {
+        String message = inMessage == null ? "Cannot read the blob"
+                : inMessage;
+        put(inKey, null, message, failureTtlMs, ENTRY_OVERHEAD + 2
+                * message.length());
+    }
+
+    protected static int length(String inValue) {
+        return inValue == null ? 0 : inValue.length();
+    }
+
+    protected Object get(String inKey) throws ClientException {
+
+        if (!isEnabled()) {
+            return null;
+        }
+
+        CacheEntry entry;
+        synchronized (this) {
+            entry = entries.get(inKey);
+            if (entry != null && entry.expires < System.currentTimeMillis()) {
+                remove(inKey);
+                entry = null;
+            }
+            if (entry == null) {
+                misses += 1;
+                return null;
+            }
+            if (entry.failure != null) {
+                failureHits += 1;
+            } else {
+                hits += 1;
+            }
+        }
+
+        if (entry.failure != null) {
+            throw new ClientException(entry.failure);
+        }
+        return entry.value;
+    }
+
+    protected synchronized void put(String inKey, Object inValue,
+            String inFailure, long inTtlMs, long inSize) {
+
+        if (!isEnabled() || inSize > maxBytes) {
+            return;
+        }
+
+        remove(inKey);
+        entries.put(inKey, new CacheEntry(inValue, inFailure,
+                System.currentTimeMillis() + inTtlMs, inSize));
+        bytes += inSize;
+
+        Iterator<Map.Entry<String, CacheEntry>> it = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes)
+                && it.hasNext()) {
+            CacheEntry eldest = it.next().getValue();
+            it.remove();
+            bytes -= eldest.size;
+            evictions += 1;
+        }
+    }
+
+    protected void remove(String inKey) {
+        CacheEntry entry = entries.remove(inKey);
+        if (entry != null) {
+            bytes -= entry.size;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getFailureHits() {
+        return failureHits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return hits (including failures) / (hits + misses), 0 if the cache was
+     *         never used
+     */
+    public synchronized double getHitRatio() {
+        long total = hits + failureHits + misses;
+        return total == 0 ? 0 : (double) (hits + failureHits) / total;
+    }
+}
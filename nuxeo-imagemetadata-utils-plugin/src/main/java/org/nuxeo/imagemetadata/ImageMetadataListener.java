@@ -0,0 +1,211 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.imagemetadata;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.event.DocumentEventTypes;
+import org.nuxeo.ecm.core.api.model.PropertyException;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventContext;
+import org.nuxeo.ecm.core.event.EventListener;
+import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
+import org.nuxeo.runtime.api.Framework;
+
+import com.codahale.metrics.Timer;
+
+/**
+ * Extracts the metadata when a document is created, or when the blob of a
+ * document is modified, so there is no need to call the
+ * <code>ExtractMetadataInDocument</code> operation in a chain.
+ * <p>
+ * Nothing is done when the blob is not modified (a change of the title, of
+ * the tags, ...), or when its digest is the one recorded by the last
+ * extraction (see
+ * {@link DocumentMetadataUpdater#markExtracted(DocumentModel, String)}): no
+ * tool is started.
+ * <p>
+ * Disabled by default. Configured with the following properties
+ * (nuxeo.conf):
+ * <ul>
+ * <li><code>imagemetadata.listener.enabled</code>: true to enable the
+ * listener</li>
+ * <li><code>imagemetadata.listener.xpath</code>: the blob (default
+ * <code>file:content</code>)</li>
+ * <li><code>imagemetadata.listener.properties</code>: the properties to
+ * extract, comma separated <code>xpath=Metadata Key</code> (same as the
+ * operation). Empty (default): the values of the <code>image_metadata</code>
+ * schema</li>
+ * <li><code>imagemetadata.listener.tool</code>: ImageMagick (default),
+ * GraphicsMagick, ExifTool or Auto</li>
+ * <li><code>imagemetadata.listener.docTypes</code>: comma separated document
+ * types. Empty (default): all the types</li>
+ * <li><code>imagemetadata.listener.async</code>: true to extract in the
+ * <code>imageMetadata</code> work queue (see {@link ExtractMetadataWork}),
+ * after the transaction is committed</li>
+ * </ul>
+ *
+ * @since 7.1
+ */
+public class ImageMetadataListener implements EventListener {
+
+    private static final Log log = LogFactory.getLog(ImageMetadataListener.class);
+
+    public static final String ENABLED_PROP = "imagemetadata.listener.enabled";
+
+    public static final String XPATH_PROP = "imagemetadata.listener.xpath";
+
+    public static final String PROPERTIES_PROP = "imagemetadata.listener.properties";
+
+    public static final String TOOL_PROP = "imagemetadata.listener.tool";
+
+    public static final String DOC_TYPES_PROP = "imagemetadata.listener.docTypes";
+
+    public static final String ASYNC_PROP = "imagemetadata.listener.async";
+
+    /**
+     * Context data of a document: when true, the listener ignores it
+     */
+    public static final String DISABLE_LISTENER = "disableImageMetadataListener";
+
+    public static boolean isEnabled() {
+        return "true".equals(Framework.getProperty(ENABLED_PROP, "false"));
+    }
+
+    @Override
+    public void handleEvent(Event inEvent) throws ClientException {
+
+        if (!isEnabled()) {
+            return;
+        }
+
+        EventContext ctx = inEvent.getContext();
+        if (!(ctx instanceof DocumentEventContext)) {
+            return;
+        }
+        DocumentModel doc = ((DocumentEventContext) ctx).getSourceDocument();
+        if (doc == null || doc.isProxy() || doc.isVersion()
+                || Boolean.TRUE.equals(doc.getContextData(DISABLE_LISTENER))
+                || !acceptsType(doc.getType())) {
+            return;
+        }
+
+        DocumentMetadataUpdater updater = getUpdater();
+        boolean created = DocumentEventTypes.DOCUMENT_CREATED.equals(inEvent.getName());
+        if (!created) {
+            try {
+                if (!doc.getProperty(updater.getXPath()).isDirty()) {
+                    return;
+                }
+            } catch (PropertyException e) {
+                return;
+            }
+        }
+
+        Blob blob = updater.getBlob(doc);
+        if (blob == null) {
+            return;
+        }
+        // When the queue is full, we do the work ourselves. The work compares
+        // the digests in its own thread
+        if (isAsync()
+                && ExtractMetadataWork.schedule(doc, updater.getXPath(),
+                        updater.getProperties(), updater.getTool(), true)) {
+            return;
+        }
+
+        // The digest may have to be computed (the whole blob is read): only
+        // when it can tell the values are up to date
+        String digest = null;
+        if (updater.mayBeUpToDate(doc)) {
+            digest = DocumentMetadataUpdater.getDigest(blob);
+            if (updater.isUpToDate(doc, digest)) {
+                return;
+            }
+        }
+
+        try (ImageMetadataReader reader = new ImageMetadataReader(blob)) {
+            if (!updater.update(doc, reader)) {
+                return;
+            }
+            if (digest == null) {
+                digest = DocumentMetadataUpdater.getDigest(blob);
+            }
+            updater.markExtracted(doc, digest);
+            if (created) {
+                // The document is already saved
+                doc.putContextData(DISABLE_LISTENER, true);
+                Timer.Context timer = ImageMetadataMetrics.startSave();
+                try {
+                    ctx.getCoreSession().saveDocument(doc);
+                } finally {
+                    timer.stop();
+                    doc.putContextData(DISABLE_LISTENER, false);
+                }
+            }
+        } catch (Exception e) {
+            // Never fails the creation or the modification of the document
+            log.warn("Cannot extract the metadata of " + doc.getId(), e);
+        }
+    }
+
+    protected static boolean isAsync() {
+        return "true".equals(Framework.getProperty(ASYNC_PROP, "false"));
+    }
+
+    protected static boolean acceptsType(String inType) {
+
+        Set<String> types = toSet(Framework.getProperty(DOC_TYPES_PROP, ""));
+        return types.isEmpty() || types.contains(inType);
+    }
+
+    protected static DocumentMetadataUpdater getUpdater() {
+
+        LinkedHashMap<String, String> properties = new LinkedHashMap<String, String>();
+        for (String mapping : Framework.getProperty(PROPERTIES_PROP, "").split(
+                ",")) {
+            int pos = mapping.indexOf('=');
+            if (pos > 0) {
+                properties.put(mapping.substring(0, pos).trim(),
+                        mapping.substring(pos + 1).trim());
+            }
+        }
+
+        return new DocumentMetadataUpdater(Framework.getProperty(XPATH_PROP,
+                "file:content"), properties,
+                DocumentMetadataUpdater.toolFromName(Framework.getProperty(
+                        TOOL_PROP, "ImageMagick")));
+    }
+
+    protected static Set<String> toSet(String inList) {
+
+        HashSet<String> result = new HashSet<String>();
+        for (String value : inList.split(",")) {
+            if (!value.trim().isEmpty()) {
+                result.add(value.trim());
+            }
+        }
+        return result;
+    }
+}
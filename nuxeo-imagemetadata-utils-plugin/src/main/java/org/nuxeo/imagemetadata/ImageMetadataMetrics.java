@@ -0,0 +1,196 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.imagemetadata;
+
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.imagemetadata.MetadataPlanner.BACKEND;
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+
+/**
+ * Metrics of the extractions, in the Nuxeo metrics registry (so they are
+ * exposed by the reporters configured in Nuxeo, and in JMX). All the names
+ * start with <code>nuxeo.imagemetadata</code>:
+ * <ul>
+ * <li><code>extract.{backend}.{format}</code>: duration of the calls to each
+ * backend (<code>header</code>, <code>exiftool</code>,
+ * <code>imagemagick</code>, <code>graphicsmagick</code>), by detected format
+ * (<code>mixed</code> for a batch of files)</li>
+ * <li><code>materialize</code> (timer) and <code>materialize.bytes</code>
+ * (counter): copies of blobs to temporary files.
+ * <code>materialize.reused</code> (counter): copies used again for the same
+ * blob (see {@link BlobMaterializer})</li>
+ * <li><code>parse.xmp</code>: reading the XMP packet directly from the file
+ * </li>
+ * <li><code>prefix.bytes</code> (histogram): bytes read from the blobs which
+ * are not backed by a file to parse their header or their XMP.
+ * <code>prefix.exceeded</code> (counter): parsers which needed more than the
+ * maximum prefix (see {@link PrefixBytesReader})</li>
+ * <li><code>save</code>: saving the documents once the values are set</li>
+ * <li><code>write</code> (timer) and <code>write.files</code> (counter):
+ * exiftool calls writing metadata into files, and the number of files written
+ * (see {@link ImageMetadataWriter})</li>
+ * <li><code>operation.{id}</code>: duration of the operations</li>
+ * <li><code>cache.hits</code>, <code>cache.failureHits</code>,
+ * <code>cache.misses</code>, <code>cache.evictions</code>,
+ * <code>cache.entries</code>, <code>cache.bytes</code>: gauges of the
+ * {@link ImageMetadataCache}</li>
+ * </ul>
+ * The metrics of the processes (launches, wall time, failures by cause) are
+ * in {@link org.nuxeo.im4java.ToolMetrics}.
+ *
+ * @since 7.1
+ */
+public class ImageMetadataMetrics {
+
+    public static final String PREFIX = "nuxeo.imagemetadata";
+
+    protected static final MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+
+    static {
+        registerCacheGauges();
+    }
+
+    private ImageMetadataMetrics() {
+    }
+
+    /**
+     * @param inBackend
+     * @param inFormat null for several files of any format
+     * @param inNanos
+     */
+    public static void recordExtraction(BACKEND inBackend,
+            ImageFormat inFormat, long inNanos) {
+        registry.timer(
+                MetricRegistry.name(PREFIX, "extract",
+                        inBackend.name().toLowerCase(),
+                        inFormat == null ? "mixed"
+                                : inFormat.name().toLowerCase())).update(
+                inNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public static void recordMaterialization(long inNanos, long inBytes) {
+        registry.timer(MetricRegistry.name(PREFIX, "materialize")).update(
+                inNanos, TimeUnit.NANOSECONDS);
+        registry.counter(MetricRegistry.name(PREFIX, "materialize", "bytes")).inc(
+                inBytes);
+    }
+
+    public static void recordMaterializationReuse() {
+        registry.counter(
+                MetricRegistry.name(PREFIX, "materialize", "reused")).inc();
+    }
+
+    public static void recordXMPParse(long inNanos) {
+        registry.timer(MetricRegistry.name(PREFIX, "parse", "xmp")).update(
+                inNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param inBytes bytes read from the blob
+     * @param inExceeded true if the parser needed more than the maximum
+     *            prefix
+     */
+    public static void recordPrefixRead(long inBytes, boolean inExceeded) {
+        registry.histogram(MetricRegistry.name(PREFIX, "prefix", "bytes")).update(
+                inBytes);
+        if (inExceeded) {
+            registry.counter(MetricRegistry.name(PREFIX, "prefix", "exceeded")).inc();
+        }
+    }
+
+    /**
+     * @param inNanos duration of the exiftool call
+     * @param inFiles number of files written by this call
+     */
+    public static void recordWrite(long inNanos, int inFiles) {
+        registry.timer(MetricRegistry.name(PREFIX, "write")).update(inNanos,
+                TimeUnit.NANOSECONDS);
+        registry.counter(MetricRegistry.name(PREFIX, "write", "files")).inc(
+                inFiles);
+    }
+
+    /**
+     * @return the context to stop once the documents are saved
+     */
+    public static Timer.Context startSave() {
+        return registry.timer(MetricRegistry.name(PREFIX, "save")).time();
+    }
+
+    /**
+     * @param inOperationId
+     * @return the context to stop at the end of the operation
+     */
+    public static Timer.Context startOperation(String inOperationId) {
+        return registry.timer(
+                MetricRegistry.name(PREFIX, "operation", inOperationId)).time();
+    }
+
+    protected static void registerCacheGauges() {
+
+        String hits = MetricRegistry.name(PREFIX, "cache", "hits");
+        if (registry.getGauges().containsKey(hits)) {
+            return;
+        }
+        registry.register(hits, new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return ImageMetadataCache.getInstance().getHits();
+            }
+        });
+        registry.register(MetricRegistry.name(PREFIX, "cache", "failureHits"),
+                new Gauge<Long>() {
+                    @Override
+                    public Long getValue() {
+                        return ImageMetadataCache.getInstance().getFailureHits();
+                    }
+                });
+        registry.register(MetricRegistry.name(PREFIX, "cache", "misses"),
+                new Gauge<Long>() {
+                    @Override
+                    public Long getValue() {
+                        return ImageMetadataCache.getInstance().getMisses();
+                    }
+                });
+        registry.register(MetricRegistry.name(PREFIX, "cache", "evictions"),
+                new Gauge<Long>() {
+                    @Override
+                    public Long getValue() {
+                        return ImageMetadataCache.getInstance().getEvictions();
+                    }
+                });
+        registry.register(MetricRegistry.name(PREFIX, "cache", "entries"),
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return ImageMetadataCache.getInstance().getEntryCount();
+                    }
+                });
+        registry.register(MetricRegistry.name(PREFIX, "cache", "bytes"),
+                new Gauge<Long>() {
+                    @Override
+                    public Long getValue() {
+                        return ImageMetadataCache.getInstance().getBytes();
+                    }
+                });
+    }
+}
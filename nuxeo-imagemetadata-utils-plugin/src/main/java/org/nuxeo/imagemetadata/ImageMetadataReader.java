@@ -17,71 +17,418 @@
 package org.nuxeo.imagemetadata;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
 import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.Properties;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+
+import javax.xml.stream.XMLStreamException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.im4java.core.ETOperation;
 import org.im4java.core.ExiftoolCmd;
 import org.im4java.core.IM4JavaException;
-import org.im4java.core.Info;
 import org.im4java.core.InfoException;
 import org.im4java.process.ArrayListOutputConsumer;
+import org.im4java.process.OutputConsumer;
+import org.im4java.process.Pipe;
+import org.nuxeo.im4java.BlobOutputConsumer;
+import org.nuxeo.im4java.Bulkhead;
+import org.nuxeo.im4java.IdentifyInfo;
+import org.nuxeo.im4java.KeyValueOutputConsumer;
+import org.nuxeo.im4java.PingInfo;
+import org.nuxeo.im4java.StringOutputConsumer;
+import org.nuxeo.im4java.TimedCommand;
+import org.nuxeo.im4java.ToolTimeoutException;
+import org.nuxeo.im4java.ToolUnavailableException;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.impl.blob.ByteArrayBlob;
 import org.nuxeo.ecm.platform.picture.api.BlobHelper;
-import org.nuxeo.im4java.StringOutputConsumer;
 import org.nuxeo.imagemetadata.ImageMetadataConstants.*;
 import org.nuxeo.runtime.api.Framework;
 
-public class ImageMetadataReader {
+/**
+ * Reads the metadata of a picture with ImageMagick, GraphicsMagick, ExifTool,
+ * or directly from the file.
+ * <p>
+ * When the blob is not backed by a file, a copy may be needed (see
+ * {@link BlobMaterializer}): close the reader once done, so the copy is
+ * deleted.
+ */
+public class ImageMetadataReader implements AutoCloseable {
 
     private static Log log = LogFactory.getLog(ImageMetadataReader.class);
 
+    /**
+     * nuxeo.conf property. Set it to false to always copy the blobs which are
+     * not backed by a file to a temp file before calling the tools
+     */
+    public static final String STREAMING_ENABLED_PROP = "imagemetadata.streaming.enabled";
+
+    /**
+     * nuxeo.conf property. Set it to true to stream the blobs which are not
+     * backed by a file to a new exiftool command, instead of copying them to
+     * a temp file read by the {@link ExifToolProcessPool}. Default is false:
+     * a new command is started for each blob, and exiftool returns other
+     * File:* tags (FileName, FileSize, Directory, ...) when it reads its
+     * standard input
+     */
+    public static final String EXIFTOOL_STREAMING_ENABLED_PROP = "imagemetadata.exiftool.streaming.enabled";
+
+    /**
+     * nuxeo.conf property. Set it to false to always use
+     * <code>identify -verbose</code>, even when only the dimensions (and
+     * colorspace, resolution, units) are needed
+     */
+    public static final String PING_ENABLED_PROP = "imagemetadata.ping.enabled";
+
+    /**
+     * nuxeo.conf property. When the blob is not backed by a file, the header
+     * and the XMP are read from the first bytes of the blob only (see
+     * {@link PrefixBytesReader}), never more than this number of bytes.
+     * Default is 4 MB, 0 disables these partial reads
+     */
+    public static final String PREFIX_MAX_BYTES_PROP = "imagemetadata.prefix.maxBytes";
+
+    public static final int DEFAULT_PREFIX_MAX_BYTES = 4 * 1024 * 1024;
+
+    // First read of a prefix. Enough for the header of most files
+    protected static final int PREFIX_INITIAL_BYTES = 64 * 1024;
+
+    /*
+     * identify -ping -format escapes, read in getMetadataWithPing(). %m is the
+     * format (GIF special case). GraphicsMagick has no %U or %[colorspace]
+     */
+    protected static final String[] PING_ESCAPES_IM = { "%w", "%h", "%m",
+            "%[colorspace]", "%U", "%x", "%y" };
+
+    protected static final String[] PING_ESCAPES_GM = { "%w", "%h", "%m" };
+
     protected String filePath = null;
 
-    protected static int exifToolAvailability = -1;
+    protected Blob blob = null;
+
+    // When the blob had to be copied to a file
+    protected BlobMaterializer.Copy copy = null;
+
+    protected Boolean streamable = null;
 
-    protected static String whyExifToolNotAvailable = "";
+    protected ImageFormat format = null;
 
-    protected static int graphicsMagickAvailability = -1;
+    // identify and gm identify are run once per reader (see getInfo())
+    protected final EnumMap<WHICH_TOOL, IdentifyInfo> infos = new EnumMap<WHICH_TOOL, IdentifyInfo>(
+            WHICH_TOOL.class);
 
-    protected static String whyGraphicsMagickNotAvailable = "";
+    // All the values returned by exiftool, once read
+    protected HashMap<String, String> exifToolValues = null;
 
-    protected static String SYNC_STRING = "ImageMetadataReader - lock";
+    protected SCAN_DEPTH scanDepth = SCAN_DEPTH.FULL;
 
+    protected ImageHeaderInfo headerInfo = null;
+
+    protected boolean headerInfoParsed = false;
+
+    protected static volatile int exifToolAvailability = -1;
+
+    protected static volatile String whyExifToolNotAvailable = "";
+
+    protected static volatile int graphicsMagickAvailability = -1;
+
+    protected static volatile String whyGraphicsMagickNotAvailable = "";
+
+    /**
+     * AUTO: the keys are split between the tools, see {@link MetadataPlanner}
+     */
     public enum WHICH_TOOL {
-        IMAGEMAGICK, EXIFTOOL, GRAPHICSMAGICK
+        IMAGEMAGICK, EXIFTOOL, GRAPHICSMAGICK, AUTO
     };
 
+    /**
+     * How much of the file the tools read (see
+     * {@link #setScanDepth(SCAN_DEPTH)})
+     *
+     * @since 7.1
+     */
+    public enum SCAN_DEPTH {
+        FULL, FAST, FASTEST
+    };
+
+    /**
+     * When the blob is not backed by a file, it is not copied to a temp file
+     * here. JPEG, PNG and GIF are streamed to the tools (stdin), the header
+     * and the XMP are parsed from the first bytes of the blob, the copy is
+     * done only when a file is really needed (other formats).
+     */
     public ImageMetadataReader(Blob inBlob) throws IOException {
 
+        blob = inBlob;
+
         // We try to directly get the full path of the binary, if possible
-        filePath = "";
-        try {
+        File f = getFileFromBlob(inBlob);
+        filePath = f == null ? null : f.getAbsolutePath();
+
+        if (filePath == null && !isStreamingEnabled()) {
+            getFilePath();
+        }
+    }
+
+    public ImageMetadataReader(String inFullPath) {
+        filePath = inFullPath;
+    }
+
+    public static boolean isStreamingEnabled() {
+        return !"false".equals(Framework.getProperty(STREAMING_ENABLED_PROP,
+                "true"));
+    }
+
+    /**
+     * @since 7.1
+     */
+    public static boolean isExifToolStreamingEnabled() {
+        return isStreamingEnabled()
+                && "true".equals(Framework.getProperty(
+                        EXIFTOOL_STREAMING_ENABLED_PROP, "false"));
+    }
+
+    /**
+     * Returns the path of the file, copying the blob to a temp file if it is
+     * not backed by a file.
+     *
+     * @since 7.1
+     */
+    protected String getFilePath() throws IOException {
+
+        if (filePath == null) {
+            copy = BlobMaterializer.getInstance().acquire(blob);
+            filePath = copy.getPath();
+        }
+        return filePath;
+    }
+
+    /**
+     * Releases the copy of the blob, if one was made. The values already read
+     * are still available. Reading others copies the blob again, the reader
+     * must then be closed again.
+     *
+     * @since 7.1
+     */
+    @Override
+    public void close() {
+        if (copy != null) {
+            BlobMaterializer.getInstance().release(copy);
+            copy = null;
+            filePath = null;
+        }
+    }
+
+    /*
+     * True if the blob is not backed by a file and its header can be parsed
+     * from its first bytes, without copying it (see openBytesReader())
+     */
+    protected boolean canReadPrefix() {
+        return filePath == null && blob != null && blob.getLength() > 0
+                && getPrefixMaxBytes() > 0;
+    }
+
+    protected static int getPrefixMaxBytes() {
+        return ExifToolProcessPool.getIntProperty(PREFIX_MAX_BYTES_PROP,
+                DEFAULT_PREFIX_MAX_BYTES);
+    }
+
+    /**
+     * Opens the file, or the first bytes of the blob when it is not backed by
+     * a file (see {@link PrefixBytesReader})
+     *
+     * @since 7.1
+     */
+    protected ImageBytesReader openBytesReader() throws IOException {
+
+        if (canReadPrefix()) {
+            return new PrefixBytesReader(blob.getStream(), blob.getLength(),
+                    PREFIX_INITIAL_BYTES, getPrefixMaxBytes());
+        }
+        return new ImageBytesReader(new File(getFilePath()));
+    }
+
+    /*
+     * Called once the parsers are done with the first bytes of the blob
+     */
+    protected void recordPrefixRead(ImageBytesReader inReader,
+            boolean inExceeded) {
+        if (inReader instanceof PrefixBytesReader) {
+            ImageMetadataMetrics.recordPrefixRead(
+                    ((PrefixBytesReader) inReader).getLoadedBytes(),
+                    inExceeded);
+        }
+    }
+
+    protected static void closeQuietly(ImageBytesReader inReader) {
+        if (inReader != null) {
+            try {
+                inReader.close();
+            } catch (IOException e) {
+                log.debug("Cannot close the file", e);
+            }
+        }
+    }
+
+    /*
+     * True if the blob is not backed by a file and the tools can read it
+     * sequentially from their standard input. TIFF (offsets anywhere in the
+     * file) and the formats we don't know are copied to a temp file.
+     */
+    protected boolean canStream() {
 
-            File f = BlobHelper.getFileFromBlob(inBlob);
-            filePath = f.getAbsolutePath();
+        if (filePath != null || blob == null || !isStreamingEnabled()) {
+            return false;
+        }
 
+        if (streamable == null) {
+            streamable = isStreamable(getFormat());
+        }
+
+        return streamable;
+    }
+
+    /*
+     * Same as canStream(), without creating a reader (which copies the blob
+     * to a file when streaming is disabled): only the first bytes of the blob
+     * are read
+     */
+    protected static boolean canStream(Blob inBlob) {
+
+        if (!isStreamingEnabled() || getFileFromBlob(inBlob) != null) {
+            return false;
+        }
+        try (InputStream in = inBlob.getStream()) {
+            return isStreamable(detectFormat(in));
+        } catch (IOException e) {
+            log.debug("Cannot read the signature of the blob", e);
+            return false;
+        }
+    }
+
+    protected static boolean isStreamable(ImageFormat inFormat) {
+
+        switch (inFormat) {
+        case JPEG:
+        case PNG:
+        case GIF:
+            return true;
+
+        default:
+            return false;
+        }
+    }
+
+    /*
+     * The file of the blob, or null if it is not backed by a file
+     */
+    protected static File getFileFromBlob(Blob inBlob) {
+        try {
+            return BlobHelper.getFileFromBlob(inBlob);
         } catch (Exception e) {
-            filePath = "";
+            return null;
         }
+    }
 
-        if (filePath.isEmpty()) {
-            File tempFile = File.createTempFile("IMDR-", "");
-            inBlob.transferTo(tempFile);
-            filePath = tempFile.getAbsolutePath();
-            tempFile.deleteOnExit();
-            Framework.trackFile(tempFile, this);
+    /**
+     * @return the format, detected from the first bytes of the file (or of the
+     *         blob). UNKNOWN if it is not one of the formats we can read
+     *         without a tool
+     *
+     * @since 7.1
+     */
+    public ImageFormat getFormat() {
+
+        if (format == null) {
+            format = ImageFormat.UNKNOWN;
+            try (InputStream in = filePath == null ? blob.getStream()
+                    : new FileInputStream(filePath)) {
+                format = detectFormat(in);
+            } catch (IOException e) {
+                log.debug("Cannot read the signature of the file", e);
+            }
         }
+
+        return format;
     }
 
-    public ImageMetadataReader(String inFullPath) {
-        filePath = inFullPath;
+    protected static ImageFormat detectFormat(InputStream inStream)
+            throws IOException {
+
+        byte[] signature = new byte[ImageFormat.SIGNATURE_LENGTH];
+        int count = 0;
+        while (count < signature.length) {
+            int read = inStream.read(signature, count, signature.length
+                    - count);
+            if (read < 0) {
+                break;
+            }
+            count += read;
+        }
+        return ImageFormat.detect(signature, count);
+    }
+
+    /*
+     * Runs identify (or gm identify) on the file, or on the stream (see
+     * canStream())
+     */
+    protected IdentifyInfo newInfo(boolean inUseGM) throws InfoException {
+
+        try {
+            long start = System.nanoTime();
+            IdentifyInfo info;
+            if (canStream()) {
+                try (InputStream in = blob.getStream()) {
+                    info = new IdentifyInfo(getImageName(true), in, inUseGM);
+                }
+            } else {
+                info = new IdentifyInfo(getImageName(false), null, inUseGM);
+            }
+            recordTiming(inUseGM ? MetadataPlanner.BACKEND.GRAPHICSMAGICK
+                    : MetadataPlanner.BACKEND.IMAGEMAGICK, System.nanoTime()
+                    - start);
+            return info;
+
+        } catch (IOException e) {
+            throw new InfoException(e);
+        }
+    }
+
+    /*
+     * The image given to identify (or gm identify): the path, or "-" when the
+     * blob is piped, followed by the "[0]" frame selector when only the first
+     * frame is read. The format is required in front of a piped "-[0]"
+     */
+    protected String getImageName(boolean inPiped) throws IOException {
+
+        if (scanDepth == SCAN_DEPTH.FULL) {
+            return inPiped ? "-" : getFilePath();
+        }
+        return (inPiped ? getFormat().name().toLowerCase() + ":-"
+                : getFilePath()) + "[0]";
+    }
+
+    /*
+     * Gives the duration of a call to a backend to the planner and to the
+     * metrics
+     */
+    protected void recordTiming(MetadataPlanner.BACKEND inBackend,
+            long inNanos) {
+        MetadataPlanner.getInstance().recordTiming(inBackend, inNanos);
+        ImageMetadataMetrics.recordExtraction(inBackend, getFormat(), inNanos);
     }
 
     protected void checkCommandLines() {
@@ -95,74 +442,303 @@ public class ImageMetadataReader {
 
     }
 
+    /**
+     * Uses {@link ToolCapabilityRegistry}, so no process is started, and the
+     * call never waits: false until the registry probed the tools. When
+     * inForceRetry is true, the registry probes the tools again in the
+     * background.
+     * <p>
+     * Without the Nuxeo runtime, the tool is probed here, once.
+     */
     public static boolean isExifToolAvailable(boolean inForceRetry) {
 
-        if (exifToolAvailability == -1 || inForceRetry) {
-
-            try {
-                Runtime.getRuntime().exec("exiftool -ver");
-                exifToolAvailability = 1;
-            } catch (Exception e) {
-                exifToolAvailability = 0;
-                whyExifToolNotAvailable = e.getMessage();
+        ToolCapabilityRegistry registry = ToolCapabilityRegistry.getRegistry();
+        if (registry != null) {
+            if (inForceRetry) {
+                registry.reprobe();
             }
+            return registry.isAvailable(WHICH_TOOL.EXIFTOOL);
+        }
+
+        if (exifToolAvailability == -1 || inForceRetry) {
+            ToolCapabilities c = ToolCapabilityRegistry.probe(
+                    WHICH_TOOL.EXIFTOOL,
+                    ToolCapabilityRegistry.DEFAULT_PROBE_TIMEOUT * 1000L);
+            whyExifToolNotAvailable = c.getError();
+            exifToolAvailability = c.isAvailable() ? 1 : 0;
         }
 
         return exifToolAvailability == 1;
     }
 
+    /**
+     * See isExifToolAvailable()
+     */
     public static boolean isGraphicsMagickAvailable(boolean inForceRetry) {
 
-        if (graphicsMagickAvailability == -1 || inForceRetry) {
-
-            try {
-                Runtime.getRuntime().exec("gm -version");
-                graphicsMagickAvailability = 1;
-            } catch (Exception e) {
-                graphicsMagickAvailability = 0;
-                whyGraphicsMagickNotAvailable = e.getMessage();
+        ToolCapabilityRegistry registry = ToolCapabilityRegistry.getRegistry();
+        if (registry != null) {
+            if (inForceRetry) {
+                registry.reprobe();
             }
+            return registry.isAvailable(WHICH_TOOL.GRAPHICSMAGICK);
+        }
+
+        if (graphicsMagickAvailability == -1 || inForceRetry) {
+            ToolCapabilities c = ToolCapabilityRegistry.probe(
+                    WHICH_TOOL.GRAPHICSMAGICK,
+                    ToolCapabilityRegistry.DEFAULT_PROBE_TIMEOUT * 1000L);
+            whyGraphicsMagickNotAvailable = c.getError();
+            graphicsMagickAvailability = c.isAvailable() ? 1 : 0;
         }
 
         return graphicsMagickAvailability == 1;
     }
 
+    /**
+     * The calls to each tool are limited by a {@link Bulkhead}. Its queue
+     * length and wait times tell if the node is saturated.
+     *
+     * @param inTool AUTO returns the bulkhead of ImageMagick
+     * @return the bulkhead of the tool
+     *
+     * @since 7.1
+     */
+    public static Bulkhead getBulkhead(WHICH_TOOL inTool) {
+        return Bulkhead.get(toToolName(inTool));
+    }
+
+    /**
+     * @return the name of the tool, as used by {@link TimedCommand}
+     *
+     * @since 7.1
+     */
+    public static String toToolName(WHICH_TOOL inTool) {
+        switch (inTool) {
+        case EXIFTOOL:
+            return TimedCommand.EXIFTOOL;
+
+        case GRAPHICSMAGICK:
+            return TimedCommand.GRAPHICSMAGICK;
+
+        default:
+            return TimedCommand.IMAGEMAGICK;
+        }
+    }
+
+    /**
+     * Wrapper for getAllMetadata(WHICH_TOOL inTool) using ImageMagick
+     */
     public String getAllMetadata() throws InfoException {
-        String result = "";
+        return getAllMetadata(WHICH_TOOL.IMAGEMAGICK);
+    }
+
+    /**
+     * Returns all the values, one <code>key=value</code> per line.
+     * <p>
+     * The tool is called only once per reader: if getMetadata() was already
+     * called with the same tool, its output is used. With ExifTool, this is
+     * the case only if getMetadataWithExifTool() was called with no keys.
+     * AUTO is ImageMagick here.
+     *
+     * @since 7.1
+     */
+    public String getAllMetadata(WHICH_TOOL inTool) throws InfoException {
+
+        StringBuilder result = new StringBuilder();
+
+        if (inTool == WHICH_TOOL.EXIFTOOL) {
+            for (Map.Entry<String, String> entry : getMetadataWithExifTool(
+                    null).entrySet()) {
+                result.append(entry.getKey()).append("=").append(
+                        entry.getValue()).append("\n");
+            }
+            return result.toString();
+        }
 
-        Info imageInfo = new Info(filePath);
+        IdentifyInfo imageInfo = getInfo(inTool == WHICH_TOOL.GRAPHICSMAGICK);
 
         Enumeration<String> props = imageInfo.getPropertyNames();
         while (props.hasMoreElements()) {
             String propertyName = props.nextElement();
-            result += propertyName + "=" + imageInfo.getProperty(propertyName)
-                    + "\n";
+            result.append(propertyName).append("=").append(
+                    imageInfo.getProperty(propertyName)).append("\n");
         }
 
-        return result;
+        return result.toString();
     }
 
     /*
-     * We want to protect the global change to im4java. For non blocking use of
-     * GraohicsMagick, use the dedicated classes: GMOperation and
-     * GraphicsMagickCmd
+     * Runs identify (or gm identify) only the first time
      */
-    protected synchronized Info getInfoFromGraphicsMagick()
-            throws ClientException {
+    protected IdentifyInfo getInfo(boolean inUseGM) throws InfoException {
+
+        WHICH_TOOL tool = inUseGM ? WHICH_TOOL.GRAPHICSMAGICK
+                : WHICH_TOOL.IMAGEMAGICK;
+        IdentifyInfo info = infos.get(tool);
+        if (info == null) {
+            info = newInfo(inUseGM);
+            infos.put(tool, info);
+        }
+        return info;
+    }
 
-        Info imageInfo = null;
-        Properties props = System.getProperties();
-        props.setProperty("im4java.useGM", "true");
+    /*
+     * The tool is chosen by IdentifyInfo itself, we don't touch the global
+     * "im4java.useGM" property, so no need to lock.
+     */
+    protected IdentifyInfo getInfoFromGraphicsMagick() throws ClientException {
 
         try {
-            imageInfo = new Info(filePath);
+            return getInfo(true);
         } catch (InfoException e) {
             throw new ClientException(e);
-        } finally {
-            props.setProperty("im4java.useGM", "false");
         }
+    }
+
+    /**
+     * Reads width, height, colorspace and resolution directly from the file,
+     * without starting an external tool (see {@link ImageHeaderParser}).
+     *
+     * @return the values, or null if the format is not handled (or the parser
+     *         is disabled, or the values are not in the first
+     *         <code>imagemetadata.prefix.maxBytes</code> of a blob which is
+     *         not backed by a file). Also null when the scan depth is not
+     *         FULL: like identify, the parser returns the values of the last
+     *         frame (see {@link #setScanDepth(SCAN_DEPTH)})
+     *
+     * @since 7.1
+     */
+    public ImageHeaderInfo getHeaderInfo() {
+
+        if (scanDepth != SCAN_DEPTH.FULL) {
+            return null;
+        }
+
+        if (!headerInfoParsed) {
+            headerInfoParsed = true;
+            // A blob we can stream is not copied to a file just for this
+            if (ImageHeaderParser.isEnabled()
+                    && (canReadPrefix() || !canStream())) {
+                long start = System.nanoTime();
+                ImageBytesReader reader = null;
+                try {
+                    reader = openBytesReader();
+                    headerInfo = ImageHeaderParser.parse(reader);
+                    if (headerInfo != null) {
+                        recordTiming(MetadataPlanner.BACKEND.HEADER,
+                                System.nanoTime() - start);
+                    }
+                    recordPrefixRead(reader, false);
+                } catch (IOException e) {
+                    // Truncated file, or values too far in the blob: let the
+                    // external tool handle it
+                    recordPrefixRead(reader,
+                            e instanceof PrefixBytesReader.PrefixLimitException);
+                    log.debug("Cannot parse the header of the file", e);
+                } finally {
+                    closeQuietly(reader);
+                }
+            }
+        }
+
+        return headerInfo;
+    }
+
+    /*
+     * True if getHeaderInfo() may return the values without starting a tool
+     */
+    protected boolean canParseHeader() {
+
+        if (scanDepth != SCAN_DEPTH.FULL || !ImageHeaderParser.isEnabled()
+                || (canStream() && !canReadPrefix())) {
+            return false;
+        }
+        return getFormat() != ImageFormat.UNKNOWN;
+    }
 
-        return imageInfo;
+    /*
+     * Returns the values from the header of the file if all the keys can be
+     * read from there, null otherwise
+     */
+    protected HashMap<String, String> getMetadataFromHeader(String[] inTheseKeys) {
+
+        if (inTheseKeys == null || inTheseKeys.length == 0) {
+            return null;
+        }
+        for (String oneProp : inTheseKeys) {
+            if (!ImageHeaderInfo.isSupportedKey(oneProp)) {
+                return null;
+            }
+        }
+
+        ImageHeaderInfo info = getHeaderInfo();
+        if (info == null) {
+            return null;
+        }
+
+        HashMap<String, String> all = info.toMetadata();
+        HashMap<String, String> result = new HashMap<String, String>();
+        for (String oneProp : inTheseKeys) {
+            result.put(oneProp, all.get(oneProp));
+        }
+        return result;
+    }
+
+    /**
+     * Sets how much of the file the tools read, for the next calls:
+     * <ul>
+     * <li>FULL (default): the whole file, all the frames</li>
+     * <li>FAST: ImageMagick and GraphicsMagick read only the first frame (the
+     * <code>[0]</code> selector), ExifTool is run with <code>-fast</code> (it
+     * does not look for trailers at the end of JPEG files)</li>
+     * <li>FASTEST: same as FAST, with <code>-fast2</code> for ExifTool (which
+     * also skips the maker notes)</li>
+     * </ul>
+     * For multi-page or animated files (TIFF, GIF, ...), the values are then
+     * the ones of the first frame, while identify returns the ones of the last
+     * frame otherwise. Nothing changes for single-frame files, but the tags
+     * of a JPEG trailer (and the maker notes with FASTEST) are not returned.
+     * The header of the file is not parsed (see {@link #getHeaderInfo()}),
+     * the default keys are read by the tools.
+     * <p>
+     * The values already read by this reader with another depth are
+     * forgotten. The cached values are kept, each depth has its own entries.
+     *
+     * @param inDepth
+     *
+     * @since 7.1
+     */
+    public void setScanDepth(SCAN_DEPTH inDepth) {
+
+        if (inDepth == null) {
+            inDepth = SCAN_DEPTH.FULL;
+        }
+        if (inDepth != scanDepth) {
+            scanDepth = inDepth;
+            infos.clear();
+            exifToolValues = null;
+        }
+    }
+
+    /**
+     * @since 7.1
+     */
+    public SCAN_DEPTH getScanDepth() {
+        return scanDepth;
+    }
+
+    /**
+     * Same as getMetadata(String[] inTheseKeys, WHICH_TOOL inToolToUse), after
+     * setScanDepth(inDepth)
+     *
+     * @since 7.1
+     */
+    public HashMap<String, String> getMetadata(String[] inTheseKeys,
+            WHICH_TOOL inToolToUse, SCAN_DEPTH inDepth)
+            throws ClientException {
+        setScanDepth(inDepth);
+        return getMetadata(inTheseKeys, inToolToUse);
     }
 
     /**
@@ -184,13 +760,27 @@ public class ImageMetadataReader {
     /**
      * If inTheseKeys is null or its length is 0, we return all properties.
      * <p>
-     * When used with ImageMagick or GraphicsMagick, the method uses the Info
-     * class of im4java.
+     * When used with ImageMagick or GraphicsMagick, the method uses
+     * IdentifyInfo (same as the Info class of im4java).
      * <p>
      * When used with ExifTool it just calls getMetadataWithExifTool() (see this
      * method). Notice the keys are not the same when used with ImageMagick or
      * ExifTool.
      * <p>
+     * When used with ImageMagick and all the keys are among
+     * <code>ImageMetadataConstants.DEFAULT_KEYS</code>, the values are read
+     * directly from the header of the file if its format is handled by
+     * {@link ImageHeaderParser} (and the scan depth is FULL). ImageMagick is
+     * used only if it is not the case.
+     * <p>
+     * When all the keys are among <code>DEFAULT_KEYS</code> (only width and
+     * height with GraphicsMagick), the tool is run with
+     * <code>-ping -format</code>, which does not read the pixels.
+     * <code>-verbose</code> is used for all the other keys.
+     * <p>
+     * When used with AUTO, the keys are split between the tools, see
+     * {@link MetadataPlanner}.
+     * <p>
      * When a value is returned as null (the key does not exist), it is
      * realigned to the empty string "".
      *
@@ -205,21 +795,58 @@ public class ImageMetadataReader {
     public HashMap<String, String> getMetadata(String[] inTheseKeys,
             WHICH_TOOL inToolToUse) throws ClientException {
 
+        // Each tool used by the plan has its own cache entry
+        if (inToolToUse == WHICH_TOOL.AUTO) {
+            return MetadataPlanner.getInstance().getMetadata(this, inTheseKeys);
+        }
+
+        // getMetadataWithExifTool() has its own cache entry
+        String cacheKey = null;
+        if (inToolToUse != WHICH_TOOL.EXIFTOOL) {
+            cacheKey = getCacheKey(inToolToUse.name(), inTheseKeys);
+            if (cacheKey != null) {
+                HashMap<String, String> cached = ImageMetadataCache.getInstance().getMetadata(
+                        cacheKey);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+        }
+
         HashMap<String, String> result = new HashMap<String, String>();
 
         try {
-            if (inToolToUse == WHICH_TOOL.EXIFTOOL) {
+            HashMap<String, String> fromHeader = null;
+            if (inToolToUse == WHICH_TOOL.IMAGEMAGICK) {
+                fromHeader = getMetadataFromHeader(inTheseKeys);
+            }
+
+            HashMap<String, String> fromPing = null;
+            if (fromHeader == null && inToolToUse != WHICH_TOOL.EXIFTOOL) {
+                fromPing = getMetadataWithPing(inTheseKeys,
+                        inToolToUse == WHICH_TOOL.GRAPHICSMAGICK);
+            }
+
+            if (fromHeader != null) {
+
+                result = fromHeader;
+
+            } else if (fromPing != null) {
+
+                result = fromPing;
+
+            } else if (inToolToUse == WHICH_TOOL.EXIFTOOL) {
 
                 result = getMetadataWithExifTool(inTheseKeys);
 
             } else {
 
-                Info imageInfo = null;
+                IdentifyInfo imageInfo = null;
 
                 if (inToolToUse == WHICH_TOOL.GRAPHICSMAGICK) {
                     imageInfo = getInfoFromGraphicsMagick();
                 } else {
-                    imageInfo = new Info(filePath);
+                    imageInfo = getInfo(false);
                 }
 
                 if (inTheseKeys == null || inTheseKeys.length == 0) {
@@ -258,14 +885,188 @@ public class ImageMetadataReader {
                 }
             }
         } catch (NullPointerException | InfoException e) {
+            cacheFailure(cacheKey, e);
             throw new ClientException(e);
-        } finally {
+        } catch (ClientException e) {
+            cacheFailure(cacheKey, e);
+            throw e;
+        }
 
+        if (cacheKey != null) {
+            ImageMetadataCache.getInstance().putMetadata(cacheKey, result);
         }
         return result;
     }
 
     /**
+     * Same as getMetadata(String[] inTheseKeys, WHICH_TOOL inToolToUse), but
+     * the values are read only when they are accessed, and only the keys
+     * which are accessed are copied from the output of the tool (see
+     * {@link MetadataView}). The tool fails when the first value is read, not
+     * here.
+     *
+     * @param inTheseKeys the keys expected to be read, null for all
+     * @param inToolToUse
+     * @return the view
+     *
+     * @since 7.1
+     */
+    public MetadataView getMetadataView(String[] inTheseKeys,
+            WHICH_TOOL inToolToUse) {
+        return new MetadataView(this, inTheseKeys, inToolToUse);
+    }
+
+    public static boolean isPingEnabled() {
+        return !"false".equals(Framework.getProperty(PING_ENABLED_PROP, "true"));
+    }
+
+    /*
+     * True if all the keys can be read with identify -ping -format, with the
+     * same value as identify -verbose. For GraphicsMagick, whose verbose
+     * output is formatted differently, only the dimensions.
+     */
+    protected static boolean canPing(String[] inTheseKeys, boolean inUseGM) {
+
+        if (inTheseKeys == null || inTheseKeys.length == 0 || !isPingEnabled()) {
+            return false;
+        }
+        for (String oneProp : inTheseKeys) {
+            if (KEYS.WIDTH.equals(oneProp) || KEYS.HEIGHT.equals(oneProp)) {
+                continue;
+            }
+            if (inUseGM || !ImageHeaderInfo.isSupportedKey(oneProp)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Returns the values read with identify -ping -format (which does not
+     * read the pixels), or null if a key can't be read this way, or if the
+     * verbose output was already read. Also null if the command fails: the
+     * caller then uses identify -verbose
+     */
+    protected HashMap<String, String> getMetadataWithPing(
+            String[] inTheseKeys, boolean inUseGM) {
+
+        WHICH_TOOL tool = inUseGM ? WHICH_TOOL.GRAPHICSMAGICK
+                : WHICH_TOOL.IMAGEMAGICK;
+        if (infos.containsKey(tool) || !canPing(inTheseKeys, inUseGM)) {
+            return null;
+        }
+
+        PingInfo ping;
+        String[] escapes = inUseGM ? PING_ESCAPES_GM : PING_ESCAPES_IM;
+        try {
+            long start = System.nanoTime();
+            if (canStream()) {
+                try (InputStream in = blob.getStream()) {
+                    ping = new PingInfo(getImageName(true), in, inUseGM,
+                            escapes);
+                }
+            } else {
+                ping = new PingInfo(getImageName(false), null, inUseGM,
+                        escapes);
+            }
+            // Not given to the planner, its costs are for -verbose
+            ImageMetadataMetrics.recordExtraction(
+                    MetadataPlanner.toBackend(tool), getFormat(),
+                    System.nanoTime() - start);
+        } catch (InfoException | IOException e) {
+            log.debug("identify -ping failed, using identify -verbose", e);
+            return null;
+        }
+
+        HashMap<String, String> all = new HashMap<String, String>();
+        all.put(KEYS.WIDTH, ping.getValue(0));
+        all.put(KEYS.HEIGHT, ping.getValue(1));
+        if (!inUseGM) {
+            all.put(KEYS.COLORSPACE, ping.getValue(3));
+            all.put(KEYS.UNITS, ping.getValue(4));
+
+            // identify -verbose has no resolution if one of the values is 0,
+            // we realign it to 72x72 for GIF (see getMetadata())
+            String resolution = "";
+            double x = getPingNumber(ping.getValue(5));
+            double y = getPingNumber(ping.getValue(6));
+            if (x != 0.0 && y != 0.0) {
+                resolution = ImageHeaderInfo.formatNumber(x) + "x"
+                        + ImageHeaderInfo.formatNumber(y);
+            } else if ("GIF".equals(ping.getValue(2))) {
+                resolution = "72x72";
+            }
+            all.put(KEYS.RESOLUTION, resolution);
+        }
+
+        HashMap<String, String> result = new HashMap<String, String>();
+        for (String oneProp : inTheseKeys) {
+            result.put(oneProp, all.get(oneProp));
+        }
+        return result;
+    }
+
+    /*
+     * "72", or "72 PixelsPerInch" with some versions of ImageMagick
+     */
+    protected static double getPingNumber(String inValue) {
+        try {
+            return Double.parseDouble(inValue.split(" ")[0]);
+        } catch (NumberFormatException e) {
+            return 0.0;
+        }
+    }
+
+    /*
+     * Returns the key in ImageMetadataCache for this blob, or null if the
+     * result must not be cached: no digest (or a reader built on a path, the
+     * file may change) or cache disabled.
+     */
+    protected String getCacheKey(String inWhat, String[] inTheseKeys) {
+
+        if (blob == null || !ImageMetadataCache.getInstance().isEnabled()) {
+            return null;
+        }
+        String digest = blob.getDigest();
+        if (digest == null || digest.isEmpty()) {
+            return null;
+        }
+        // Keys of the default depth are unchanged
+        if (scanDepth != SCAN_DEPTH.FULL) {
+            inWhat += "-" + scanDepth.name();
+        }
+        return ImageMetadataCache.buildKey(digest, inWhat, inTheseKeys);
+    }
+
+    protected void cacheFailure(String inCacheKey, Exception inException) {
+        if (inCacheKey != null && !isToolFailure(inException)) {
+            ImageMetadataCache.getInstance().putFailure(inCacheKey,
+                    inException.getMessage());
+        }
+    }
+
+    /*
+     * A timeout, or a tool which is failing or busy (see TimedCommand), says
+     * nothing about the file: the tool can be called again later. The
+     * exception may be wrapped
+     */
+    protected static boolean isToolFailure(Throwable inError) {
+
+        for (Throwable t = inError; t != null; t = t.getCause()) {
+            if (t instanceof ToolTimeoutException
+                    || t instanceof ToolUnavailableException) {
+                return true;
+            }
+            if (t.getCause() == t) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * For JPEG, PNG, GIF and TIFF, the packet is read directly from the file
+     * (see {@link XMPPacketExtractor}). ExifTool is used for other formats.
      *
      * @return the whole XMP as XML
      * @throws ClientException
@@ -274,28 +1075,261 @@ public class ImageMetadataReader {
      */
     public String getXMP() throws ClientException {
 
+        String cacheKey = getCacheKey("XMP", null);
+        if (cacheKey != null) {
+            String cached = ImageMetadataCache.getInstance().getString(cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        String xmp;
+        XMPPacketExtractor.XMPPacket packet = getXMPPacket();
+        if (packet != null) {
+            xmp = packet.getPacketAsString();
+        } else {
+            try {
+                xmp = getXMPWithExifTool();
+            } catch (ClientException e) {
+                cacheFailure(cacheKey, e);
+                throw e;
+            }
+        }
+
+        if (cacheKey != null) {
+            ImageMetadataCache.getInstance().putString(cacheKey, xmp);
+        }
+        return xmp;
+    }
+
+    /**
+     * @return the XMP read directly from the file, or null if the format is
+     *         not handled (or the extractor is disabled, or the XMP is not in
+     *         the first <code>imagemetadata.prefix.maxBytes</code> of a blob
+     *         which is not backed by a file)
+     *
+     * @since 7.1
+     */
+    public XMPPacketExtractor.XMPPacket getXMPPacket() {
+
+        if (!XMPPacketExtractor.isEnabled()
+                || (canStream() && !canReadPrefix())) {
+            return null;
+        }
+        ImageBytesReader reader = null;
         try {
-            ETOperation op = new ETOperation();
-            op.getTags("xmp", "b");
-            op.addImage();
+            long start = System.nanoTime();
+            reader = openBytesReader();
+            XMPPacketExtractor.XMPPacket packet = XMPPacketExtractor.extract(reader);
+            ImageMetadataMetrics.recordXMPParse(System.nanoTime() - start);
+            recordPrefixRead(reader, false);
+            return packet;
+        } catch (IOException | DataFormatException e) {
+            recordPrefixRead(reader,
+                    e instanceof PrefixBytesReader.PrefixLimitException);
+            log.debug("Cannot extract the XMP of the file", e);
+            return null;
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    /**
+     * @return the whole XMP as XML, as returned by <code>exiftool -xmp -b</code>
+     * @throws ClientException
+     *
+     * @since 7.1
+     */
+    public String getXMPWithExifTool() throws ClientException {
 
-            // setup command and execute it (capture output)
-            StringOutputConsumer output = new StringOutputConsumer();
-            ExiftoolCmd et = new ExiftoolCmd();
-            et.setOutputConsumer(output);
-            et.run(op, filePath);
-            return output.getOutput();
+        // The packet is copied as is, with its line endings
+        StringOutputConsumer output = new StringOutputConsumer("UTF-8", true);
+        runExifTool(getXMPArgs(), output);
+        return output.getOutput();
+    }
 
-        } catch (IOException e) {
+    /**
+     * Same as getXMP(), but the XMP is returned as a blob and never loaded in
+     * a String: when it is not read from the file, the output of exiftool is
+     * copied to a temp file.
+     *
+     * @return the XMP, or null if there is no XMP
+     * @throws ClientException
+     *
+     * @since 7.1
+     */
+    public Blob getXMPAsBlob() throws ClientException {
+
+        XMPPacketExtractor.XMPPacket packet = getXMPPacket();
+        if (packet != null) {
+            return packet.isEmpty() ? null : new ByteArrayBlob(
+                    packet.getPacket(), "application/rdf+xml");
+        }
+        return getXMPWithExifToolAsBlob();
+    }
+
+    /**
+     * Same as getXMPWithExifTool(), the output of exiftool is copied to a temp
+     * file
+     *
+     * @return the XMP, or null if there is no XMP
+     * @throws ClientException
+     *
+     * @since 7.1
+     */
+    public Blob getXMPWithExifToolAsBlob() throws ClientException {
+
+        BlobOutputConsumer output = new BlobOutputConsumer(
+                "application/rdf+xml");
+        runExifTool(getXMPArgs(), output);
+        return output.getBlob();
+    }
+
+    /**
+     * Reads some properties of the XMP in a single pass, without loading the
+     * whole XMP as a String or a DOM (see {@link XMPStreamParser}). The packet
+     * is read directly from the file, including the Extended XMP (see
+     * getXMPPacket()), or with exiftool for other formats. The parsing stops
+     * as soon as all the properties are found.
+     *
+     * @param inProperties the XMP properties, <code>prefix:name</code>
+     *            (<code>dc:subject</code>, <code>xmp:CreatorTool</code>, ...)
+     * @return the values by property. A property not found is not in the map
+     * @throws ClientException
+     *
+     * @since 7.1
+     */
+    public HashMap<String, String> getXMPProperties(
+            Collection<String> inProperties) throws ClientException {
+
+        XMPStreamParser parser = new XMPStreamParser(inProperties);
+        try {
+            XMPPacketExtractor.XMPPacket packet = getXMPPacket();
+            if (packet != null) {
+                return parser.parse(packet);
+            }
+
+            Blob xmp = getXMPWithExifToolAsBlob();
+            if (xmp == null) {
+                return parser.getValues();
+            }
+            try (InputStream in = xmp.getStream()) {
+                return parser.parse(in);
+            }
+        } catch (XMLStreamException | IOException e) {
             throw new ClientException(e);
-        } catch (InterruptedException e) {
+        }
+    }
+
+    protected static ArrayList<String> getXMPArgs() {
+        ArrayList<String> args = new ArrayList<String>();
+        args.add("-xmp");
+        args.add("-b");
+        return args;
+    }
+
+    /**
+     * Runs exiftool on the file with the given arguments and gives its raw
+     * output to inConsumer.
+     * <p>
+     * Uses the shared {@link ExifToolProcessPool} when it is enabled, so no
+     * new process is started. Else, runs a new exiftool command. A blob which
+     * is not backed by a file is copied to a temp file read by the pool,
+     * unless <code>imagemetadata.exiftool.streaming.enabled</code> is true:
+     * it is then streamed to a new exiftool command (see canStream()).
+     * <p>
+     * The call is subject to the exiftool timeout and circuit breaker (see
+     * {@link TimedCommand}).
+     *
+     * @param inArgs the arguments to pass, without the file name
+     * @param inConsumer receives the raw output
+     * @throws ClientException
+     *
+     * @since 7.1
+     */
+    protected void runExifTool(List<String> inArgs, OutputConsumer inConsumer)
+            throws ClientException {
+
+        try {
+            if (isExifToolStreamingEnabled() && canStream()) {
+                ETOperation op = new ETOperation();
+                op.addRawArgs(inArgs);
+                op.addImage("-");
+
+                long start = System.nanoTime();
+                ExiftoolCmd et = new ExiftoolCmd();
+                et.setOutputConsumer(inConsumer);
+                try (InputStream in = blob.getStream()) {
+                    et.setInputProvider(new Pipe(in, null));
+                    TimedCommand.run(et, TimedCommand.EXIFTOOL, op);
+                }
+                recordTiming(MetadataPlanner.BACKEND.EXIFTOOL,
+                        System.nanoTime() - start);
+                return;
+            }
+
+            ArrayList<String> files = new ArrayList<String>();
+            files.add(getFilePath());
+            runExifToolOnFiles(inArgs, files, getFormat(), inConsumer);
+
+        } catch (IOException | InterruptedException | IM4JavaException e) {
             throw new ClientException(e);
-        } catch (IM4JavaException e) {
+        }
+    }
+
+    /*
+     * Runs exiftool with the arguments, on all the files, in the pool if it is
+     * enabled. The output is given to inConsumer. inFormat is the format of
+     * the files for the metrics, null when they can differ
+     */
+    protected static void runExifToolOnFiles(List<String> inArgs,
+            List<String> inFiles, ImageFormat inFormat,
+            OutputConsumer inConsumer)
+            throws ClientException {
+
+        long start = System.nanoTime();
+        executeExifTool(inArgs, inFiles, inConsumer);
+
+        // Cost of one file
+        long nanos = (System.nanoTime() - start) / Math.max(1, inFiles.size());
+        MetadataPlanner.getInstance().recordTiming(
+                MetadataPlanner.BACKEND.EXIFTOOL, nanos);
+        ImageMetadataMetrics.recordExtraction(MetadataPlanner.BACKEND.EXIFTOOL,
+                inFormat, nanos);
+    }
+
+    /*
+     * Same as runExifToolOnFiles(), without recording the timing (also used
+     * to write the files, see ImageMetadataWriter)
+     */
+    protected static void executeExifTool(List<String> inArgs,
+            List<String> inFiles, OutputConsumer inConsumer)
+            throws ClientException {
+
+        try {
+            ExifToolProcessPool pool = ExifToolProcessPool.getInstance();
+            if (pool.isEnabled()) {
+                ArrayList<String> args = new ArrayList<String>(inArgs);
+                args.addAll(inFiles);
+                pool.execute(args, inConsumer);
+            } else {
+                ETOperation op = new ETOperation();
+                op.addRawArgs(inArgs);
+                op.addImage(inFiles.size());
+
+                // setup command and execute it (capture output)
+                ExiftoolCmd et = new ExiftoolCmd();
+                et.setOutputConsumer(inConsumer);
+                TimedCommand.run(et, TimedCommand.EXIFTOOL, op,
+                        inFiles.toArray());
+            }
+
+        } catch (IOException | InterruptedException | IM4JavaException e) {
             throw new ClientException(e);
         }
     }
 
-    public class FilterLine {
+    public static class FilterLine {
 
         protected String line;
 
@@ -340,7 +1374,8 @@ public class ImageMetadataReader {
      * http://www.sno.phy.queensu.ca/~phil/exiftool/TagNames/index.html
      *
      * If inTheseKeys is null or its size is 0, we return all values (using the
-     * -All tag of ExifTool)
+     * -All tag of ExifTool). They are kept, so the next calls (with or without
+     * keys) don't run exiftool again
      *
      * @param inTheseKeys
      * @return a hash map with the values. A key not found is in the map with a
@@ -352,58 +1387,270 @@ public class ImageMetadataReader {
     public HashMap<String, String> getMetadataWithExifTool(String[] inTheseKeys)
             throws ClientException {
 
+        boolean all = inTheseKeys == null || inTheseKeys.length == 0;
+        if (exifToolValues != null) {
+            return all ? new HashMap<String, String>(exifToolValues)
+                    : selectValues(exifToolValues, inTheseKeys);
+        }
+
+        HashMap<String, String> result = readWithExifTool(inTheseKeys);
+        if (all) {
+            exifToolValues = new HashMap<String, String>(result);
+        }
+        return result;
+    }
+
+    /*
+     * Reads all the values with exiftool, only the first time. The map is
+     * not copied, callers must not modify it
+     */
+    protected HashMap<String, String> loadExifToolValues()
+            throws ClientException {
+
+        if (exifToolValues == null) {
+            exifToolValues = new HashMap<String, String>(readWithExifTool(null));
+        }
+        return exifToolValues;
+    }
+
+    protected static HashMap<String, String> selectValues(
+            HashMap<String, String> inAll, String[] inTheseKeys) {
+
         HashMap<String, String> result = new HashMap<String, String>();
+        for (String oneProp : inTheseKeys) {
+            String value = inAll.get(oneProp);
+            result.put(oneProp, value == null ? "" : value);
+        }
+        return result;
+    }
+
+    protected HashMap<String, String> readWithExifTool(String[] inTheseKeys)
+            throws ClientException {
+
+        String cacheKey = getCacheKey(WHICH_TOOL.EXIFTOOL.name(), inTheseKeys);
+        if (cacheKey != null) {
+            HashMap<String, String> cached = ImageMetadataCache.getInstance().getMetadata(
+                    cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        final HashMap<String, String> result = new HashMap<String, String>();
 
         try {
-            boolean hasKeys = inTheseKeys != null && inTheseKeys.length > 0;
+            // The values are put in the map while exiftool output is read
+            runExifTool(buildExifToolArgs(inTheseKeys, scanDepth),
+                    new KeyValueOutputConsumer(
+                            new KeyValueOutputConsumer.Sink() {
+                                @Override
+                                public void startBlock(String inName) {
+                                    // Single file
+                                }
+
+                                @Override
+                                public void put(String inKey, String inValue) {
+                                    result.put(inKey, inValue);
+                                }
+                            }));
+
+            addNotFoundKeys(result, inTheseKeys);
+
+        } catch (ClientException e) {
+            cacheFailure(cacheKey, e);
+            throw e;
+        }
 
-            ETOperation op = new ETOperation();
-            if (hasKeys) {
-                for (String oneProp : inTheseKeys) {
-                    if(oneProp != null && !oneProp.isEmpty()) {
-                        op.getTags(oneProp);
+        if (cacheKey != null) {
+            ImageMetadataCache.getInstance().putMetadata(cacheKey, result);
+        }
+        return result;
+    }
+
+    /**
+     * Same as getMetadataWithExifTool(String[] inTheseKeys), for several
+     * readers, in a single exiftool call. The values not already in the cache
+     * are read in one request, and each block of the output ("======== file"
+     * header) is routed back to its reader.
+     * <p>
+     * If exiftool fails on the whole request (it could not read one of the
+     * files for example), each reader is processed on its own.
+     *
+     * @param inReaders
+     * @param inTheseKeys
+     * @return the values, in the same order as inReaders. The value is null
+     *         for a reader whose file could not be read.
+     *
+     * @since 7.1
+     */
+    public static List<HashMap<String, String>> getMetadataWithExifTool(
+            List<ImageMetadataReader> inReaders, String[] inTheseKeys) {
+        return getMetadataWithExifTool(inReaders, inTheseKeys,
+                SCAN_DEPTH.FULL);
+    }
+
+    /**
+     * Same as getMetadataWithExifTool(List, String[]), with the depth set on
+     * each reader (see {@link #setScanDepth(SCAN_DEPTH)})
+     *
+     * @since 7.1
+     */
+    public static List<HashMap<String, String>> getMetadataWithExifTool(
+            List<ImageMetadataReader> inReaders, String[] inTheseKeys,
+            SCAN_DEPTH inDepth) {
+
+        for (ImageMetadataReader reader : inReaders) {
+            reader.setScanDepth(inDepth);
+        }
+
+        ArrayList<HashMap<String, String>> results = new ArrayList<HashMap<String, String>>();
+        // Files to read => index(es) of the reader(s) in inReaders
+        LinkedHashMap<String, List<Integer>> toRead = new LinkedHashMap<String, List<Integer>>();
+
+        for (int i = 0; i < inReaders.size(); i++) {
+            ImageMetadataReader reader = inReaders.get(i);
+            results.add(null);
+            try {
+                String cacheKey = reader.getCacheKey(
+                        WHICH_TOOL.EXIFTOOL.name(), inTheseKeys);
+                if (cacheKey != null) {
+                    HashMap<String, String> cached = ImageMetadataCache.getInstance().getMetadata(
+                            cacheKey);
+                    if (cached != null) {
+                        reader.keepExifToolValues(cached, inTheseKeys);
+                        results.set(i, cached);
+                        continue;
                     }
                 }
-            } else {
-                op.getTags("All");
-            }
-
-            op.addImage();
 
-            // We don't want the output as Human Readable. We want "ImageWidth",
-            // "XResolution", and not "Image Width", "X Resolution" for example
-            op.addRawArgs("-s");
+                String path = reader.getFilePath();
+                List<Integer> indexes = toRead.get(path);
+                if (indexes == null) {
+                    indexes = new ArrayList<Integer>();
+                    toRead.put(path, indexes);
+                }
+                indexes.add(i);
 
-            // Run
-            ArrayListOutputConsumer output = new ArrayListOutputConsumer();
-            ExiftoolCmd et = new ExiftoolCmd();
-            et.setOutputConsumer(output);
-            et.run(op, filePath);
+            } catch (ClientException | IOException e) {
+                log.debug("Cannot read the metadata", e);
+            }
+        }
 
-            // Get the values
-            FilterLine fl = new FilterLine();
-            ArrayList<String> cmdOutput = output.getOutput();
-            for (String line : cmdOutput) {
-                fl.setLine(line);
-                result.put(fl.getKey(), fl.getValue());
+        if (toRead.size() > 1) {
+            try {
+                ArrayList<String> args = buildExifToolArgs(inTheseKeys,
+                        inDepth);
+                final HashMap<String, HashMap<String, String>> byPath = new HashMap<String, HashMap<String, String>>();
+                runExifToolOnFiles(args,
+                        new ArrayList<String>(toRead.keySet()), null,
+                        new KeyValueOutputConsumer(
+                                new KeyValueOutputConsumer.Sink() {
+                                    HashMap<String, String> current = null;
+
+                                    @Override
+                                    public void startBlock(String inName) {
+                                        current = new HashMap<String, String>();
+                                        byPath.put(inName, current);
+                                    }
+
+                                    @Override
+                                    public void put(String inKey,
+                                            String inValue) {
+                                        // (The consumer already skips the
+                                        // "N image files read" summary)
+                                        if (current != null) {
+                                            current.put(inKey, inValue);
+                                        }
+                                    }
+                                }));
+
+                for (String path : toRead.keySet()) {
+                    HashMap<String, String> values = byPath.get(path);
+                    if (values == null) {
+                        continue;
+                    }
+                    addNotFoundKeys(values, inTheseKeys);
+                    for (int i : toRead.get(path)) {
+                        ImageMetadataReader reader = inReaders.get(i);
+                        String cacheKey = reader.getCacheKey(
+                                WHICH_TOOL.EXIFTOOL.name(), inTheseKeys);
+                        if (cacheKey != null) {
+                            ImageMetadataCache.getInstance().putMetadata(
+                                    cacheKey, values);
+                        }
+                        reader.keepExifToolValues(values, inTheseKeys);
+                        results.set(i, new HashMap<String, String>(values));
+                    }
+                }
+            } catch (ClientException e) {
+                log.debug("Batch failed, reading the files one by one", e);
             }
+        }
 
-            // Add the not-found values
-            if (hasKeys) {
-                for (String oneProp : inTheseKeys) {
-                    if (!result.containsKey(oneProp)) {
-                        result.put(oneProp, "");
+        // Single file, or what the batch could not handle
+        for (List<Integer> indexes : toRead.values()) {
+            for (int i : indexes) {
+                if (results.get(i) == null) {
+                    try {
+                        results.set(i,
+                                inReaders.get(i).getMetadataWithExifTool(
+                                        inTheseKeys));
+                    } catch (ClientException e) {
+                        log.debug("Cannot read the metadata", e);
                     }
                 }
             }
+        }
 
-        } catch (IOException | InterruptedException | IM4JavaException e) {
-            throw new ClientException(e);
-        } finally {
+        return results;
+    }
 
+    /*
+     * When all the values were read (no keys), the reader keeps them
+     */
+    protected void keepExifToolValues(HashMap<String, String> inValues,
+            String[] inTheseKeys) {
+        if (inTheseKeys == null || inTheseKeys.length == 0) {
+            exifToolValues = new HashMap<String, String>(inValues);
         }
+    }
 
-        return result;
+    protected static ArrayList<String> buildExifToolArgs(
+            String[] inTheseKeys, SCAN_DEPTH inDepth) {
+
+        ArrayList<String> args = new ArrayList<String>();
+        if (inDepth == SCAN_DEPTH.FAST) {
+            args.add("-fast");
+        } else if (inDepth == SCAN_DEPTH.FASTEST) {
+            args.add("-fast2");
+        }
+        if (inTheseKeys != null && inTheseKeys.length > 0) {
+            for (String oneProp : inTheseKeys) {
+                if (oneProp != null && !oneProp.isEmpty()) {
+                    args.add("-" + oneProp);
+                }
+            }
+        } else {
+            args.add("-All");
+        }
+
+        // We don't want the output as Human Readable. We want "ImageWidth",
+        // "XResolution", and not "Image Width", "X Resolution" for example
+        args.add("-s");
+
+        return args;
+    }
+
+    protected static void addNotFoundKeys(HashMap<String, String> inResult,
+            String[] inTheseKeys) {
+
+        if (inTheseKeys != null) {
+            for (String oneProp : inTheseKeys) {
+                if (!inResult.containsKey(oneProp)) {
+                    inResult.put(oneProp, "");
+                }
+            }
+        }
     }
 
     protected String test() throws IOException, InterruptedException,
@@ -434,7 +1681,7 @@ public class ImageMetadataReader {
         ArrayListOutputConsumer output = new ArrayListOutputConsumer();
         ExiftoolCmd et = new ExiftoolCmd();
         et.setOutputConsumer(output);
-        et.run(op, filePath);
+        et.run(op, getFilePath());
 
         String s = "";
         // dump output
@@ -0,0 +1,411 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.imagemetadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.im4java.core.ETOperation;
+import org.im4java.core.ExiftoolCmd;
+import org.im4java.core.IM4JavaException;
+import org.im4java.process.Pipe;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.im4java.BlobOutputConsumer;
+import org.nuxeo.im4java.StringOutputConsumer;
+import org.nuxeo.im4java.TimedCommand;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Writes metadata into pictures with exiftool. The blobs are never modified:
+ * the rewritten files are returned as new blobs.
+ * <p>
+ * The tags are exiftool tags, prefixed with their group
+ * (<code>XMP-dc:Title</code>, <code>IPTC:Keywords</code>, ...). A value is a
+ * String (anything else is converted: dates to the exiftool format, the other
+ * values with toString()), or an array or a Collection for a list tag. Empty
+ * values are ignored: the tags are not deleted.
+ * <ul>
+ * <li>{@link #write(List, List)}: each blob is copied once to a temp file,
+ * which exiftool rewrites in place, and which becomes the new blob. The tags
+ * of all the files are given to exiftool in a single JSON file (
+ * <code>-json=</code>), so the whole list is written by a single exiftool
+ * call (a single request to the {@link ExifToolProcessPool})</li>
+ * <li>{@link #writeStreaming(Blob, Map)}: the blob is piped to exiftool, which
+ * writes the new file to its stdout (<code>-o -</code>), copied to the new
+ * blob. Nothing is copied before the call, but exiftool is started for each
+ * blob</li>
+ * </ul>
+ *
+ * @since 7.1
+ */
+public class ImageMetadataWriter {
+
+    private static final Log log = LogFactory.getLog(ImageMetadataWriter.class);
+
+    protected static final String DATE_FORMAT = "yyyy:MM:dd HH:mm:ssXXX";
+
+    private ImageMetadataWriter() {
+    }
+
+    /**
+     * Same as write(List, List) for one blob: it is streamed to a new
+     * exiftool command when <code>imagemetadata.exiftool.streaming.enabled</code>
+     * is true, and it is not backed by a file and can be streamed (see
+     * {@link ImageMetadataReader}). Else it is rewritten in a temp copy, by
+     * the {@link ExifToolProcessPool}. Only the first bytes of the blob are
+     * read to decide, so it is copied at most once.
+     *
+     * @return the new blob
+     * @throws ClientException if exiftool cannot write the file
+     */
+    public static Blob write(Blob inBlob, Map<String, ?> inTags)
+            throws ClientException {
+
+        if (ImageMetadataReader.isExifToolStreamingEnabled()
+                && ImageMetadataReader.canStream(inBlob)) {
+            return writeStreaming(inBlob, inTags);
+        }
+
+        Blob result = write(Arrays.asList(inBlob), Arrays.asList(inTags)).get(
+                0);
+        if (result == null) {
+            throw new ClientException("Cannot write the metadata of "
+                    + inBlob.getFilename());
+        }
+        return result;
+    }
+
+    /**
+     * Writes the tags of each blob in a copy of the blob, with a single
+     * exiftool call. If this call fails (one of the files can't be written),
+     * the files are written one by one.
+     *
+     * @param inBlobs
+     * @param inTags the tags of each blob, in the same order
+     * @return the new blobs, in the same order. null for a blob exiftool could
+     *         not write
+     */
+    public static List<Blob> write(List<Blob> inBlobs,
+            List<? extends Map<String, ?>> inTags) {
+
+        if (inBlobs.size() != inTags.size()) {
+            throw new IllegalArgumentException(
+                    "One map of tags is expected for each blob");
+        }
+
+        ArrayList<Blob> results = new ArrayList<Blob>();
+        ArrayList<File> copies = new ArrayList<File>();
+        for (Blob blob : inBlobs) {
+            File copy = null;
+            try {
+                copy = copyBlob(blob);
+                results.add(newBlob(copy, blob));
+            } catch (IOException e) {
+                log.debug("Cannot copy the blob", e);
+                results.add(null);
+            }
+            copies.add(copy);
+        }
+
+        ArrayList<Integer> toWrite = new ArrayList<Integer>();
+        for (int i = 0; i < copies.size(); i++) {
+            if (copies.get(i) != null) {
+                toWrite.add(i);
+            }
+        }
+
+        if (toWrite.size() > 1) {
+            try {
+                writeFiles(copies, inTags, toWrite);
+                return results;
+            } catch (ClientException e) {
+                log.debug("Batch failed, writing the files one by one", e);
+            }
+        }
+
+        for (int i : toWrite) {
+            try {
+                writeFiles(copies, inTags, Arrays.asList(i));
+            } catch (ClientException e) {
+                log.debug("Cannot write the metadata", e);
+                results.set(i, null);
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Pipes the blob to exiftool, and returns what exiftool writes
+     *
+     * @return the new blob
+     * @throws ClientException if exiftool cannot write the file
+     */
+    public static Blob writeStreaming(Blob inBlob, Map<String, ?> inTags)
+            throws ClientException {
+
+        ETOperation op = new ETOperation();
+        op.addRawArgs(getCommonArgs(inTags));
+        for (Map.Entry<String, ?> tag : inTags.entrySet()) {
+            for (String value : toValues(tag.getValue())) {
+                op.addRawArgs("-" + tag.getKey() + "=" + value);
+            }
+        }
+        op.addRawArgs("-o", "-");
+        op.addImage("-");
+
+        BlobOutputConsumer output = new BlobOutputConsumer(
+                inBlob.getMimeType());
+        ExiftoolCmd et = new ExiftoolCmd();
+        et.setOutputConsumer(output);
+        long start = System.nanoTime();
+        try (InputStream in = inBlob.getStream()) {
+            et.setInputProvider(new Pipe(in, null));
+            TimedCommand.run(et, TimedCommand.EXIFTOOL, op);
+        } catch (IOException | InterruptedException | IM4JavaException e) {
+            throw new ClientException(e);
+        }
+
+        ImageMetadataMetrics.recordWrite(System.nanoTime() - start, 1);
+
+        Blob result = output.getBlob();
+        if (result == null) {
+            throw new ClientException("exiftool did not write "
+                    + inBlob.getFilename());
+        }
+        result.setFilename(inBlob.getFilename());
+        return result;
+    }
+
+    /*
+     * One exiftool call for the files at inIndexes
+     */
+    protected static void writeFiles(List<File> inFiles,
+            List<? extends Map<String, ?>> inTags, List<Integer> inIndexes)
+            throws ClientException {
+
+        File json = null;
+        try {
+            json = File.createTempFile("IMDW-", ".json");
+            ArrayList<String> paths = new ArrayList<String>();
+            boolean hasIPTC = false;
+            try (Writer out = Files.newBufferedWriter(json.toPath(),
+                    StandardCharsets.UTF_8)) {
+                out.write("[");
+                for (int i : inIndexes) {
+                    String path = inFiles.get(i).getAbsolutePath();
+                    paths.add(path);
+                    if (paths.size() > 1) {
+                        out.write(",");
+                    }
+                    writeJSON(out, path, inTags.get(i));
+                    hasIPTC |= hasIPTC(inTags.get(i));
+                }
+                out.write("]");
+            }
+
+            ArrayList<String> args = new ArrayList<String>();
+            if (hasIPTC) {
+                args.add("-codedcharacterset=utf8");
+            }
+            args.add("-json=" + json.getAbsolutePath());
+            args.add("-overwrite_original");
+            long start = System.nanoTime();
+            ImageMetadataReader.executeExifTool(args, paths,
+                    new StringOutputConsumer("UTF-8"));
+            ImageMetadataMetrics.recordWrite(System.nanoTime() - start,
+                    paths.size());
+
+        } catch (IOException e) {
+            throw new ClientException(e);
+        } finally {
+            if (json != null) {
+                json.delete();
+            }
+        }
+    }
+
+    protected static List<String> getCommonArgs(Map<String, ?> inTags) {
+        ArrayList<String> args = new ArrayList<String>();
+        if (hasIPTC(inTags)) {
+            args.add("-codedcharacterset=utf8");
+        }
+        return args;
+    }
+
+    /*
+     * IPTC is written in Latin-1 unless told otherwise
+     */
+    protected static boolean hasIPTC(Map<String, ?> inTags) {
+        for (String tag : inTags.keySet()) {
+            if (tag.toUpperCase().startsWith("IPTC:")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected static void writeJSON(Writer inOut, String inPath,
+            Map<String, ?> inTags) throws IOException {
+
+        inOut.write("{\"SourceFile\":");
+        writeJSONString(inOut, inPath);
+        for (Map.Entry<String, ?> tag : inTags.entrySet()) {
+            List<String> values = toValues(tag.getValue());
+            if (values.isEmpty()) {
+                continue;
+            }
+            inOut.write(",");
+            writeJSONString(inOut, tag.getKey());
+            inOut.write(":");
+            if (values.size() == 1 && !isList(tag.getValue())) {
+                writeJSONString(inOut, values.get(0));
+            } else {
+                inOut.write("[");
+                for (int i = 0; i < values.size(); i++) {
+                    if (i > 0) {
+                        inOut.write(",");
+                    }
+                    writeJSONString(inOut, values.get(i));
+                }
+                inOut.write("]");
+            }
+        }
+        inOut.write("}");
+    }
+
+    protected static void writeJSONString(Writer inOut, String inValue)
+            throws IOException {
+
+        inOut.write('"');
+        for (int i = 0; i < inValue.length(); i++) {
+            char c = inValue.charAt(i);
+            switch (c) {
+            case '"':
+            case '\\':
+                inOut.write('\\');
+                inOut.write(c);
+                break;
+
+            case '\n':
+                inOut.write("\\n");
+                break;
+
+            case '\r':
+                inOut.write("\\r");
+                break;
+
+            case '\t':
+                inOut.write("\\t");
+                break;
+
+            default:
+                if (c < 0x20) {
+                    inOut.write(String.format("\\u%04x", (int) c));
+                } else {
+                    inOut.write(c);
+                }
+                break;
+            }
+        }
+        inOut.write('"');
+    }
+
+    protected static boolean isList(Object inValue) {
+        return inValue instanceof Object[] || inValue instanceof Collection;
+    }
+
+    /*
+     * The non empty values, as Strings
+     */
+    protected static List<String> toValues(Object inValue) {
+
+        ArrayList<String> values = new ArrayList<String>();
+        if (inValue instanceof Object[]) {
+            for (Object item : (Object[]) inValue) {
+                addValue(values, item);
+            }
+        } else if (inValue instanceof Collection) {
+            for (Object item : (Collection<?>) inValue) {
+                addValue(values, item);
+            }
+        } else {
+            addValue(values, inValue);
+        }
+        return values;
+    }
+
+    protected static void addValue(List<String> inValues, Object inValue) {
+
+        String value;
+        if (inValue instanceof Calendar) {
+            SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT);
+            format.setTimeZone(((Calendar) inValue).getTimeZone());
+            value = format.format(((Calendar) inValue).getTime());
+        } else if (inValue instanceof Date) {
+            value = new SimpleDateFormat(DATE_FORMAT).format((Date) inValue);
+        } else {
+            value = inValue == null ? null : inValue.toString();
+        }
+        if (value != null && !value.isEmpty()) {
+            inValues.add(value);
+        }
+    }
+
+    /*
+     * Keeps the extension, exiftool checks it matches the content
+     */
+    protected static File copyBlob(Blob inBlob) throws IOException {
+
+        String name = inBlob.getFilename();
+        int pos = name == null ? -1 : name.lastIndexOf('.');
+        File file = File.createTempFile("IMDW-", pos < 0 ? ""
+                : name.substring(pos));
+        try {
+            inBlob.transferTo(file);
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        return file;
+    }
+
+    protected static Blob newBlob(File inFile, Blob inSource) {
+
+        Blob blob = new FileBlob(inFile, inSource.getMimeType());
+        blob.setFilename(inSource.getFilename());
+        // Deleted when the blob is garbage collected
+        Framework.trackFile(inFile, blob);
+        return blob;
+    }
+}
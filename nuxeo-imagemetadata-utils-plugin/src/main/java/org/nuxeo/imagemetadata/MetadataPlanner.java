@@ -0,0 +1,350 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.imagemetadata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.imagemetadata.ImageMetadataConstants.KEYS;
+import org.nuxeo.imagemetadata.ImageMetadataReader.WHICH_TOOL;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Used when the tool is {@link WHICH_TOOL#AUTO}: splits the keys between the
+ * backends and merges the results.
+ * <ul>
+ * <li>Keys prefixed with an ExifTool group (<code>EXIF:Make</code>,
+ * <code>IPTC:Keywords</code>, <code>XMP-dc:Creator</code>, ...) are read
+ * with ExifTool</li>
+ * <li>The other keys are ImageMagick keys, read with ImageMagick. When they are
+ * only the width and the height (which GraphicsMagick returns the same way),
+ * they are read with the cheapest of ImageMagick and GraphicsMagick which is
+ * installed and can read the format</li>
+ * <li>Except the keys of {@link ImageMetadataConstants#DEFAULT_KEYS}, which
+ * are read from the header of the file (see {@link ImageHeaderParser}) when
+ * ImageMagick/GraphicsMagick is not needed for other keys</li>
+ * </ul>
+ * When both ImageMagick and GraphicsMagick can be used, the cheapest one is
+ * skipped if all its call slots are busy (see
+ * {@link ImageMetadataReader#getBulkhead(WHICH_TOOL)}) and the other one is
+ * free.
+ * So, a request mixing the default keys and ExifTool tags, or the default keys
+ * and ImageMagick keys, starts at most one tool.
+ * <p>
+ * The cost of each backend (in ms.) is set with the
+ * <code>imagemetadata.planner.cost.{backend}</code> nuxeo.conf properties,
+ * then refreshed with the durations of the real calls (moving average).
+ *
+ * @since 7.1
+ */
+public class MetadataPlanner {
+
+    public enum BACKEND {
+        HEADER, EXIFTOOL, IMAGEMAGICK, GRAPHICSMAGICK
+    };
+
+    public static final String COST_PROP_PREFIX = "imagemetadata.planner.cost.";
+
+    public static final String LEARN_PROP = "imagemetadata.planner.learn";
+
+    // Weight of a new duration in the average
+    protected static final double SMOOTHING = 0.2;
+
+    /*
+     * ExifTool family 0 groups, and family 1 groups we may meet in a key
+     * ("XMP-xxx" are handled separately). An ImageMagick key never starts with
+     * one of these ("Channel depth:red", "Properties:exif:Make", ...)
+     */
+    protected static final HashSet<String> EXIFTOOL_GROUPS = new HashSet<String>(
+            Arrays.asList("EXIF", "IPTC", "XMP", "ICC_Profile", "Photoshop",
+                    "JFIF", "File", "Composite", "MakerNotes", "GPS", "IFD0",
+                    "IFD1", "ExifIFD", "InteropIFD", "APP14", "FlashPix",
+                    "PNG", "GIF", "JPEG", "Adobe", "Ducky", "Canon", "Nikon",
+                    "Sony", "Olympus", "Panasonic", "Pentax", "FujiFilm",
+                    "ExifTool", "System"));
+
+    protected static MetadataPlanner instance = null;
+
+    protected final EnumMap<BACKEND, Double> costs = new EnumMap<BACKEND, Double>(
+            BACKEND.class);
+
+    protected final boolean learn;
+
+    protected MetadataPlanner() {
+
+        costs.put(BACKEND.HEADER, getCostProperty(BACKEND.HEADER, 1));
+        costs.put(BACKEND.EXIFTOOL, getCostProperty(BACKEND.EXIFTOOL, 30));
+        costs.put(BACKEND.IMAGEMAGICK, getCostProperty(BACKEND.IMAGEMAGICK, 50));
+        costs.put(BACKEND.GRAPHICSMAGICK,
+                getCostProperty(BACKEND.GRAPHICSMAGICK, 60));
+        learn = !"false".equals(Framework.getProperty(LEARN_PROP, "true"));
+    }
+
+    public static synchronized MetadataPlanner getInstance() {
+        if (instance == null) {
+            instance = new MetadataPlanner();
+        }
+        return instance;
+    }
+
+    protected static double getCostProperty(BACKEND inBackend, int inDefault) {
+        return ExifToolProcessPool.getIntProperty(COST_PROP_PREFIX
+                + inBackend.name().toLowerCase(), inDefault);
+    }
+
+    /**
+     * @return the current cost of the backend, in ms.
+     */
+    public synchronized double getCost(BACKEND inBackend) {
+        return costs.get(inBackend);
+    }
+
+    /**
+     * Called after each successful call to a backend
+     *
+     * @param inBackend
+     * @param inNanos duration of the call
+     */
+    public synchronized void recordTiming(BACKEND inBackend, long inNanos) {
+        if (learn) {
+            double ms = inNanos / 1000000.0;
+            costs.put(inBackend, costs.get(inBackend) * (1 - SMOOTHING) + ms
+                    * SMOOTHING);
+        }
+    }
+
+    public static BACKEND toBackend(WHICH_TOOL inTool) {
+        switch (inTool) {
+        case EXIFTOOL:
+            return BACKEND.EXIFTOOL;
+
+        case GRAPHICSMAGICK:
+            return BACKEND.GRAPHICSMAGICK;
+
+        default:
+            return BACKEND.IMAGEMAGICK;
+        }
+    }
+
+    /**
+     * @return true if the key is an ExifTool tag prefixed with its group
+     *         ("EXIF:Make", "XMP-dc:Creator", ...)
+     */
+    public static boolean isExifToolKey(String inKey) {
+
+        int pos = inKey == null ? -1 : inKey.indexOf(':');
+        if (pos < 1) {
+            return false;
+        }
+        String group = inKey.substring(0, pos);
+        return EXIFTOOL_GROUPS.contains(group) || group.startsWith("XMP-");
+    }
+
+    /**
+     * Splits the keys between the backends.
+     *
+     * @param inTheseKeys
+     * @param inReader the reader of the file, used to get its format and to
+     *            know if its header can be parsed
+     * @return the keys to read with each backend, in the order they must be
+     *         called
+     */
+    public LinkedHashMap<BACKEND, List<String>> plan(String[] inTheseKeys,
+            ImageMetadataReader inReader) {
+
+        ArrayList<String> exifToolKeys = new ArrayList<String>();
+        ArrayList<String> magickKeys = new ArrayList<String>();
+        ArrayList<String> headerKeys = new ArrayList<String>();
+
+        if (inTheseKeys == null || inTheseKeys.length == 0) {
+            // All the properties
+            LinkedHashMap<BACKEND, List<String>> plan = new LinkedHashMap<BACKEND, List<String>>();
+            plan.put(BACKEND.IMAGEMAGICK, magickKeys);
+            return plan;
+        }
+
+        for (String key : inTheseKeys) {
+            if (key == null || key.isEmpty()) {
+                continue;
+            }
+            if (isExifToolKey(key)) {
+                exifToolKeys.add(key);
+            } else if (ImageHeaderInfo.isSupportedKey(key)) {
+                headerKeys.add(key);
+            } else {
+                magickKeys.add(key);
+            }
+        }
+
+        // If ImageMagick (or GraphicsMagick) is started anyway, it returns
+        // the header values for free
+        if (!headerKeys.isEmpty()
+                && (!magickKeys.isEmpty() || !inReader.canParseHeader() || getCost(BACKEND.HEADER) >= getCost(getCheapestMagick(
+                        inReader.getFormat(), headerKeys)))) {
+            magickKeys.addAll(headerKeys);
+            headerKeys.clear();
+        }
+
+        LinkedHashMap<BACKEND, List<String>> plan = new LinkedHashMap<BACKEND, List<String>>();
+        if (!headerKeys.isEmpty()) {
+            plan.put(BACKEND.HEADER, headerKeys);
+        }
+        if (!exifToolKeys.isEmpty()) {
+            plan.put(BACKEND.EXIFTOOL, exifToolKeys);
+        }
+        if (!magickKeys.isEmpty()) {
+            plan.put(getCheapestMagick(inReader.getFormat(), magickKeys),
+                    magickKeys);
+        }
+        return plan;
+    }
+
+    /**
+     * GraphicsMagick does not name and format the values of
+     * <code>-verbose</code> as ImageMagick does (and has no colorspace or
+     * resolution with <code>-ping</code>). Only the width and the height are
+     * the same.
+     *
+     * @return true if GraphicsMagick returns the same values as ImageMagick
+     *         for all the keys. False if the keys are null or empty (all the
+     *         values)
+     */
+    public static boolean isGraphicsMagickCompatible(Collection<String> inKeys) {
+
+        if (inKeys == null || inKeys.isEmpty()) {
+            return false;
+        }
+        for (String key : inKeys) {
+            if (!KEYS.WIDTH.equals(key) && !KEYS.HEIGHT.equals(key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * ImageMagick or GraphicsMagick, the cheapest one which is available and
+     * can read the format (and is not saturated when both can be used).
+     * ImageMagick if we don't know, or if GraphicsMagick would not return the
+     * same values for the keys.
+     */
+    protected BACKEND getCheapestMagick(ImageFormat inFormat,
+            Collection<String> inKeys) {
+
+        if (!isGraphicsMagickCompatible(inKeys)) {
+            return BACKEND.IMAGEMAGICK;
+        }
+
+        boolean im = canUse(WHICH_TOOL.IMAGEMAGICK, inFormat);
+        boolean gm = canUse(WHICH_TOOL.GRAPHICSMAGICK, inFormat);
+        if (gm && im) {
+            boolean imFree = ImageMetadataReader.getBulkhead(
+                    WHICH_TOOL.IMAGEMAGICK).hasAvailablePermit();
+            boolean gmFree = ImageMetadataReader.getBulkhead(
+                    WHICH_TOOL.GRAPHICSMAGICK).hasAvailablePermit();
+            if (imFree != gmFree) {
+                return gmFree ? BACKEND.GRAPHICSMAGICK : BACKEND.IMAGEMAGICK;
+            }
+        }
+        if (gm
+                && (!im || getCost(BACKEND.GRAPHICSMAGICK) < getCost(BACKEND.IMAGEMAGICK))) {
+            return BACKEND.GRAPHICSMAGICK;
+        }
+        return BACKEND.IMAGEMAGICK;
+    }
+
+    protected boolean canUse(WHICH_TOOL inTool, ImageFormat inFormat) {
+
+        ToolCapabilityRegistry registry = ToolCapabilityRegistry.getRegistry();
+        if (registry == null) {
+            return inTool == WHICH_TOOL.IMAGEMAGICK
+                    || ImageMetadataReader.isGraphicsMagickAvailable(false);
+        }
+
+        ToolCapabilities c = registry.getCapabilities(inTool);
+        if (!c.isProbed()) {
+            // Until the first probing ends, as without the registry, but
+            // without waiting for gm: ImageMagick
+            return inTool == WHICH_TOOL.IMAGEMAGICK;
+        }
+        return inFormat == ImageFormat.UNKNOWN ? c.isAvailable()
+                : c.canRead(inFormat.name());
+    }
+
+    /**
+     * Runs the plan and merges the results.
+     *
+     * @return a hash map with the values. A key not found is in the map with a
+     *         value of ""
+     * @throws ClientException
+     */
+    public HashMap<String, String> getMetadata(ImageMetadataReader inReader,
+            String[] inTheseKeys) throws ClientException {
+
+        HashMap<String, String> result = new HashMap<String, String>();
+
+        for (Map.Entry<BACKEND, List<String>> step : plan(inTheseKeys,
+                inReader).entrySet()) {
+            List<String> keys = step.getValue();
+            String[] keysArray = keys.isEmpty() ? null
+                    : keys.toArray(new String[keys.size()]);
+
+            switch (step.getKey()) {
+            case HEADER:
+                HashMap<String, String> fromHeader = inReader.getMetadataFromHeader(keysArray);
+                if (fromHeader == null) {
+                    // The parser could not handle this file after all
+                    fromHeader = inReader.getMetadata(keysArray,
+                            toTool(getCheapestMagick(inReader.getFormat(),
+                                    keys)));
+                }
+                result.putAll(fromHeader);
+                break;
+
+            case EXIFTOOL:
+                // exiftool returns "Make: Canon" for "-EXIF:Make"
+                HashMap<String, String> fromExifTool = inReader.getMetadataWithExifTool(keysArray);
+                for (String key : keys) {
+                    String value = fromExifTool.get(key.substring(key.lastIndexOf(':') + 1));
+                    result.put(key, value == null ? "" : value);
+                }
+                break;
+
+            default:
+                result.putAll(inReader.getMetadata(keysArray,
+                        toTool(step.getKey())));
+                break;
+            }
+        }
+
+        ImageMetadataReader.addNotFoundKeys(result, inTheseKeys);
+        return result;
+    }
+
+    protected static WHICH_TOOL toTool(BACKEND inBackend) {
+        return inBackend == BACKEND.GRAPHICSMAGICK ? WHICH_TOOL.GRAPHICSMAGICK
+                : WHICH_TOOL.IMAGEMAGICK;
+    }
+}
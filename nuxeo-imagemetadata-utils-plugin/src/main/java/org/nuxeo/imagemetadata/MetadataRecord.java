@@ -0,0 +1,179 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.imagemetadata;
+
+import java.io.Serializable;
+
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+
+/**
+ * A compact set of typed values: the names (interned) and the values are
+ * stored in arrays, with a primitive slot for the numbers. No map entry, and
+ * no String for a number.
+ * <p>
+ * {@link DocumentMetadataUpdater} fills one record per document (the name is
+ * the xpath) with the values converted by {@link FieldConverter}, then writes
+ * it in the document.
+ *
+ * @since 7.1
+ */
+public class MetadataRecord {
+
+    public enum KIND {
+        STRING, LONG, FLOAT, DOUBLE
+    };
+
+    protected static final KIND[] KINDS = KIND.values();
+
+    protected String[] names;
+
+    protected byte[] kinds;
+
+    protected long[] longs;
+
+    protected double[] doubles;
+
+    protected String[] strings;
+
+    protected int size = 0;
+
+    public MetadataRecord(int inCapacity) {
+        names = new String[inCapacity];
+        kinds = new byte[inCapacity];
+        longs = new long[inCapacity];
+        doubles = new double[inCapacity];
+        strings = new String[inCapacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String getName(int inIndex) {
+        return names[inIndex];
+    }
+
+    public KIND getKind(int inIndex) {
+        return KINDS[kinds[inIndex]];
+    }
+
+    public long getLong(int inIndex) {
+        return longs[inIndex];
+    }
+
+    public double getDouble(int inIndex) {
+        return doubles[inIndex];
+    }
+
+    public String getString(int inIndex) {
+        return strings[inIndex];
+    }
+
+    /**
+     * @return the index of the name, -1 if it is not in the record
+     */
+    public int indexOf(String inName) {
+        for (int i = 0; i < size; i++) {
+            if (names[i].equals(inName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public void putLong(String inName, long inValue) {
+        longs[add(inName, KIND.LONG)] = inValue;
+    }
+
+    public void putDouble(String inName, double inValue) {
+        doubles[add(inName, KIND.DOUBLE)] = inValue;
+    }
+
+    public void putFloat(String inName, float inValue) {
+        doubles[add(inName, KIND.FLOAT)] = inValue;
+    }
+
+    public void putString(String inName, String inValue) {
+        strings[add(inName, KIND.STRING)] = inValue;
+    }
+
+    /**
+     * @return the value, boxed to the type of the field it was converted for
+     */
+    public Serializable getValue(int inIndex) {
+
+        switch (getKind(inIndex)) {
+        case LONG:
+            return longs[inIndex];
+
+        case FLOAT:
+            return (float) doubles[inIndex];
+
+        case DOUBLE:
+            return doubles[inIndex];
+
+        default:
+            return strings[inIndex];
+        }
+    }
+
+    /**
+     * Sets each value in the field whose xpath is its name
+     */
+    public void setInDocument(DocumentModel inDoc) throws ClientException {
+        for (int i = 0; i < size; i++) {
+            inDoc.setPropertyValue(names[i], getValue(i));
+        }
+    }
+
+    protected int add(String inName, KIND inKind) {
+
+        int idx = indexOf(inName);
+        if (idx < 0) {
+            if (size == names.length) {
+                grow();
+            }
+            idx = size;
+            names[idx] = inName.intern();
+            size += 1;
+        }
+        kinds[idx] = (byte) inKind.ordinal();
+        strings[idx] = null;
+        return idx;
+    }
+
+    protected void grow() {
+
+        int capacity = Math.max(4, names.length * 2);
+        String[] newNames = new String[capacity];
+        byte[] newKinds = new byte[capacity];
+        long[] newLongs = new long[capacity];
+        double[] newDoubles = new double[capacity];
+        String[] newStrings = new String[capacity];
+        System.arraycopy(names, 0, newNames, 0, size);
+        System.arraycopy(kinds, 0, newKinds, 0, size);
+        System.arraycopy(longs, 0, newLongs, 0, size);
+        System.arraycopy(doubles, 0, newDoubles, 0, size);
+        System.arraycopy(strings, 0, newStrings, 0, size);
+        names = newNames;
+        kinds = newKinds;
+        longs = newLongs;
+        doubles = newDoubles;
+        strings = newStrings;
+    }
+}
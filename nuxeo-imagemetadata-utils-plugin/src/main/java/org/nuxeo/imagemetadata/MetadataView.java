@@ -0,0 +1,398 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.imagemetadata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+import org.im4java.core.InfoException;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.im4java.IdentifyInfo;
+import org.nuxeo.imagemetadata.ImageMetadataConstants.*;
+import org.nuxeo.imagemetadata.ImageMetadataReader.WHICH_TOOL;
+
+/**
+ * The values of an image, read only when they are first accessed (see
+ * {@link ImageMetadataReader#getMetadataView(String[], WHICH_TOOL)}).
+ * <p>
+ * Each key is resolved with the cheapest way available for the tool: the
+ * header of the file (see {@link ImageHeaderParser}), then
+ * <code>identify -ping</code>, then the output of
+ * <code>identify -verbose</code> (or exiftool), which the reader runs only
+ * once. With AUTO, the backend is chosen for each key, as
+ * {@link MetadataPlanner} does. Only the keys which are accessed are copied
+ * from the output of the tool, and each one is resolved only once.
+ * <p>
+ * The keys given when the view is created are expected to be accessed: when
+ * a tool has to be run for one of them, the others are read in the same
+ * call.
+ * <p>
+ * As with getMetadata(), a key not found has a value of "". A view is not
+ * thread safe.
+ *
+ * @since 7.1
+ */
+public class MetadataView {
+
+    protected ImageMetadataReader reader;
+
+    protected WHICH_TOOL tool;
+
+    protected LinkedHashSet<String> expectedKeys = new LinkedHashSet<String>();
+
+    // null: all the values were requested
+    protected String[] requestedKeys;
+
+    protected HashMap<String, String> resolved = new HashMap<String, String>();
+
+    // With AUTO, chosen once from the expected keys. GraphicsMagick is used
+    // only for the dimensions
+    protected Boolean useGM = null;
+
+    protected boolean pingFailed = false;
+
+    protected MetadataView(ImageMetadataReader inReader,
+            String[] inTheseKeys, WHICH_TOOL inTool) {
+
+        reader = inReader;
+        tool = inTool;
+        if (inTheseKeys != null && inTheseKeys.length > 0) {
+            requestedKeys = inTheseKeys;
+            for (String key : inTheseKeys) {
+                if (key != null && !key.isEmpty()) {
+                    expectedKeys.add(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * A view on values already read (the result of a batch extraction, for
+     * example)
+     */
+    public static MetadataView fromValues(HashMap<String, String> inValues) {
+
+        MetadataView view = new MetadataView(null, null, null);
+        view.resolved.putAll(inValues);
+        return view;
+    }
+
+    /**
+     * @param inKey
+     * @return the value, "" if the key does not exist
+     * @throws ClientException if the tool fails
+     */
+    public String get(String inKey) throws ClientException {
+
+        if (inKey == null || inKey.isEmpty()) {
+            return "";
+        }
+        String value = resolved.get(inKey);
+        if (value == null) {
+            resolve(inKey);
+            value = resolved.get(inKey);
+            if (value == null) {
+                value = "";
+                resolved.put(inKey, value);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @return true if the value was already read
+     */
+    public boolean isResolved(String inKey) {
+        return resolved.containsKey(inKey);
+    }
+
+    /**
+     * @return the number of values read so far
+     */
+    public int getResolvedCount() {
+        return resolved.size();
+    }
+
+    /**
+     * Reads the keys given when the view was created (or runs the tool, when
+     * all the values were requested), so a failure of the tool happens now.
+     * <p>
+     * With ImageMagick and GraphicsMagick, the values are then shared with
+     * getMetadata() through {@link ImageMetadataCache} (exiftool has its own
+     * cache entries)
+     *
+     * @throws ClientException
+     */
+    public void prefetch() throws ClientException {
+
+        if (reader == null) {
+            return;
+        }
+
+        String cacheKey = null;
+        if (requestedKeys != null
+                && (tool == WHICH_TOOL.IMAGEMAGICK || tool == WHICH_TOOL.GRAPHICSMAGICK)) {
+            cacheKey = reader.getCacheKey(tool.name(), requestedKeys);
+            if (cacheKey != null) {
+                HashMap<String, String> cached = ImageMetadataCache.getInstance().getMetadata(
+                        cacheKey);
+                if (cached != null) {
+                    resolved.putAll(cached);
+                    return;
+                }
+            }
+        }
+
+        if (requestedKeys == null) {
+            try {
+                if (tool == WHICH_TOOL.EXIFTOOL) {
+                    reader.loadExifToolValues();
+                } else {
+                    getInfo();
+                }
+            } catch (InfoException e) {
+                throw new ClientException(e);
+            }
+            return;
+        }
+        try {
+            for (String key : expectedKeys) {
+                get(key);
+            }
+        } catch (ClientException e) {
+            reader.cacheFailure(cacheKey, e);
+            throw e;
+        }
+        if (cacheKey != null) {
+            ImageMetadataCache.getInstance().putMetadata(cacheKey, toMap());
+        }
+    }
+
+    /**
+     * Copies the values in a map, the same one getMetadata() returns. All the
+     * values of the tool when all the values were requested.
+     *
+     * @throws ClientException
+     */
+    public HashMap<String, String> toMap() throws ClientException {
+
+        if (reader == null) {
+            return new HashMap<String, String>(resolved);
+        }
+
+        HashMap<String, String> result = new HashMap<String, String>();
+        if (requestedKeys != null) {
+            for (String key : requestedKeys) {
+                result.put(key, get(key));
+            }
+            return result;
+        }
+
+        if (tool == WHICH_TOOL.EXIFTOOL) {
+            result.putAll(reader.loadExifToolValues());
+        } else {
+            try {
+                IdentifyInfo info = getInfo();
+                Enumeration<String> props = info.getPropertyNames();
+                while (props.hasMoreElements()) {
+                    String propertyName = props.nextElement();
+                    result.put(propertyName, info.getProperty(propertyName));
+                }
+            } catch (InfoException e) {
+                throw new ClientException(e);
+            }
+        }
+        return result;
+    }
+
+    protected void resolve(String inKey) throws ClientException {
+
+        if (reader == null) {
+            return;
+        }
+        try {
+            if (tool == WHICH_TOOL.EXIFTOOL
+                    || (tool == WHICH_TOOL.AUTO && MetadataPlanner.isExifToolKey(inKey))) {
+                resolveWithExifTool(inKey);
+            } else {
+                resolveWithMagick(inKey);
+            }
+        } catch (InfoException e) {
+            throw new ClientException(e);
+        }
+    }
+
+    /*
+     * The values read by the reader when all of them were requested, else the
+     * key and the other expected keys not resolved yet, in one call
+     */
+    protected void resolveWithExifTool(String inKey) throws ClientException {
+
+        HashMap<String, String> values = reader.exifToolValues;
+        if (values == null && requestedKeys == null) {
+            values = reader.loadExifToolValues();
+        }
+        if (values == null) {
+            ArrayList<String> keys = new ArrayList<String>();
+            keys.add(inKey);
+            for (String key : expectedKeys) {
+                if (!key.equals(inKey) && !resolved.containsKey(key)
+                        && isExifToolKey(key)) {
+                    keys.add(key);
+                }
+            }
+            values = reader.getMetadataWithExifTool(keys.toArray(new String[keys.size()]));
+            for (String key : keys) {
+                resolved.put(key, getExifToolValue(values, key));
+            }
+            return;
+        }
+
+        resolved.put(inKey, getExifToolValue(values, inKey));
+    }
+
+    protected boolean isExifToolKey(String inKey) {
+        return tool == WHICH_TOOL.EXIFTOOL
+                || MetadataPlanner.isExifToolKey(inKey);
+    }
+
+    /*
+     * exiftool returns "Make: Canon" for "-EXIF:Make"
+     */
+    protected static String getExifToolValue(HashMap<String, String> inValues,
+            String inKey) {
+
+        String value = null;
+        if (inKey.indexOf(':') > 0) {
+            value = inValues.get(inKey.substring(inKey.lastIndexOf(':') + 1));
+        }
+        if (value == null) {
+            value = inValues.get(inKey);
+        }
+        return value == null ? "" : value;
+    }
+
+    protected void resolveWithMagick(String inKey) throws InfoException {
+
+        // A key which was not expected, GraphicsMagick would not return the
+        // value ImageMagick returns
+        if (tool == WHICH_TOOL.AUTO && useGM()
+                && !MetadataPlanner.isGraphicsMagickCompatible(Arrays.asList(inKey))) {
+            useGM = false;
+        }
+
+        boolean useGM = useGM();
+        WHICH_TOOL magick = useGM ? WHICH_TOOL.GRAPHICSMAGICK
+                : WHICH_TOOL.IMAGEMAGICK;
+
+        // Cheap ways first, as long as the verbose output is not needed
+        if (!reader.infos.containsKey(magick) && !pingFailed
+                && ImageHeaderInfo.isSupportedKey(inKey) && !needsVerbose()) {
+
+            if (!useGM) {
+                ImageHeaderInfo header = reader.getHeaderInfo();
+                if (header != null) {
+                    // Already computed, all of them
+                    resolved.putAll(header.toMetadata());
+                    return;
+                }
+            }
+
+            ArrayList<String> keys = new ArrayList<String>();
+            keys.add(inKey);
+            for (String key : expectedKeys) {
+                if (!key.equals(inKey) && !resolved.containsKey(key)
+                        && ImageMetadataReader.canPing(new String[] { key },
+                                useGM)) {
+                    keys.add(key);
+                }
+            }
+            HashMap<String, String> fromPing = reader.getMetadataWithPing(
+                    keys.toArray(new String[keys.size()]), useGM);
+            if (fromPing != null) {
+                resolved.putAll(fromPing);
+                return;
+            }
+            pingFailed = true;
+        }
+
+        IdentifyInfo info = getInfo();
+        String value = info.getProperty(inKey);
+        if (value == null) {
+            value = "";
+        }
+        // Re-align resolution to 72x72 for GIF
+        if (value.isEmpty() && inKey.equals(KEYS.RESOLUTION)) {
+            String format = info.getProperty(KEYS.FORMAT);
+            if (format != null && format.toLowerCase().indexOf("gif") == 0) {
+                value = "72x72";
+            }
+        }
+        resolved.put(inKey, value);
+    }
+
+    /*
+     * True if identify -verbose is run anyway for one of the expected keys:
+     * all the values then come from it (as getMetadata() does). Only the
+     * dimensions can be read without it with GraphicsMagick
+     */
+    protected boolean needsVerbose() {
+
+        if (requestedKeys == null) {
+            return true;
+        }
+        for (String key : expectedKeys) {
+            if (tool == WHICH_TOOL.AUTO && MetadataPlanner.isExifToolKey(key)) {
+                continue;
+            }
+            if (!ImageHeaderInfo.isSupportedKey(key)
+                    || (useGM() && !KEYS.WIDTH.equals(key) && !KEYS.HEIGHT.equals(key))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected boolean useGM() {
+
+        if (useGM == null) {
+            if (tool == WHICH_TOOL.AUTO) {
+                ArrayList<String> keys = null;
+                if (requestedKeys != null) {
+                    keys = new ArrayList<String>();
+                    for (String key : expectedKeys) {
+                        if (!MetadataPlanner.isExifToolKey(key)) {
+                            keys.add(key);
+                        }
+                    }
+                }
+                useGM = MetadataPlanner.getInstance().getCheapestMagick(
+                        reader.getFormat(), keys) == MetadataPlanner.BACKEND.GRAPHICSMAGICK;
+            } else {
+                useGM = tool == WHICH_TOOL.GRAPHICSMAGICK;
+            }
+        }
+        return useGM;
+    }
+
+    protected IdentifyInfo getInfo() throws InfoException {
+        return reader.getInfo(useGM());
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.imagemetadata;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An {@link ImageBytesReader} on a stream (typically a blob stored in a remote
+ * binary store), which reads only the beginning of the stream: the header and
+ * the metadata of most files are in the first few KB, the pixels are never
+ * downloaded.
+ * <p>
+ * The bytes read are kept in memory. The first read loads
+ * <code>inInitialBytes</code>, then each time the parser needs bytes after the
+ * loaded prefix, the prefix grows (it is at least doubled). Reading after
+ * <code>inMaxBytes</code> throws a {@link PrefixLimitException}: the caller
+ * then gives up, and uses the external tools.
+ *
+ * @since 7.1
+ */
+public class PrefixBytesReader extends ImageBytesReader {
+
+    /**
+     * Thrown when the parser needs bytes after the maximum prefix
+     */
+    public static class PrefixLimitException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public PrefixLimitException(long inMaxBytes) {
+            super("More than the first " + inMaxBytes
+                    + " bytes are needed to read the metadata");
+        }
+    }
+
+    protected InputStream stream;
+
+    protected final int initialBytes;
+
+    protected final int maxBytes;
+
+    protected byte[] prefix = new byte[0];
+
+    protected int loaded = 0;
+
+    /**
+     * @param inStream the stream, closed with this reader
+     * @param inSize the length of the stream
+     * @param inInitialBytes the length of the first read
+     * @param inMaxBytes the maximum length of the prefix
+     */
+    public PrefixBytesReader(InputStream inStream, long inSize,
+            int inInitialBytes, int inMaxBytes) {
+        super(inSize);
+        stream = inStream;
+        maxBytes = (int) Math.min(inMaxBytes, inSize);
+        initialBytes = Math.max(1, Math.min(inInitialBytes, maxBytes));
+    }
+
+    /**
+     * @return the number of bytes read from the stream so far
+     */
+    public int getLoadedBytes() {
+        return loaded;
+    }
+
+    /**
+     * Nothing to move here: the window is the whole prefix
+     */
+    @Override
+    protected void ensure(long inPos, int inLength) throws IOException {
+
+        if (inPos < 0 || inPos + inLength > size) {
+            throw new EOFException("Reading after the end of the file");
+        }
+        if (inPos + inLength > loaded) {
+            load(inPos + inLength);
+        }
+    }
+
+    protected void load(long inEnd) throws IOException {
+
+        if (inEnd > maxBytes) {
+            throw new PrefixLimitException(maxBytes);
+        }
+
+        int newLength = (int) Math.min(maxBytes,
+                Math.max(inEnd, loaded == 0 ? initialBytes : loaded * 2L));
+        prefix = Arrays.copyOf(prefix, newLength);
+        while (loaded < newLength) {
+            int count = stream.read(prefix, loaded, newLength - loaded);
+            if (count < 0) {
+                throw new EOFException("The stream is shorter than expected");
+            }
+            loaded += count;
+        }
+
+        window = ByteBuffer.wrap(prefix);
+        windowStart = 0;
+    }
+
+    @Override
+    public byte[] readBytes(long inPos, int inMaxLength) throws IOException {
+
+        int length = (int) Math.min(inMaxLength, size - inPos);
+        if (length <= 0) {
+            return new byte[0];
+        }
+        ensure(inPos, length);
+        return Arrays.copyOfRange(prefix, (int) inPos, (int) inPos + length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        stream.close();
+    }
+}
@@ -18,7 +18,9 @@
 package org.nuxeo.imagemetadata;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 import org.im4java.core.InfoException;
 import org.nuxeo.ecm.automation.core.Constants;
@@ -32,12 +34,11 @@ import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
-import org.nuxeo.ecm.core.api.model.Property;
-import org.nuxeo.ecm.core.api.model.PropertyException;
-import org.nuxeo.ecm.core.schema.types.Type;
-import org.nuxeo.imagemetadata.ImageMetadataConstants.*;
+import org.nuxeo.ecm.core.api.DocumentModelList;
 import org.nuxeo.imagemetadata.ImageMetadataReader.WHICH_TOOL;
 
+import com.codahale.metrics.Timer;
+
 /**
  * Extract the metadata from the picture stored in the <code>xpath</code> field.
  * <p>
@@ -51,6 +52,10 @@ import org.nuxeo.imagemetadata.ImageMetadataReader.WHICH_TOOL;
  * Also, even if ExifTool is not case sensitive for the tags, this operation is,
  * because it handles key=value
  * <p>
+ * With the <code>Auto</code> tool, the keys prefixed with an ExifTool group
+ * (<code>EXIF:Make</code>, <code>XMP-dc:Creator</code>, ...) are read with
+ * ExifTool, the others are ImageMagick keys (see {@link MetadataPlanner}).
+ * <p>
  * If <code>properties</code> is not used, the operation extracts
  * <code>width</code>, <code>height</code>, <code>resolution</code> and
  * <code>colorspace</code> from the picture file, and save the values in the
@@ -60,13 +65,30 @@ import org.nuxeo.imagemetadata.ImageMetadataReader.WHICH_TOOL;
  * <p>
  * <i>IMPORTANT</i>: When <code>properties</code>, is empty it is not possible
  * to use ExifTool.
+ * <p>
+ * When the input is a list of documents, they are handled by chunks of
+ * <code>batchSize</code> documents (see {@link DocumentMetadataUpdater} for
+ * the work done on each document).
+ * <p>
+ * When <code>async</code> is true, the extraction is done in a worker thread
+ * once the transaction is committed (see {@link ExtractMetadataWork}), and the
+ * operation returns immediately. The documents are always saved then, and the
+ * values are not yet in the returned documents.
+ * <p>
+ * <code>scanDepth</code> is <code>Full</code> by default. With
+ * <code>Fast</code> or <code>Fastest</code>, only the first frame of
+ * multi-page and animated files is read, and ExifTool is run with
+ * <code>-fast</code> or <code>-fast2</code> (see
+ * {@link ImageMetadataReader#setScanDepth(ImageMetadataReader.SCAN_DEPTH)}).
  *
  */
-@Operation(id = SavePictureMeadataInDocument.ID, category = Constants.CAT_DOCUMENT, label = "Save Picture Metadata in Document", description = "Extract the metadata from the picture stored in the <code>xpath</code> field. <code>properties</code> (optional) contains a list of <code>xpath=Metadata Key</code> where Metadata Key is the exact name (case sensitive) of a property to retrieve. For example: <code>dc:format=Format</code>If <code>properties</code> is not used, the operation extracts <code>width</code>, <code>height</code>, <code>resolution</code> and <code>colorspace</code> from the picture file, and save the values in the <code>image_metadata</code> schema (the DPI is realigned if needed.)There is a special property: If you pass <code>schemaprefix:field=all</code>, then all the properties are returned (the field must be a String field)")
+@Operation(id = SavePictureMeadataInDocument.ID, category = Constants.CAT_DOCUMENT, label = "Save Picture Metadata in Document", description = "Extract the metadata from the picture stored in the <code>xpath</code> field. <code>properties</code> (optional) contains a list of <code>xpath=Metadata Key</code> where Metadata Key is the exact name (case sensitive) of a property to retrieve. For example: <code>dc:format=Format</code>. If <code>properties</code> is not used, the operation extracts <code>width</code>, <code>height</code>, <code>resolution</code> and <code>colorspace</code> from the picture file, and save the values in the <code>image_metadata</code> schema (the DPI is realigned if needed). There is a special property: If you pass <code>schemaprefix:field=all</code>, then all the properties are returned (the field must be a String field). <code>tool</code> is ImageMagick by default. With <code>Auto</code>, the keys prefixed with an ExifTool group (<code>EXIF:Make</code>, <code>XMP-dc:Creator</code>, ...) are read with ExifTool, the others with ImageMagick (or GraphicsMagick for the width and the height), and the default values directly from the header of the file when possible. A list of documents is handled by chunks of <code>batchSize</code> documents (default 50), all the files of a chunk being read by a single ExifTool call. When <code>async</code> is true (default false), the extraction is done in the background once the transaction is committed: the operation returns immediately, the documents are always saved, and the values are not yet in the returned documents. <code>scanDepth</code> is <code>Full</code> by default. With <code>Fast</code> or <code>Fastest</code>, only the first frame of multi-page and animated files is read, and ExifTool is run with <code>-fast</code> or <code>-fast2</code>.")
 public class SavePictureMeadataInDocument {
 
     public static final String ID = "ExtractMetadataInDocument";
 
+    public static final int DEFAULT_BATCH_SIZE = 50;
+
     // private static final Log log =
     // LogFactory.getLog(ExtractMetadataInDocument.class);
 
@@ -85,161 +107,156 @@ public class SavePictureMeadataInDocument {
     protected Properties properties;
 
     @Param(name = "tool", required = false, widget = Constants.W_OPTION, values = {
-            "ImageMagick", "GraphicsMagick", "ExifTool" })
+            "ImageMagick", "GraphicsMagick", "ExifTool", "Auto" })
     String tool = "ImageMagick";
 
     @Param(name = "save", required = false, values = { "true" })
     protected boolean save = true;
 
+    @Param(name = "batchSize", required = false, values = { "50" })
+    protected int batchSize = DEFAULT_BATCH_SIZE;
+
+    @Param(name = "async", required = false, values = { "false" })
+    protected boolean async = false;
+
+    @Param(name = "scanDepth", required = false, widget = Constants.W_OPTION, values = {
+            "Full", "Fast", "Fastest" })
+    protected String scanDepth = "Full";
+
     @OperationMethod(collector = DocumentModelCollector.class)
     public DocumentModel run(DocumentModel inDoc) throws ClientException,
             IOException, InfoException {
-        // We do nothing if we don't have the correct kind of document.
-        // We could return an error, but we are more generic here,
-        // avoiding an hassle to the caller.
-        // If properties parameter is not used, we check the document has the
-        // picture_metadata schema
-        boolean hasProperties = properties != null && properties.size() > 0;
-        if (inDoc.isImmutable()
-                || (!hasProperties && !inDoc.hasSchema("image_metadata"))) {
-            return inDoc;
-        }
 
-        ImageMetadataReader.WHICH_TOOL toolToUse = null;
-        switch (tool.toLowerCase()) {
-        case "graphicsmagick":
-            toolToUse = WHICH_TOOL.GRAPHICSMAGICK;
-            break;
+        Timer.Context timer = ImageMetadataMetrics.startOperation(ID);
+        try {
+            return extract(inDoc);
+        } finally {
+            timer.stop();
+        }
+    }
 
-        case "exiftool":
-            toolToUse = WHICH_TOOL.EXIFTOOL;
-            break;
+    protected DocumentModel extract(DocumentModel inDoc)
+            throws ClientException, IOException, InfoException {
 
-        default:
-            toolToUse = WHICH_TOOL.IMAGEMAGICK;
-            break;
-        }
+        DocumentMetadataUpdater updater = new DocumentMetadataUpdater(xpath,
+                properties, DocumentMetadataUpdater.toolFromName(tool));
+        updater.setScanDepth(DocumentMetadataUpdater.scanDepthFromName(scanDepth));
 
-        // Get the blob
-        // We also give up silently if there is no binary
-        Blob theBlob = null;
-        try {
-            theBlob = (Blob) inDoc.getPropertyValue(xpath);
-        } catch (PropertyException e) {
+        Blob theBlob = updater.getBlob(inDoc);
+        if (theBlob == null) {
             return inDoc;
         }
-        if (theBlob == null) {
+
+        // When the queue is full, we do the work ourselves
+        if (async
+                && ExtractMetadataWork.schedule(inDoc, xpath, properties,
+                        updater.getTool(), false, updater.getScanDepth())) {
             return inDoc;
         }
 
         // If we have a key-value map, use it.
         // Else, we just get width, height, resolution and color space and
         // store the values in the image_metadata fields
-        ImageMetadataReader imdr = new ImageMetadataReader(theBlob);
-        HashMap<String, String> result = null;
-        boolean ok = true;
-        if (hasProperties) {
-            String xpathForAll = "";
-
-            // The names of the metadata properties are stored as values in the
-            // map
-            String[] keysStr = new String[properties.size()];
-            int idx = 0;
-            for (String inXPath : properties.keySet()) {
-                keysStr[idx] = properties.get(inXPath);
-                if (keysStr[idx].toLowerCase().equals("all")) {
-                    xpathForAll = inXPath;
-                }
+        boolean ok;
+        try (ImageMetadataReader imdr = new ImageMetadataReader(theBlob)) {
+            ok = updater.update(inDoc, imdr);
+        }
 
-                idx += 1;
-            }
+        // Save the document
+        if (ok && save) {
+            Timer.Context timer = ImageMetadataMetrics.startSave();
             try {
-                result = imdr.getMetadata(keysStr, toolToUse);
-            } catch (Exception e) {
-                // Just ignore if the tool can't read the file (a .csv for
-                // example)
-                ok = false;
-            }
-            if (ok) {
-                for (String inXPath : properties.keySet()) {
-                    String value = result.get(properties.get(inXPath));
-
-                    String theType = utils_getBasePropertyType(inDoc.getProperty(inXPath));
-                    if (theType.equals("int") || theType.equals("long")) {
-                        if (value.isEmpty()) {
-                            value = "0";
-                        }
-                        long v = Math.round(Double.valueOf(value));
-                        value = "" + v;
-                    } else if (theType.equals("float")) {
-                        if (value.isEmpty()) {
-                            value = "0.0";
-                        }
-                        float v = Float.valueOf(value);
-                        value = "" + v;
-                    } else if (theType.equals("double")) {
-                        if (value.isEmpty()) {
-                            value = "0.0";
-                        }
-                        double v = Double.valueOf(value);
-                        value = "" + v;
-                    }
-                    inDoc.setPropertyValue(inXPath, value);
-                }
+                session.saveDocument(inDoc);
+            } finally {
+                timer.stop();
             }
+        }
 
-            if (ok && !xpathForAll.isEmpty()) {
-                inDoc.setPropertyValue(xpathForAll, imdr.getAllMetadata());
-            }
-
-        } else {
-
-            String[] keysStr = { KEYS.WIDTH, KEYS.HEIGHT, KEYS.COLORSPACE,
-                    KEYS.RESOLUTION, KEYS.UNITS };
+        return inDoc;
+    }
 
-            try {
-                result = imdr.getMetadata(keysStr);
-            } catch (Exception e) {
-                // Just ignore if the tool can't read the file (a .csv for
-                // example)
-                ok = false;
-            }
+    /**
+     * The documents are handled by chunks of <code>batchSize</code>. When
+     * using ExifTool, all the files of a chunk are read in a single exiftool
+     * call. The documents of a chunk are saved together.
+     */
+    @OperationMethod
+    public DocumentModelList run(DocumentModelList inDocs)
+            throws ClientException, IOException, InfoException {
 
-            if (ok) {
-                // Store the values in the schema
-                inDoc.setPropertyValue("imd:pixel_xdimension",
-                        result.get(KEYS.WIDTH));
-                inDoc.setPropertyValue("imd:pixel_ydimension",
-                        result.get(KEYS.HEIGHT));
-                inDoc.setPropertyValue("imd:color_space",
-                        result.get(KEYS.COLORSPACE));
-
-                // Resolution needs extra work
-                XYResolutionDPI dpi = new XYResolutionDPI(
-                        result.get(KEYS.RESOLUTION), result.get(KEYS.UNITS));
-                inDoc.setPropertyValue("imd:xresolution", dpi.getX());
-                inDoc.setPropertyValue("imd:yresolution", dpi.getY());
-            }
+        Timer.Context timer = ImageMetadataMetrics.startOperation(ID);
+        try {
+            return extract(inDocs);
+        } finally {
+            timer.stop();
         }
+    }
 
-        // Save the document
-        if (ok && save) {
-            session.saveDocument(inDoc);
-        }
+    protected DocumentModelList extract(DocumentModelList inDocs)
+            throws ClientException, IOException, InfoException {
 
-        return inDoc;
-    }
+        DocumentMetadataUpdater updater = new DocumentMetadataUpdater(xpath,
+                properties, DocumentMetadataUpdater.toolFromName(tool));
+        updater.setScanDepth(DocumentMetadataUpdater.scanDepthFromName(scanDepth));
+        int chunkSize = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
 
-    protected String utils_getBasePropertyType(Property inProp) {
+        for (int start = 0; start < inDocs.size(); start += chunkSize) {
+            List<DocumentModel> chunk = inDocs.subList(start,
+                    Math.min(start + chunkSize, inDocs.size()));
 
-        Type t = inProp.getType();
-        String theType;
+            ArrayList<DocumentModel> docs = new ArrayList<DocumentModel>();
+            ArrayList<ImageMetadataReader> readers = new ArrayList<ImageMetadataReader>();
+            ArrayList<DocumentModel> toSave = new ArrayList<DocumentModel>();
+            try {
+                for (DocumentModel doc : chunk) {
+                    Blob theBlob = updater.getBlob(doc);
+                    if (theBlob != null
+                            && !(async && ExtractMetadataWork.schedule(doc,
+                                    xpath, properties, updater.getTool(),
+                                    false, updater.getScanDepth()))) {
+                        docs.add(doc);
+                        readers.add(new ImageMetadataReader(theBlob));
+                    }
+                }
 
-        do {
-            theType = t.getName();
-            t = t.getSuperType();
-        } while (t != null);
+                if (updater.getTool() == WHICH_TOOL.EXIFTOOL
+                        && updater.hasProperties()) {
+                    List<HashMap<String, String>> results = ImageMetadataReader.getMetadataWithExifTool(
+                            readers, updater.getKeysToRead(),
+                            updater.getScanDepth());
+                    for (int i = 0; i < docs.size(); i++) {
+                        // null => exiftool can't read the file (a .csv for
+                        // example), just ignore
+                        if (results.get(i) != null
+                                && updater.setValues(docs.get(i),
+                                        readers.get(i), results.get(i))) {
+                            toSave.add(docs.get(i));
+                        }
+                    }
+                } else {
+                    for (int i = 0; i < docs.size(); i++) {
+                        if (updater.update(docs.get(i), readers.get(i))) {
+                            toSave.add(docs.get(i));
+                        }
+                    }
+                }
+            } finally {
+                // Deletes the copies of the blobs, if any
+                for (ImageMetadataReader reader : readers) {
+                    reader.close();
+                }
+            }
+
+            if (save && !toSave.isEmpty()) {
+                Timer.Context timer = ImageMetadataMetrics.startSave();
+                try {
+                    session.saveDocuments(toSave.toArray(new DocumentModel[toSave.size()]));
+                } finally {
+                    timer.stop();
+                }
+            }
+        }
 
-        return theType;
+        return inDocs;
     }
 }
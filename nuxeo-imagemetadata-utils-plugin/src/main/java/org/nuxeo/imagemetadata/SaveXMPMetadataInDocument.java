@@ -0,0 +1,128 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.imagemetadata;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.automation.core.collectors.DocumentModelCollector;
+import org.nuxeo.ecm.automation.core.util.Properties;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.model.PropertyException;
+
+import com.codahale.metrics.Timer;
+
+/**
+ * Reads XMP properties of the picture stored in the <code>xpath</code> field
+ * and stores them in the document, without returning the XMP to the chain.
+ * <p>
+ * <code>properties</code> contains a list of <code>xpath=XMP property</code>
+ * (same as <code>properties</code> in {@link SavePictureMeadataInDocument}),
+ * the property being named as in the XMP packet. For example:
+ * <p>
+ * <code>dc:rights=dc:rights</code><br/>
+ * <code>dc:source=xmp:CreatorTool</code>
+ * <p>
+ * The packet is read in a single pass, and only up to the last property
+ * needed (see {@link XMPStreamParser}). Values are converted to the type of
+ * the field (see {@link FieldConverter}). A property which is not in the XMP
+ * clears the field.
+ *
+ * @since 7.1
+ */
+@Operation(id = SaveXMPMetadataInDocument.ID, category = Constants.CAT_DOCUMENT, label = "Save XMP Metadata in Document", description = "Read XMP properties of the picture stored in the <code>xpath</code> field and store them in the document. <code>properties</code> contains a list of <code>xpath=XMP property</code>, the property being named as in the XMP (<code>dc:rights</code>, <code>xmp:CreatorTool</code>, <code>photoshop:City</code>, ...). For a language alternative, the x-default value is stored, the items of a list are separated by a comma. The XMP is parsed in a single pass, up to the last property needed.")
+public class SaveXMPMetadataInDocument {
+
+    public static final String ID = "SaveXMPMetadataInDocument";
+
+    @Context
+    protected CoreSession session;
+
+    @Param(name = "xpath", required = false, values = { "file:content" })
+    protected String xpath = "file:content";
+
+    @Param(name = "properties", required = true)
+    protected Properties properties;
+
+    @Param(name = "save", required = false, values = { "true" })
+    protected boolean save = true;
+
+    @OperationMethod(collector = DocumentModelCollector.class)
+    public DocumentModel run(DocumentModel inDoc) throws ClientException {
+
+        Timer.Context timer = ImageMetadataMetrics.startOperation(ID);
+        try {
+            return extract(inDoc);
+        } finally {
+            timer.stop();
+        }
+    }
+
+    protected DocumentModel extract(DocumentModel inDoc)
+            throws ClientException {
+
+        if (inDoc.isImmutable() || properties == null || properties.isEmpty()) {
+            return inDoc;
+        }
+
+        Blob theBlob;
+        try {
+            theBlob = (Blob) inDoc.getPropertyValue(xpath);
+        } catch (PropertyException e) {
+            return inDoc;
+        }
+        if (theBlob == null) {
+            return inDoc;
+        }
+
+        HashMap<String, String> values;
+        try (ImageMetadataReader imdr = new ImageMetadataReader(theBlob)) {
+            values = imdr.getXMPProperties(properties.values());
+        } catch (IOException e) {
+            throw new ClientException(e);
+        }
+
+        // All the values are converted before the document is modified
+        MetadataRecord record = new MetadataRecord(properties.size());
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+            String value = values.get(entry.getValue());
+            FieldConverter.getConverter(inDoc, entry.getKey()).convert(
+                    value == null ? "" : value, record);
+        }
+        record.setInDocument(inDoc);
+
+        if (save) {
+            Timer.Context timer = ImageMetadataMetrics.startSave();
+            try {
+                session.saveDocument(inDoc);
+            } finally {
+                timer.stop();
+            }
+        }
+
+        return inDoc;
+    }
+}
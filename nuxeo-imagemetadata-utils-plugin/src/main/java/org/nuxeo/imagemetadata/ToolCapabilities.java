@@ -0,0 +1,139 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.imagemetadata;
+
+import java.util.Collections;
+import java.util.Set;
+
+import org.nuxeo.imagemetadata.ImageMetadataReader.WHICH_TOOL;
+
+/**
+ * What we know about a tool after probing it (see
+ * {@link ToolCapabilityRegistry}). Immutable.
+ *
+ * @since 7.1
+ */
+public class ToolCapabilities {
+
+    protected final WHICH_TOOL tool;
+
+    protected final boolean available;
+
+    protected final String version;
+
+    protected final Set<String> formats;
+
+    protected final String error;
+
+    protected final long probedAt;
+
+    protected final boolean probed;
+
+    public ToolCapabilities(WHICH_TOOL inTool, boolean inAvailable,
+            String inVersion, Set<String> inFormats, String inError) {
+        this(inTool, inAvailable, inVersion, inFormats, inError, true);
+    }
+
+    protected ToolCapabilities(WHICH_TOOL inTool, boolean inAvailable,
+            String inVersion, Set<String> inFormats, String inError,
+            boolean inProbed) {
+        tool = inTool;
+        available = inAvailable;
+        version = inVersion == null ? "" : inVersion;
+        formats = inFormats == null ? Collections.<String> emptySet()
+                : Collections.unmodifiableSet(inFormats);
+        error = inError == null ? "" : inError;
+        probed = inProbed;
+        probedAt = inProbed ? System.currentTimeMillis() : 0;
+    }
+
+    public static ToolCapabilities notAvailable(WHICH_TOOL inTool,
+            String inError) {
+        return new ToolCapabilities(inTool, false, null, null, inError);
+    }
+
+    /**
+     * @return the capabilities of a tool which was not probed yet: we don't
+     *         know if it is available (see {@link #isProbed()})
+     */
+    public static ToolCapabilities unknown(WHICH_TOOL inTool) {
+        return new ToolCapabilities(inTool, false, null, null,
+                "Not probed yet", false);
+    }
+
+    public WHICH_TOOL getTool() {
+        return tool;
+    }
+
+    /**
+     * @return false if the tool is not installed, or if it was not probed yet
+     */
+    public boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * @return false if we don't know yet if the tool is available
+     */
+    public boolean isProbed() {
+        return probed;
+    }
+
+    /**
+     * @return the version, as returned by the tool ("9.76", "6.8.9-9",
+     *         "1.3.20", ...), "" if not available
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the formats the tool can read, uppercase ("JPEG", "PNG", "PSD",
+     *         ...)
+     */
+    public Set<String> getFormats() {
+        return formats;
+    }
+
+    /**
+     * @param inFormat the format or the file extension, case insensitive
+     */
+    public boolean canRead(String inFormat) {
+        return available && inFormat != null
+                && formats.contains(inFormat.toUpperCase());
+    }
+
+    /**
+     * @return why the tool is not available, "" if it is
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return when the tool was probed, 0 if it was not probed yet
+     */
+    public long getProbedAt() {
+        return probedAt;
+    }
+
+    @Override
+    public String toString() {
+        return tool + (available ? " " + version + " (" + formats.size()
+                + " formats)" : " not available: " + error);
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.imagemetadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.imagemetadata.ImageMetadataReader.WHICH_TOOL;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.model.ComponentContext;
+import org.nuxeo.runtime.model.DefaultComponent;
+
+/**
+ * Knows which tools (exiftool, ImageMagick, GraphicsMagick) are installed,
+ * their version and the formats they can read.
+ * <p>
+ * The tools are probed in a background thread when Nuxeo starts, then again
+ * every <code>imagemetadata.tools.reprobeInterval</code> seconds (default
+ * 3600, 0 to probe only once). So, getting the capabilities of a tool never
+ * starts a process, and never waits: until the first probing ends, the
+ * capabilities are "unknown" (see {@link ToolCapabilities#isProbed()}).
+ * <p>
+ * When the component is stopped, the exiftool processes of
+ * {@link ExifToolProcessPool} are stopped too.
+ *
+ * @since 7.1
+ */
+public class ToolCapabilityRegistry extends DefaultComponent {
+
+    private static final Log log = LogFactory.getLog(ToolCapabilityRegistry.class);
+
+    public static final String REPROBE_INTERVAL_PROP = "imagemetadata.tools.reprobeInterval";
+
+    public static final String PROBE_TIMEOUT_PROP = "imagemetadata.tools.probeTimeout";
+
+    public static final int DEFAULT_REPROBE_INTERVAL = 3600;
+
+    public static final int DEFAULT_PROBE_TIMEOUT = 30;
+
+    // "   JPEG* JPEG      rw-   Joint..." (identify -list format)
+    // "    JPEG P  rw-   Joint..." (gm convert -list format)
+    protected static final Pattern FORMAT_LINE = Pattern.compile("^\\s*([A-Za-z0-9_-]+)\\*?\\s+(?:\\S+\\s+)?([r-])[w-][+-]\\s");
+
+    protected static final WHICH_TOOL[] TOOLS = { WHICH_TOOL.EXIFTOOL,
+            WHICH_TOOL.IMAGEMAGICK, WHICH_TOOL.GRAPHICSMAGICK };
+
+    protected volatile EnumMap<WHICH_TOOL, ToolCapabilities> capabilities = new EnumMap<WHICH_TOOL, ToolCapabilities>(
+            WHICH_TOOL.class);
+
+    protected volatile boolean probed = false;
+
+    protected ScheduledExecutorService scheduler = null;
+
+    protected long probeTimeoutMs;
+
+    /**
+     * @return the registry, or null if the Nuxeo runtime is not started
+     */
+    public static ToolCapabilityRegistry getRegistry() {
+        try {
+            return Framework.getService(ToolCapabilityRegistry.class);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void applicationStarted(ComponentContext inContext) {
+        start();
+    }
+
+    @Override
+    public void deactivate(ComponentContext inContext) {
+        synchronized (this) {
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+                scheduler = null;
+            }
+        }
+        ExifToolProcessPool.shutdownInstance();
+    }
+
+    /**
+     * Starts the probing, in the background. Does nothing if it is already
+     * started.
+     */
+    public synchronized void start() {
+
+        if (scheduler != null) {
+            return;
+        }
+
+        probeTimeoutMs = ExifToolProcessPool.getIntProperty(PROBE_TIMEOUT_PROP,
+                DEFAULT_PROBE_TIMEOUT) * 1000L;
+        int interval = ExifToolProcessPool.getIntProperty(
+                REPROBE_INTERVAL_PROP, DEFAULT_REPROBE_INTERVAL);
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable inRunnable) {
+                Thread t = new Thread(inRunnable, "ToolCapabilityRegistry-probe");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        Runnable probeAll = new Runnable() {
+            @Override
+            public void run() {
+                probeAll();
+            }
+        };
+        if (interval > 0) {
+            scheduler.scheduleWithFixedDelay(probeAll, 0, interval,
+                    TimeUnit.SECONDS);
+        } else {
+            scheduler.execute(probeAll);
+        }
+    }
+
+    /**
+     * Probes all the tools again, in the background. Returns immediately.
+     */
+    public synchronized void reprobe() {
+
+        if (scheduler == null) {
+            start();
+        } else {
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    probeAll();
+                }
+            });
+        }
+    }
+
+    protected void probeAll() {
+
+        EnumMap<WHICH_TOOL, ToolCapabilities> result = new EnumMap<WHICH_TOOL, ToolCapabilities>(
+                WHICH_TOOL.class);
+        for (WHICH_TOOL tool : TOOLS) {
+            ToolCapabilities c = probe(tool, probeTimeoutMs);
+            result.put(tool, c);
+            log.info(c);
+        }
+        capabilities = result;
+        probed = true;
+    }
+
+    /**
+     * @return true once all the tools were probed at least once
+     */
+    public boolean isProbed() {
+        return probed;
+    }
+
+    /**
+     * @return the capabilities of the tool. Never waits: if the first probing
+     *         is not done yet, the capabilities are unknown (see
+     *         {@link ToolCapabilities#unknown(WHICH_TOOL)})
+     */
+    public ToolCapabilities getCapabilities(WHICH_TOOL inTool) {
+
+        ToolCapabilities c = capabilities.get(inTool);
+        if (c != null) {
+            return c;
+        }
+        if (!probed) {
+            start();
+            return ToolCapabilities.unknown(inTool);
+        }
+        return ToolCapabilities.notAvailable(inTool, "Not a tool");
+    }
+
+    /**
+     * @return false if the tool is not installed, or not probed yet
+     */
+    public boolean isAvailable(WHICH_TOOL inTool) {
+        return getCapabilities(inTool).isAvailable();
+    }
+
+    /**
+     * Runs the tool to get its version and the formats it can read. This is
+     * what the registry does in the background, it should not be called on a
+     * request thread.
+     *
+     * @param inTool
+     * @param inTimeoutMs max. duration of each command
+     * @return the capabilities, never null
+     */
+    public static ToolCapabilities probe(WHICH_TOOL inTool, long inTimeoutMs) {
+
+        try {
+            List<String> output;
+            String version;
+            HashSet<String> formats = new HashSet<String>();
+
+            switch (inTool) {
+            case AUTO:
+                return ToolCapabilities.notAvailable(inTool, "Not a tool");
+
+            case EXIFTOOL:
+                String exifTool = Framework.getProperty(
+                        ExifToolProcessPool.EXIFTOOL_PATH_PROP, "exiftool");
+                output = runProbe(inTimeoutMs, exifTool, "-ver");
+                version = output.isEmpty() ? "" : output.get(0).trim();
+
+                // "Recognized file extensions:" then the extensions, indented
+                for (String line : runProbe(inTimeoutMs, exifTool, "-listr")) {
+                    if (line.startsWith(" ")) {
+                        formats.addAll(Arrays.asList(line.trim().split("\\s+")));
+                    }
+                }
+                break;
+
+            case GRAPHICSMAGICK:
+                // "GraphicsMagick 1.3.20 2014-08-16 Q8 http://..."
+                output = runProbe(inTimeoutMs, "gm", "-version");
+                version = getWordAfter(output, "GraphicsMagick");
+                addReadableFormats(
+                        runProbe(inTimeoutMs, "gm", "convert", "-list",
+                                "format"), formats);
+                break;
+
+            default:
+                // "Version: ImageMagick 6.8.9-9 Q16 x86_64 2014-11-17 ..."
+                output = runProbe(inTimeoutMs, "identify", "-version");
+                version = getWordAfter(output, "ImageMagick");
+                addReadableFormats(
+                        runProbe(inTimeoutMs, "identify", "-list", "format"),
+                        formats);
+                break;
+            }
+
+            if (version.isEmpty()) {
+                return ToolCapabilities.notAvailable(inTool,
+                        "Unexpected output: " + output);
+            }
+            return new ToolCapabilities(inTool, true, version, formats, null);
+
+        } catch (IOException e) {
+            return ToolCapabilities.notAvailable(inTool, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return ToolCapabilities.notAvailable(inTool, "Interrupted");
+        }
+    }
+
+    protected static String getWordAfter(List<String> inLines, String inWord) {
+
+        for (String line : inLines) {
+            String[] words = line.trim().split("\\s+");
+            for (int i = 0; i < words.length - 1; i++) {
+                if (words[i].equals(inWord)) {
+                    return words[i + 1];
+                }
+            }
+        }
+        return "";
+    }
+
+    protected static void addReadableFormats(List<String> inLines,
+            HashSet<String> outFormats) {
+
+        for (String line : inLines) {
+            Matcher m = FORMAT_LINE.matcher(line);
+            if (m.find() && "r".equals(m.group(2))) {
+                outFormats.add(m.group(1).toUpperCase());
+            }
+        }
+    }
+
+    /*
+     * The output goes to a temp file: nothing to drain, and a command which
+     * hangs without writing anything can't block us. The process is always
+     * waited for (or killed), so there is no zombie.
+     */
+    protected static List<String> runProbe(long inTimeoutMs, String... inCommand)
+            throws IOException, InterruptedException {
+
+        File outFile = File.createTempFile("IMDR-probe-", ".txt");
+        Process process = null;
+        try {
+            ProcessBuilder pb = new ProcessBuilder(inCommand);
+            pb.redirectErrorStream(true);
+            pb.redirectOutput(outFile);
+            process = pb.start();
+            process.getOutputStream().close();
+
+            if (!process.waitFor(inTimeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new IOException(Arrays.toString(inCommand)
+                        + " did not end after " + inTimeoutMs + "ms");
+            }
+            if (process.exitValue() != 0) {
+                throw new IOException(Arrays.toString(inCommand)
+                        + " failed, exit value " + process.exitValue());
+            }
+
+            return new ArrayList<String>(Files.readAllLines(outFile.toPath(),
+                    StandardCharsets.ISO_8859_1));
+
+        } finally {
+            if (process != null && process.isAlive()) {
+                process.destroyForcibly();
+                process.waitFor();
+            }
+            outFile.delete();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.imagemetadata;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.automation.core.util.BlobList;
+import org.nuxeo.ecm.automation.core.util.Properties;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.api.model.PropertyException;
+
+import com.codahale.metrics.Timer;
+
+/**
+ * Writes values of the document into the metadata of the picture stored in
+ * the <code>xpath</code> field, and returns the new picture (the document is
+ * not modified).
+ * <p>
+ * <code>properties</code> contains a list of <code>xpath=ExifTool tag</code>
+ * (same as <code>properties</code> in {@link SavePictureMeadataInDocument}).
+ * For example:
+ * <p>
+ * <code>dc:title=XMP-dc:Title</code><br/>
+ * <code>dc:rights=XMP-dc:Rights</code><br/>
+ * <code>dc:subjects=IPTC:Keywords</code>
+ * <p>
+ * A list of documents is written with a single exiftool call (see
+ * {@link ImageMetadataWriter}). The blobs are returned in the order of the
+ * documents, the documents without a picture (or whose picture exiftool
+ * can't write) are skipped.
+ *
+ * @since 7.1
+ */
+@Operation(id = WritePictureMetadata.ID, category = Constants.CAT_DOCUMENT, label = "Write Picture Metadata", description = "Write values of the document in the metadata of the picture stored in the <code>xpath</code> field, and return the new picture (the document is not modified). <code>properties</code> contains a list of <code>xpath=ExifTool tag</code>, for example <code>dc:title=XMP-dc:Title</code>. The values of a list field are written as a list. A list of documents is written with a single exiftool call, the documents without a picture are skipped.")
+public class WritePictureMetadata {
+
+    public static final String ID = "WritePictureMetadata";
+
+    @Param(name = "xpath", required = false, values = { "file:content" })
+    protected String xpath = "file:content";
+
+    @Param(name = "properties", required = true)
+    protected Properties properties;
+
+    @OperationMethod
+    public Blob run(DocumentModel inDoc) throws ClientException {
+
+        Timer.Context timer = ImageMetadataMetrics.startOperation(ID);
+        try {
+            Blob blob = getBlob(inDoc);
+            return blob == null ? null : ImageMetadataWriter.write(blob,
+                    getTags(inDoc));
+        } finally {
+            timer.stop();
+        }
+    }
+
+    @OperationMethod
+    public BlobList run(DocumentModelList inDocs) throws ClientException {
+
+        Timer.Context timer = ImageMetadataMetrics.startOperation(ID);
+        try {
+            ArrayList<Blob> blobs = new ArrayList<Blob>();
+            ArrayList<Map<String, Serializable>> tags = new ArrayList<Map<String, Serializable>>();
+            for (DocumentModel doc : inDocs) {
+                Blob blob = getBlob(doc);
+                if (blob != null) {
+                    blobs.add(blob);
+                    tags.add(getTags(doc));
+                }
+            }
+
+            BlobList result = new BlobList();
+            List<Blob> written = ImageMetadataWriter.write(blobs, tags);
+            for (Blob blob : written) {
+                if (blob != null) {
+                    result.add(blob);
+                }
+            }
+            return result;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    protected Blob getBlob(DocumentModel inDoc) {
+        try {
+            return (Blob) inDoc.getPropertyValue(xpath);
+        } catch (PropertyException e) {
+            return null;
+        }
+    }
+
+    /*
+     * ExifTool tag => value of the field
+     */
+    protected Map<String, Serializable> getTags(DocumentModel inDoc)
+            throws ClientException {
+
+        LinkedHashMap<String, Serializable> tags = new LinkedHashMap<String, Serializable>();
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+            tags.put(entry.getValue(), inDoc.getPropertyValue(entry.getKey()));
+        }
+        return tags;
+    }
+}
@@ -0,0 +1,408 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.imagemetadata;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Extracts the XMP packet from JPEG, PNG, GIF and TIFF files, without
+ * starting exiftool. We just walk the structure of the file up to the place
+ * where the packet is stored and copy its bytes:
+ * <ul>
+ * <li>JPEG: APP1 segment "http://ns.adobe.com/xap/1.0/", plus the
+ * "http://ns.adobe.com/xmp/extension/" segments for Extended XMP</li>
+ * <li>PNG: iTXt chunk "XML:com.adobe.xmp"</li>
+ * <li>GIF: "XMP DataXMP" application extension</li>
+ * <li>TIFF: tag 700 of IFD0</li>
+ * </ul>
+ *
+ * @since 7.1
+ */
+public class XMPPacketExtractor {
+
+    private static final Log log = LogFactory.getLog(XMPPacketExtractor.class);
+
+    /**
+     * nuxeo.conf property. Set it to false to always use exiftool
+     */
+    public static final String ENABLED_PROP = "imagemetadata.xmpextractor.enabled";
+
+    protected static final byte[] JPEG_XMP_ID = "http://ns.adobe.com/xap/1.0/\0".getBytes(StandardCharsets.US_ASCII);
+
+    protected static final byte[] JPEG_EXTENDED_XMP_ID = "http://ns.adobe.com/xmp/extension/\0".getBytes(StandardCharsets.US_ASCII);
+
+    protected static final byte[] PNG_XMP_KEYWORD = "XML:com.adobe.xmp\0".getBytes(StandardCharsets.US_ASCII);
+
+    protected static final byte[] GIF_XMP_ID = "XMP DataXMP".getBytes(StandardCharsets.US_ASCII);
+
+    protected static final int TIFF_TAG_XMP = 700;
+
+    protected static final int GUID_LENGTH = 32;
+
+    /*
+     * No real packet is that big. A larger size read from the file (Extended
+     * XMP length, inflated iTXt) means the file is corrupted or crafted, it
+     * is handled as a file with no XMP
+     */
+    protected static final int MAX_PACKET_SIZE = 16 * 1024 * 1024;
+
+    public static boolean isEnabled() {
+        return !"false".equals(Framework.getProperty(ENABLED_PROP, "true"));
+    }
+
+    /**
+     * The XMP of a file. {@link #getPacket()} is an empty array when the file
+     * has no XMP.
+     */
+    public static class XMPPacket {
+
+        protected byte[] packet;
+
+        protected byte[] extendedPacket;
+
+        public XMPPacket(byte[] inPacket, byte[] inExtendedPacket) {
+            packet = inPacket;
+            extendedPacket = inExtendedPacket;
+        }
+
+        public byte[] getPacket() {
+            return packet;
+        }
+
+        /**
+         * @return the Extended XMP (JPEG only), or null if there is none
+         */
+        public byte[] getExtendedPacket() {
+            return extendedPacket;
+        }
+
+        public boolean isEmpty() {
+            return packet.length == 0;
+        }
+
+        public String getPacketAsString() {
+            return new String(packet, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * @param inFile
+     * @return the XMP, or null if the format is not handled (or the file can't
+     *         be parsed)
+     */
+    public static XMPPacket extract(File inFile) {
+
+        try (ImageBytesReader reader = new ImageBytesReader(inFile)) {
+            return extract(reader);
+        } catch (IOException | DataFormatException e) {
+            log.debug("Cannot extract the XMP of " + inFile, e);
+            return null;
+        }
+    }
+
+    public static XMPPacket extract(ImageBytesReader inReader)
+            throws IOException, DataFormatException {
+
+        switch (inReader.detectFormat()) {
+        case JPEG:
+            return extractFromJPEG(inReader);
+
+        case PNG:
+            return extractFromPNG(inReader);
+
+        case GIF:
+            return extractFromGIF(inReader);
+
+        case TIFF:
+            return extractFromTIFF(inReader);
+
+        default:
+            return null;
+        }
+    }
+
+    protected static XMPPacket extractFromJPEG(ImageBytesReader inReader)
+            throws IOException {
+
+        inReader.setByteOrder(ByteOrder.BIG_ENDIAN);
+
+        byte[] packet = new byte[0];
+        // Extended XMP, by GUID
+        HashMap<String, byte[]> extended = new HashMap<String, byte[]>();
+
+        long pos = 2;
+        while (pos + 4 <= inReader.size()) {
+            if (inReader.readU8(pos) != 0xFF) {
+                return null;
+            }
+            int marker = inReader.readU8(pos + 1);
+            if (marker == 0xFF) {
+                pos += 1;
+                continue;
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                pos += 2;
+                continue;
+            }
+            if (marker == 0xD9 || marker == 0xDA) {
+                // No APPn after the start of scan
+                break;
+            }
+
+            int length = inReader.readU16(pos + 2);
+            long data = pos + 4;
+            int dataLength = length - 2;
+            if (marker == 0xE1) {
+                if (inReader.matches(data, JPEG_XMP_ID)) {
+                    packet = inReader.readBytes(data + JPEG_XMP_ID.length,
+                            dataLength - JPEG_XMP_ID.length);
+
+                } else if (inReader.matches(data, JPEG_EXTENDED_XMP_ID)) {
+                    long chunk = data + JPEG_EXTENDED_XMP_ID.length;
+                    String guid = new String(inReader.readBytes(chunk,
+                            GUID_LENGTH), StandardCharsets.US_ASCII);
+                    long fullLength = inReader.readU32(chunk + GUID_LENGTH);
+                    long offset = inReader.readU32(chunk + GUID_LENGTH + 4);
+                    int chunkLength = dataLength - JPEG_EXTENDED_XMP_ID.length
+                            - GUID_LENGTH - 8;
+
+                    if (fullLength > Math.min(MAX_PACKET_SIZE, inReader.size())
+                            || offset > fullLength) {
+                        return new XMPPacket(new byte[0], null);
+                    }
+
+                    byte[] full = extended.get(guid);
+                    if (full == null) {
+                        full = new byte[(int) fullLength];
+                        extended.put(guid, full);
+                    }
+                    if (chunkLength > 0 && offset + chunkLength <= full.length) {
+                        byte[] bytes = inReader.readBytes(chunk + GUID_LENGTH
+                                + 8, chunkLength);
+                        System.arraycopy(bytes, 0, full, (int) offset,
+                                bytes.length);
+                    }
+                }
+            }
+
+            pos += 2 + length;
+        }
+
+        // The main packet tells which Extended XMP belongs to it
+        byte[] extendedPacket = null;
+        if (!extended.isEmpty()) {
+            String main = new String(packet, StandardCharsets.UTF_8);
+            for (String guid : extended.keySet()) {
+                if (main.indexOf(guid) > -1) {
+                    extendedPacket = extended.get(guid);
+                    break;
+                }
+            }
+        }
+
+        return new XMPPacket(packet, extendedPacket);
+    }
+
+    protected static XMPPacket extractFromPNG(ImageBytesReader inReader)
+            throws IOException, DataFormatException {
+
+        inReader.setByteOrder(ByteOrder.BIG_ENDIAN);
+
+        // iTXt can be before or after the image data, we check all the chunks
+        long pos = 8;
+        while (pos + 8 <= inReader.size()) {
+            long length = inReader.readU32(pos);
+            String type = new String(inReader.readBytes(pos + 4, 4),
+                    StandardCharsets.US_ASCII);
+            if ("IEND".equals(type)) {
+                break;
+            }
+            if ("iTXt".equals(type) && length > PNG_XMP_KEYWORD.length
+                    && inReader.matches(pos + 8, PNG_XMP_KEYWORD)) {
+                if (length > Math.min(MAX_PACKET_SIZE, inReader.size())) {
+                    return new XMPPacket(new byte[0], null);
+                }
+                byte[] chunk = inReader.readBytes(pos + 8, (int) length);
+                int idx = PNG_XMP_KEYWORD.length;
+                boolean compressed = chunk[idx] == 1;
+                // Skip compression flag and method, then language tag and
+                // translated keyword (both null terminated)
+                idx += 2;
+                for (int i = 0; i < 2 && idx < chunk.length; i++) {
+                    while (idx < chunk.length && chunk[idx] != 0) {
+                        idx += 1;
+                    }
+                    idx += 1;
+                }
+                if (idx > chunk.length) {
+                    return null;
+                }
+
+                byte[] text = new byte[chunk.length - idx];
+                System.arraycopy(chunk, idx, text, 0, text.length);
+                if (compressed) {
+                    text = inflate(text, MAX_PACKET_SIZE);
+                    if (text == null) {
+                        return new XMPPacket(new byte[0], null);
+                    }
+                }
+                return new XMPPacket(text, null);
+            }
+            pos += 12 + length;
+        }
+
+        return new XMPPacket(new byte[0], null);
+    }
+
+    /*
+     * Returns null if the inflated data is larger than inMaxLength
+     */
+    protected static byte[] inflate(byte[] inCompressed, int inMaxLength)
+            throws DataFormatException {
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(inCompressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(
+                    inCompressed.length * 4, inMaxLength));
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated iTXt chunk");
+                }
+                if (out.size() + count > inMaxLength) {
+                    return null;
+                }
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    protected static XMPPacket extractFromGIF(ImageBytesReader inReader)
+            throws IOException {
+
+        inReader.setByteOrder(ByteOrder.LITTLE_ENDIAN);
+
+        int flags = inReader.readU8(10);
+        long pos = 13;
+        if ((flags & 0x80) != 0) {
+            pos += 3 * (1 << ((flags & 0x07) + 1));
+        }
+
+        while (true) {
+            int blockType = inReader.readU8(pos);
+            if (blockType == 0x2C) {
+                int imageFlags = inReader.readU8(pos + 9);
+                pos += 10;
+                if ((imageFlags & 0x80) != 0) {
+                    pos += 3 * (1 << ((imageFlags & 0x07) + 1));
+                }
+                pos = ImageHeaderParser.skipGIFSubBlocks(inReader, pos + 1);
+
+            } else if (blockType == 0x21) {
+                int label = inReader.readU8(pos + 1);
+                if (label == 0xFF && inReader.readU8(pos + 2) == 11
+                        && inReader.matches(pos + 3, GIF_XMP_ID)) {
+                    return new XMPPacket(readGIFPacket(inReader, pos + 3
+                            + GIF_XMP_ID.length), null);
+                }
+                pos = ImageHeaderParser.skipGIFSubBlocks(inReader, pos + 2);
+
+            } else if (blockType == 0x3B) {
+                return new XMPPacket(new byte[0], null);
+
+            } else {
+                return null;
+            }
+        }
+    }
+
+    /*
+     * In a GIF, the XMP is not split in sub-blocks: the packet is stored as
+     * is, followed by a 258 bytes "magic trailer" (0x01, 0xFF, 0xFE, ... 0x00)
+     * which makes the data look like sub-blocks to a GIF reader.
+     */
+    protected static byte[] readGIFPacket(ImageBytesReader inReader, long inPos)
+            throws IOException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long pos = inPos;
+        while (pos < inReader.size()) {
+            byte[] bytes = inReader.readBytes(pos, ImageBytesReader.WINDOW_SIZE);
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] == 0x01 && isGIFMagicTrailer(inReader, pos + i)) {
+                    out.write(bytes, 0, i);
+                    return out.toByteArray();
+                }
+            }
+            out.write(bytes, 0, bytes.length);
+            pos += bytes.length;
+        }
+        throw new IOException("No end for the XMP packet of the GIF");
+    }
+
+    protected static boolean isGIFMagicTrailer(ImageBytesReader inReader,
+            long inPos) throws IOException {
+        return inPos + 3 <= inReader.size()
+                && inReader.readU8(inPos + 1) == 0xFF
+                && inReader.readU8(inPos + 2) == 0xFE;
+    }
+
+    protected static XMPPacket extractFromTIFF(ImageBytesReader inReader)
+            throws IOException {
+
+        inReader.setByteOrder(inReader.readU8(0) == 'I' ? ByteOrder.LITTLE_ENDIAN
+                : ByteOrder.BIG_ENDIAN);
+
+        long ifd = inReader.readU32(4);
+        int count = inReader.readU16(ifd);
+        for (int i = 0; i < count; i++) {
+            long entry = ifd + 2 + 12 * i;
+            if (inReader.readU16(entry) == TIFF_TAG_XMP) {
+                int type = inReader.readU16(entry + 2);
+                // BYTE or UNDEFINED
+                if (type != 1 && type != 7) {
+                    return null;
+                }
+                long length = inReader.readU32(entry + 4);
+                if (length > Math.min(MAX_PACKET_SIZE, inReader.size())) {
+                    return new XMPPacket(new byte[0], null);
+                }
+                long offset = length <= 4 ? entry + 8 : inReader.readU32(entry + 8);
+                return new XMPPacket(inReader.readBytes(offset, (int) length),
+                        null);
+            }
+        }
+
+        return new XMPPacket(new byte[0], null);
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.imagemetadata;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.nuxeo.ecm.core.api.ClientException;
+
+/**
+ * Reads some properties of an XMP packet in a single pass (StAX), without
+ * building a DOM, and stops reading as soon as all of them are found.
+ * <p>
+ * A property is named as in the packet, <code>prefix:name</code>
+ * (<code>dc:subject</code>, <code>xmp:CreatorTool</code>,
+ * <code>photoshop:City</code>, ...). The usual prefixes (see
+ * {@link #NAMESPACES}) are matched by namespace, whatever the prefix used in
+ * the packet; others are matched by prefix.
+ * <p>
+ * Only the top-level properties are read (elements or attributes of
+ * <code>rdf:Description</code>):
+ * <ul>
+ * <li>Simple property: its text, or its <code>rdf:resource</code></li>
+ * <li><code>rdf:Alt</code>: the <code>x-default</code> item (the first item
+ * if there is none)</li>
+ * <li><code>rdf:Bag</code> and <code>rdf:Seq</code>: the items, separated by
+ * ", " (as exiftool does)</li>
+ * <li>Structures are ignored</li>
+ * </ul>
+ * The values are accumulated: the same parser can read the packet, then the
+ * Extended XMP (see {@link #parse(XMPPacketExtractor.XMPPacket)}).
+ *
+ * @since 7.1
+ */
+public class XMPStreamParser {
+
+    public static final String RDF_NS = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+
+    public static final String LIST_SEPARATOR = ", ";
+
+    /**
+     * Prefix =&gt; namespace of the usual XMP schemas
+     */
+    public static final HashMap<String, String> NAMESPACES = new HashMap<String, String>();
+
+    static {
+        NAMESPACES.put("dc", "http://purl.org/dc/elements/1.1/");
+        NAMESPACES.put("xmp", "http://ns.adobe.com/xap/1.0/");
+        NAMESPACES.put("xmpRights", "http://ns.adobe.com/xap/1.0/rights/");
+        NAMESPACES.put("xmpMM", "http://ns.adobe.com/xap/1.0/mm/");
+        NAMESPACES.put("xmpDM", "http://ns.adobe.com/xmp/1.0/DynamicMedia/");
+        NAMESPACES.put("xmpNote", "http://ns.adobe.com/xmp/note/");
+        NAMESPACES.put("photoshop", "http://ns.adobe.com/photoshop/1.0/");
+        NAMESPACES.put("tiff", "http://ns.adobe.com/tiff/1.0/");
+        NAMESPACES.put("exif", "http://ns.adobe.com/exif/1.0/");
+        NAMESPACES.put("exifEX", "http://cipa.jp/exif/1.0/");
+        NAMESPACES.put("aux", "http://ns.adobe.com/exif/1.0/aux/");
+        NAMESPACES.put("crs", "http://ns.adobe.com/camera-raw-settings/1.0/");
+        NAMESPACES.put("lr", "http://ns.adobe.com/lightroom/1.0/");
+        NAMESPACES.put("pdf", "http://ns.adobe.com/pdf/1.3/");
+        NAMESPACES.put("Iptc4xmpCore",
+                "http://iptc.org/std/Iptc4xmpCore/1.0/xmlns/");
+        NAMESPACES.put("Iptc4xmpExt",
+                "http://iptc.org/std/Iptc4xmpExt/2008-02-29/");
+        NAMESPACES.put("plus", "http://ns.useplus.org/ldf/xmp/1.0/");
+    }
+
+    protected static final XMLInputFactory factory = XMLInputFactory.newInstance();
+
+    static {
+        // A packet has no reason to reference anything
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                false);
+    }
+
+    // "{namespace}name" or "prefix:name" => the property as requested
+    protected final HashMap<String, String> wanted = new HashMap<String, String>();
+
+    protected final HashMap<String, String> values = new HashMap<String, String>();
+
+    /**
+     * @param inProperties the properties to read, <code>prefix:name</code>
+     */
+    public XMPStreamParser(Collection<String> inProperties) {
+
+        for (String property : inProperties) {
+            int pos = property.indexOf(':');
+            if (pos < 1) {
+                throw new ClientException("Not an XMP property: " + property);
+            }
+            String ns = NAMESPACES.get(property.substring(0, pos));
+            wanted.put(ns == null ? property : "{" + ns + "}"
+                    + property.substring(pos + 1), property);
+        }
+    }
+
+    /**
+     * @return the values found so far, by property
+     */
+    public HashMap<String, String> getValues() {
+        return values;
+    }
+
+    /**
+     * @return true if all the properties were found
+     */
+    public boolean isComplete() {
+        return values.size() == wanted.size();
+    }
+
+    /**
+     * Reads the packet, then the Extended XMP if some properties are not
+     * found yet
+     */
+    public HashMap<String, String> parse(XMPPacketExtractor.XMPPacket inPacket)
+            throws XMLStreamException {
+
+        if (!inPacket.isEmpty()) {
+            parse(new ByteArrayInputStream(inPacket.getPacket()));
+        }
+        if (!isComplete() && inPacket.getExtendedPacket() != null) {
+            parse(new ByteArrayInputStream(inPacket.getExtendedPacket()));
+        }
+        return values;
+    }
+
+    /**
+     * Reads the packet until all the properties are found. The stream is not
+     * closed.
+     */
+    public HashMap<String, String> parse(InputStream inPacket)
+            throws XMLStreamException {
+
+        if (isComplete()) {
+            return values;
+        }
+
+        XMLStreamReader reader = factory.createXMLStreamReader(inPacket);
+        try {
+            int depth = 0;
+            // Depth of the top-level rdf:Description we are in, -1 if none
+            int descriptionDepth = -1;
+            boolean inRDF = false;
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    if (isRDF(reader, "RDF")) {
+                        inRDF = true;
+                    } else if (inRDF && descriptionDepth < 0
+                            && isRDF(reader, "Description")) {
+                        descriptionDepth = depth;
+                        readAttributes(reader);
+                    } else if (descriptionDepth > 0
+                            && depth == descriptionDepth + 1) {
+                        String property = getWanted(
+                                reader.getNamespaceURI(), reader.getPrefix(),
+                                reader.getLocalName());
+                        if (property != null) {
+                            String value = readValue(reader);
+                            // The property element is consumed
+                            depth--;
+                            if (value != null) {
+                                values.put(property, value);
+                            }
+                        }
+                    }
+                    break;
+
+                case XMLStreamConstants.END_ELEMENT:
+                    if (depth == descriptionDepth) {
+                        descriptionDepth = -1;
+                    } else if (isRDF(reader, "RDF")) {
+                        inRDF = false;
+                    }
+                    depth--;
+                    break;
+                }
+                if (isComplete()) {
+                    break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return values;
+    }
+
+    protected static boolean isRDF(XMLStreamReader inReader, String inName) {
+        return RDF_NS.equals(inReader.getNamespaceURI())
+                && inName.equals(inReader.getLocalName());
+    }
+
+    /*
+     * The property as requested, null if it is not wanted
+     */
+    protected String getWanted(String inNamespace, String inPrefix,
+            String inName) {
+        String property = wanted.get("{" + inNamespace + "}" + inName);
+        return property != null ? property : wanted.get(inPrefix + ":"
+                + inName);
+    }
+
+    /*
+     * The simple properties written as attributes of rdf:Description
+     */
+    protected void readAttributes(XMLStreamReader inReader) {
+
+        for (int i = 0; i < inReader.getAttributeCount(); i++) {
+            String ns = inReader.getAttributeNamespace(i);
+            if (ns == null || ns.isEmpty() || RDF_NS.equals(ns)
+                    || XMLConstants.XML_NS_URI.equals(ns)) {
+                continue;
+            }
+            String property = getWanted(ns, inReader.getAttributePrefix(i),
+                    inReader.getAttributeLocalName(i));
+            if (property != null) {
+                values.put(property, inReader.getAttributeValue(i));
+            }
+        }
+    }
+
+    /*
+     * Reads the value of the property the reader is on, up to its end
+     * element. Returns null for a structure.
+     */
+    protected static String readValue(XMLStreamReader inReader)
+            throws XMLStreamException {
+
+        String resource = inReader.getAttributeValue(RDF_NS, "resource");
+        if ("Resource".equals(inReader.getAttributeValue(RDF_NS, "parseType"))) {
+            resource = null;
+        }
+
+        StringBuilder text = new StringBuilder();
+        StringBuilder item = null;
+        List<String> items = new ArrayList<String>();
+        String defaultItem = null;
+        boolean isAlt = false, isStruct = false, isDefault = false;
+        // 1: the property, 2: the container, 3: its items
+        int level = 1;
+        while (level > 0) {
+            switch (inReader.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+                level++;
+                if (level == 2) {
+                    isAlt = isRDF(inReader, "Alt");
+                    isStruct = !isAlt && !isRDF(inReader, "Bag")
+                            && !isRDF(inReader, "Seq");
+                } else if (level == 3 && !isStruct && isRDF(inReader, "li")) {
+                    item = new StringBuilder();
+                    isDefault = "x-default".equals(inReader.getAttributeValue(
+                            XMLConstants.XML_NS_URI, "lang"));
+                }
+                break;
+
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+                if (level == 1) {
+                    text.append(inReader.getText());
+                } else if (level == 3 && item != null) {
+                    item.append(inReader.getText());
+                }
+                break;
+
+            case XMLStreamConstants.END_ELEMENT:
+                if (level == 3 && item != null) {
+                    items.add(item.toString().trim());
+                    if (isDefault) {
+                        defaultItem = items.get(items.size() - 1);
+                    }
+                    item = null;
+                }
+                level--;
+                break;
+            }
+        }
+
+        if (isStruct) {
+            return null;
+        }
+        if (!items.isEmpty()) {
+            if (isAlt) {
+                return defaultItem != null ? defaultItem : items.get(0);
+            }
+            StringBuilder list = new StringBuilder();
+            for (String oneItem : items) {
+                if (list.length() > 0) {
+                    list.append(LIST_SEPARATOR);
+                }
+                list.append(oneItem);
+            }
+            return list.toString();
+        }
+        return resource != null ? resource : text.toString().trim();
+    }
+}
@@ -19,40 +19,114 @@ package org.nuxeo.imagemetadata.test;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 
+import org.im4java.core.IMOperation;
+import org.im4java.core.ImageCommand;
+import org.im4java.core.InfoException;
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
+import org.im4java.process.OutputConsumer;
+import org.im4java.process.Pipe;
 import org.junit.runner.RunWith;
 import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.im4java.Bulkhead;
+import org.nuxeo.im4java.CircuitBreaker;
+import org.nuxeo.im4java.IdentifyInfo;
+import org.nuxeo.im4java.KeyValueOutputConsumer;
+import org.nuxeo.im4java.StringOutputConsumer;
+import org.nuxeo.im4java.TimedCommand;
+import org.nuxeo.im4java.ToolSaturatedException;
+import org.nuxeo.im4java.ToolTimeoutException;
+import org.nuxeo.im4java.ToolUnavailableException;
 import org.nuxeo.ecm.automation.AutomationService;
 import org.nuxeo.ecm.automation.OperationChain;
 import org.nuxeo.ecm.automation.OperationContext;
 import org.nuxeo.ecm.automation.core.util.Properties;
 import org.nuxeo.ecm.automation.test.EmbeddedAutomationServerFeature;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.api.impl.DocumentModelListImpl;
+import org.nuxeo.ecm.core.api.impl.blob.ByteArrayBlob;
 import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
 import org.nuxeo.ecm.core.test.CoreFeature;
+import org.nuxeo.ecm.core.work.api.WorkManager;
 import org.nuxeo.ecm.platform.test.PlatformFeature;
 import org.nuxeo.imagemetadata.ImageMetadataConstants.*;
+import org.nuxeo.imagemetadata.ImageMetadataReader.SCAN_DEPTH;
 import org.nuxeo.imagemetadata.ImageMetadataReader.WHICH_TOOL;
+import org.nuxeo.imagemetadata.BlobMaterializer;
+import org.nuxeo.imagemetadata.DocumentMetadataUpdater;
+import org.nuxeo.imagemetadata.ExifToolProcess;
+import org.nuxeo.imagemetadata.ExifToolProcessPool;
+import org.nuxeo.imagemetadata.ExtractMetadataWork;
 import org.nuxeo.imagemetadata.ExtractXMPFromBlobOp;
+import org.nuxeo.imagemetadata.FieldConverter;
+import org.nuxeo.imagemetadata.ImageFormat;
+import org.nuxeo.imagemetadata.ImageHeaderInfo;
+import org.nuxeo.imagemetadata.ImageMetadataCache;
+import org.nuxeo.imagemetadata.ImageHeaderParser;
+import org.nuxeo.imagemetadata.ImageMetadataConstants;
+import org.nuxeo.imagemetadata.ImageMetadataListener;
 import org.nuxeo.imagemetadata.ImageMetadataReader;
+import org.nuxeo.imagemetadata.ImageMetadataWriter;
+import org.nuxeo.imagemetadata.MetadataPlanner;
+import org.nuxeo.imagemetadata.MetadataRecord;
+import org.nuxeo.imagemetadata.MetadataView;
+import org.nuxeo.imagemetadata.PrefixBytesReader;
 import org.nuxeo.imagemetadata.SavePictureMeadataInDocument;
+import org.nuxeo.imagemetadata.SaveXMPMetadataInDocument;
+import org.nuxeo.imagemetadata.ToolCapabilities;
+import org.nuxeo.imagemetadata.ToolCapabilityRegistry;
+import org.nuxeo.imagemetadata.WritePictureMetadata;
+import org.nuxeo.imagemetadata.XMPPacketExtractor;
+import org.nuxeo.imagemetadata.XMPStreamParser;
 import org.nuxeo.imagemetadata.XYResolutionDPI;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.metrics.MetricsService;
 import org.nuxeo.runtime.test.runner.Deploy;
 import org.nuxeo.runtime.test.runner.Features;
 import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.transaction.TransactionHelper;
 import org.w3c.dom.Document;
 import org.xml.sax.InputSource;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
 import com.google.inject.Inject;
 
 @RunWith(FeaturesRunner.class)
@@ -74,6 +148,9 @@ public class ImageMetadataReaderTest {
 
     private static final String WITH_XMP = "images/with-xmp.jpg";
 
+    // 2 pages: 40x30, then 20x10
+    private static final String MULTIPAGE_TIF = "images/multipage.tif";
+
     protected File filePNG;
 
     protected File fileGIF;
@@ -99,7 +176,7 @@ public class ImageMetadataReaderTest {
     AutomationService service;
 
     @Before
-    public void setUp() {
+    public void setUp() throws Exception {
         // Setup documents if needed, etc.
         filePNG = FileUtils.getResourceFileFromContext(IMAGE_PNG);
         fileGIF = FileUtils.getResourceFileFromContext(IMAGE_GIF);
@@ -119,6 +196,21 @@ public class ImageMetadataReaderTest {
         docTIF = createPictureDocument(fileTIF);
         docJPEG = createPictureDocument(fileJPEG);
         coreSession.save();
+
+        waitForToolProbing();
+    }
+
+    /*
+     * The tools are probed in the background when Nuxeo starts, and are not
+     * available until it ends
+     */
+    protected static void waitForToolProbing() throws InterruptedException {
+        ToolCapabilityRegistry registry = ToolCapabilityRegistry.getRegistry();
+        long start = System.currentTimeMillis();
+        while (!registry.isProbed()
+                && System.currentTimeMillis() - start < 60000) {
+            Thread.sleep(50);
+        }
     }
 
     @After
@@ -475,4 +567,1611 @@ public class ImageMetadataReaderTest {
         }
 
     }
+
+    @Test
+    public void testExifToolProcessPool() throws Exception {
+
+        ExifToolProcessPool pool = ExifToolProcessPool.getInstance();
+        assertTrue(pool.isEnabled());
+        long startedBefore = pool.getStartedProcesses();
+        long requestsBefore = pool.getRequestCount();
+
+        String[] theKeys = { "ImageWidth", "ImageHeight", "FileType" };
+        for (int i = 0; i < 10; i++) {
+            ImageMetadataReader imdr = new ImageMetadataReader(
+                    fileJPEG.getAbsolutePath());
+            HashMap<String, String> result = imdr.getMetadataWithExifTool(theKeys);
+            assertEquals("1597", result.get("ImageWidth"));
+            assertEquals("232", result.get("ImageHeight"));
+            assertEquals("JPEG", result.get("FileType"));
+
+            imdr = new ImageMetadataReader(filePNG.getAbsolutePath());
+            assertTrue(imdr.getXMPWithExifTool().isEmpty());
+        }
+
+        // The processes are re-used, not started for each call
+        assertEquals(requestsBefore + 20, pool.getRequestCount());
+        assertTrue(pool.getStartedProcesses() - startedBefore <= pool.getPoolSize());
+        assertTrue(pool.getProcessCount() <= pool.getPoolSize());
+
+        // An error reported by exiftool does not break the pool
+        ImageMetadataReader imdr = new ImageMetadataReader("/not/a/file.jpg");
+        try {
+            imdr.getMetadataWithExifTool(theKeys);
+            assertTrue("Should have failed on a missing file", false);
+        } catch (ClientException e) {
+            // Expected
+        }
+        imdr = new ImageMetadataReader(fileJPEG.getAbsolutePath());
+        assertEquals("1597", imdr.getMetadataWithExifTool(theKeys).get("ImageWidth"));
+    }
+
+    @Test
+    public void testImageHeaderParser() throws Exception {
+
+        File nuxeoFile = FileUtils.getResourceFileFromContext(NUXEO_LOGO);
+        File withXmpFile = FileUtils.getResourceFileFromContext(WITH_XMP);
+        File[] files = { filePNG, fileGIF, fileTIF, fileJPEG, nuxeoFile,
+                withXmpFile };
+
+        for (File f : files) {
+            ImageHeaderInfo header = ImageHeaderParser.parse(f);
+            assertNotNull(f.getName(), header);
+
+            // Must be the same as ImageMagick
+            ImageMetadataReader imdr = new ImageMetadataReader(
+                    f.getAbsolutePath());
+            HashMap<String, String> fromIM = imdr.getMetadata(null);
+            HashMap<String, String> fromHeader = header.toMetadata();
+            for (String key : ImageMetadataConstants.DEFAULT_KEYS) {
+                String expected = fromIM.get(key);
+                if (expected == null) {
+                    expected = "";
+                }
+                if (key.equals(KEYS.RESOLUTION)
+                        && header.getFormat() == ImageFormat.GIF) {
+                    // Realigned by the reader
+                    expected = "72x72";
+                }
+                assertEquals(f.getName() + ", " + key, expected,
+                        fromHeader.get(key));
+            }
+        }
+
+        XYResolutionDPI dpi = ImageHeaderParser.parse(filePNG).getResolutionDPI();
+        assertEquals(96, dpi.getX());
+        assertEquals(96, dpi.getY());
+
+        // Not an image
+        File notAnImage = File.createTempFile("IMDR-test-", ".txt");
+        notAnImage.deleteOnExit();
+        Files.write(notAnImage.toPath(), "Hello world".getBytes());
+        assertNull(ImageHeaderParser.parse(notAnImage));
+    }
+
+    @Test
+    public void testXMPPacketExtractor() throws Exception {
+
+        // Same XMP as exiftool
+        File withXmpFile = FileUtils.getResourceFileFromContext(WITH_XMP);
+        ImageMetadataReader imdr = new ImageMetadataReader(
+                withXmpFile.getAbsolutePath());
+        XMPPacketExtractor.XMPPacket packet = imdr.getXMPPacket();
+        assertNotNull(packet);
+        assertFalse(packet.isEmpty());
+        assertNull(packet.getExtendedPacket());
+        String fromExifTool = imdr.getXMPWithExifTool();
+        assertEquals(fromExifTool, packet.getPacketAsString());
+
+        // No XMP in these ones
+        File[] noXMP = { filePNG, fileGIF, fileTIF, fileJPEG };
+        for (File f : noXMP) {
+            imdr = new ImageMetadataReader(f.getAbsolutePath());
+            packet = imdr.getXMPPacket();
+            assertNotNull(f.getName(), packet);
+            assertTrue(f.getName(), packet.isEmpty());
+            assertEquals(f.getName(), imdr.getXMPWithExifTool(), imdr.getXMP());
+        }
+
+        // Not handled => null, and getXMP() uses exiftool
+        File notAnImage = File.createTempFile("IMDR-test-", ".txt");
+        notAnImage.deleteOnExit();
+        Files.write(notAnImage.toPath(), "Hello world".getBytes());
+        imdr = new ImageMetadataReader(notAnImage.getAbsolutePath());
+        assertNull(imdr.getXMPPacket());
+        assertTrue(imdr.getXMP().isEmpty());
+
+        // Force exiftool in the operation
+        OperationContext ctx = new OperationContext(coreSession);
+        ctx.setInput(new FileBlob(withXmpFile));
+        OperationChain chain = new OperationChain("testChain");
+        chain.add(ExtractXMPFromBlobOp.ID).set("varName", "xmp").set(
+                "useExifTool", true);
+        service.run(ctx, chain);
+        assertEquals(fromExifTool, ctx.get("xmp"));
+    }
+
+    @Test
+    public void testStreamedBlob() throws Exception {
+
+        // A blob not backed by a file is streamed to the tools: same values
+        // as when reading the file
+        String[] imKeys = { KEYS.WIDTH, KEYS.HEIGHT, KEYS.COLORSPACE,
+                KEYS.RESOLUTION, KEYS.UNITS, KEYS.FORMAT };
+        String[] etKeys = { "ImageWidth", "ImageHeight", "FileType" };
+        File[] files = { filePNG, fileGIF, fileTIF, fileJPEG };
+        for (File f : files) {
+            ByteArrayBlob blob = new ByteArrayBlob(Files.readAllBytes(f.toPath()));
+
+            ImageMetadataReader fromFile = new ImageMetadataReader(
+                    f.getAbsolutePath());
+            try (ImageMetadataReader fromStream = new ImageMetadataReader(blob)) {
+                HashMap<String, String> expected = fromFile.getMetadata(imKeys);
+                HashMap<String, String> result = fromStream.getMetadata(imKeys);
+                for (String key : imKeys) {
+                    if (!KEYS.FORMAT.equals(key)) {
+                        assertEquals(f.getName() + "/" + key,
+                                expected.get(key), result.get(key));
+                    }
+                }
+                assertEquals(f.getName(),
+                        expected.get(KEYS.FORMAT).split(" ")[0],
+                        result.get(KEYS.FORMAT).split(" ")[0]);
+
+                // exiftool reads a copy by default (in the pool)
+                expected = fromFile.getMetadataWithExifTool(etKeys);
+                result = fromStream.getMetadataWithExifTool(etKeys);
+                for (String key : etKeys) {
+                    assertEquals(f.getName() + "/" + key, expected.get(key),
+                            result.get(key));
+                }
+            }
+
+            // Or its standard input
+            Framework.getProperties().setProperty(
+                    ImageMetadataReader.EXIFTOOL_STREAMING_ENABLED_PROP,
+                    "true");
+            try (ImageMetadataReader fromStream = new ImageMetadataReader(blob)) {
+                HashMap<String, String> expected = fromFile.getMetadataWithExifTool(etKeys);
+                HashMap<String, String> result = fromStream.getMetadataWithExifTool(etKeys);
+                for (String key : etKeys) {
+                    assertEquals(f.getName() + "/" + key, expected.get(key),
+                            result.get(key));
+                }
+            } finally {
+                Framework.getProperties().remove(
+                        ImageMetadataReader.EXIFTOOL_STREAMING_ENABLED_PROP);
+            }
+        }
+
+        File withXmpFile = FileUtils.getResourceFileFromContext(WITH_XMP);
+        try (ImageMetadataReader fromStream = new ImageMetadataReader(
+                new ByteArrayBlob(Files.readAllBytes(withXmpFile.toPath())))) {
+            assertEquals(
+                    new ImageMetadataReader(withXmpFile.getAbsolutePath()).getXMPWithExifTool(),
+                    fromStream.getXMP());
+        }
+    }
+
+    @Test
+    public void testImageMetadataCache() throws Exception {
+
+        HashMap<String, String> values = new HashMap<String, String>();
+        values.put(KEYS.WIDTH, "100");
+
+        // LRU, max entries
+        ImageMetadataCache cache = new ImageMetadataCache(2, 1024 * 1024,
+                3600, 3600);
+        cache.putMetadata("a", values);
+        cache.putMetadata("b", values);
+        assertNotNull(cache.getMetadata("a"));
+        cache.putMetadata("c", values);
+        assertEquals(2, cache.getEntryCount());
+        assertNull(cache.getMetadata("b"));
+        assertNotNull(cache.getMetadata("a"));
+        assertNotNull(cache.getMetadata("c"));
+        assertEquals(1, cache.getEvictions());
+
+        // A copy is returned
+        cache.getMetadata("a").put(KEYS.WIDTH, "200");
+        assertEquals("100", cache.getMetadata("a").get(KEYS.WIDTH));
+
+        // Max bytes
+        cache = new ImageMetadataCache(100, 1000, 3600, 3600);
+        for (int i = 0; i < 50; i++) {
+            cache.putString("xmp" + i, "0123456789");
+            assertTrue(cache.getBytes() <= 1000);
+        }
+        assertNotNull(cache.getString("xmp49"));
+        assertNull(cache.getString("xmp0"));
+
+        // TTL
+        cache = new ImageMetadataCache(10, 1024 * 1024, 0, 0);
+        cache.putString("xmp", "<x:xmpmeta/>");
+        Thread.sleep(10);
+        assertNull(cache.getString("xmp"));
+        assertEquals(0, cache.getEntryCount());
+
+        // Failures
+        cache = new ImageMetadataCache(10, 1024 * 1024, 3600, 3600);
+        cache.putFailure("bad", "Not an image");
+        try {
+            cache.getMetadata("bad");
+            assertTrue("Should have failed", false);
+        } catch (ClientException e) {
+            assertTrue(e.getMessage().contains("Not an image"));
+        }
+        assertEquals(1, cache.getFailureHits());
+
+        // Order of the keys does not matter
+        assertEquals(ImageMetadataCache.buildKey("d", "EXIFTOOL",
+                new String[] { "a", "b" }), ImageMetadataCache.buildKey("d",
+                "EXIFTOOL", new String[] { "b", "a" }));
+
+        // Used by the reader when the blob has a digest
+        ImageMetadataCache shared = ImageMetadataCache.getInstance();
+        assertTrue(shared.isEnabled());
+        FileBlob blob = new FileBlob(fileJPEG);
+        blob.setDigest("testImageMetadataCache-" + System.currentTimeMillis());
+        String[] theKeys = { KEYS.WIDTH, KEYS.FORMAT };
+
+        long hits = shared.getHits();
+        HashMap<String, String> first = new ImageMetadataReader(blob).getMetadata(theKeys);
+        assertEquals(hits, shared.getHits());
+        HashMap<String, String> second = new ImageMetadataReader(blob).getMetadata(theKeys);
+        assertEquals(hits + 1, shared.getHits());
+        assertEquals(first, second);
+
+        String xmp = new ImageMetadataReader(blob).getXMP();
+        assertEquals(xmp, new ImageMetadataReader(blob).getXMP());
+        assertEquals(hits + 2, shared.getHits());
+    }
+
+    @Test
+    public void testBatchWithExifTool() throws Exception {
+
+        String[] theKeys = { "ImageWidth", "ImageHeight", "FileType" };
+        File[] files = { filePNG, fileGIF, fileTIF, fileJPEG, filePNG };
+        ArrayList<ImageMetadataReader> readers = new ArrayList<ImageMetadataReader>();
+        for (File f : files) {
+            readers.add(new ImageMetadataReader(f.getAbsolutePath()));
+        }
+        readers.add(new ImageMetadataReader("/not/a/file.jpg"));
+
+        // One single request for all the files
+        ExifToolProcessPool pool = ExifToolProcessPool.getInstance();
+        long requestsBefore = pool.getRequestCount();
+        List<HashMap<String, String>> results = ImageMetadataReader.getMetadataWithExifTool(
+                readers.subList(0, files.length), theKeys);
+        assertEquals(requestsBefore + 1, pool.getRequestCount());
+
+        assertEquals(files.length, results.size());
+        for (int i = 0; i < files.length; i++) {
+            assertEquals(files[i].getName(),
+                    readers.get(i).getMetadataWithExifTool(theKeys),
+                    results.get(i));
+        }
+        assertEquals("328", results.get(1).get("ImageWidth"));
+        assertEquals("JPEG", results.get(2).get("FileType"));
+
+        // A file exiftool can't read does not break the others
+        results = ImageMetadataReader.getMetadataWithExifTool(readers, theKeys);
+        assertEquals(readers.size(), results.size());
+        assertNull(results.get(files.length));
+        assertEquals("1597", results.get(3).get("ImageWidth"));
+
+        // The operation, with a list of documents
+        DocumentModelList docs = new DocumentModelListImpl();
+        docs.add(docPNG);
+        docs.add(docGIF);
+        docs.add(docTIF);
+        docs.add(docJPEG);
+
+        OperationContext ctx = new OperationContext(coreSession);
+        OperationChain chain = new OperationChain("testChain");
+        Properties props = new Properties();
+        props.put("dc:format", "ImageHeight");
+        props.put("dc:source", "FileType");
+        chain.add(SavePictureMeadataInDocument.ID).set("tool", "ExifTool").set(
+                "properties", props).set("batchSize", 3);
+        ctx.setInput(docs);
+        DocumentModelList resultDocs = (DocumentModelList) service.run(ctx,
+                chain);
+
+        assertEquals(4, resultDocs.size());
+        assertEquals("100", resultDocs.get(0).getPropertyValue("dc:format"));
+        assertEquals("PNG", resultDocs.get(0).getPropertyValue("dc:source"));
+        assertEquals("331", resultDocs.get(1).getPropertyValue("dc:format"));
+        assertEquals("GIF", resultDocs.get(1).getPropertyValue("dc:source"));
+        assertEquals("640", resultDocs.get(2).getPropertyValue("dc:format"));
+        assertEquals("232", resultDocs.get(3).getPropertyValue("dc:format"));
+        assertEquals("JPEG", resultDocs.get(3).getPropertyValue("dc:source"));
+
+        // Saved
+        DocumentModel saved = coreSession.getDocument(docGIF.getRef());
+        assertEquals("GIF", saved.getPropertyValue("dc:source"));
+    }
+
+    @Test
+    public void testConcurrentImageMagickAndGraphicsMagick() throws Exception {
+
+        Assume.assumeTrue(ImageMetadataReader.isGraphicsMagickAvailable(false));
+
+        final String[] theKeys = { KEYS.WIDTH, KEYS.HEIGHT, KEYS.FORMAT };
+        // Formats the tools read from their standard input
+        final File[] files = { filePNG, fileGIF, fileJPEG };
+        final WHICH_TOOL[] tools = { WHICH_TOOL.GRAPHICSMAGICK,
+                WHICH_TOOL.IMAGEMAGICK };
+        final int calls = files.length * tools.length;
+
+        // Each call keeps its tool (and its permit) busy until all the calls
+        // are running: a call serialized after another one never starts
+        final CyclicBarrier allRunning = new CyclicBarrier(calls);
+        Framework.getProperties().setProperty(
+                Bulkhead.PROP_PREFIX + TimedCommand.GRAPHICSMAGICK,
+                String.valueOf(calls));
+        Framework.getProperties().setProperty(
+                Bulkhead.PROP_PREFIX + TimedCommand.IMAGEMAGICK,
+                String.valueOf(calls));
+        Bulkhead.resetAll();
+        ExecutorService executor = Executors.newFixedThreadPool(calls);
+        try {
+            ArrayList<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+            for (final File f : files) {
+                for (final WHICH_TOOL tool : tools) {
+                    final HashMap<String, String> expected = new ImageMetadataReader(
+                            f.getAbsolutePath()).getMetadata(theKeys, tool);
+                    final GatedBlob blob = new GatedBlob(
+                            Files.readAllBytes(f.toPath()), allRunning);
+                    futures.add(executor.submit(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() throws Exception {
+                            try (ImageMetadataReader reader = new ImageMetadataReader(
+                                    blob)) {
+                                // Only the stream given to the tool waits
+                                reader.getFormat();
+                                blob.arm();
+                                return expected.equals(reader.getMetadata(
+                                        theKeys, tool));
+                            }
+                        }
+                    }));
+                }
+            }
+            // Each call gets the values of its own tool
+            for (Future<Boolean> future : futures) {
+                assertTrue(future.get());
+            }
+
+            // The GraphicsMagick calls ran together, while the ImageMagick
+            // ones were running
+            assertEquals(files.length,
+                    Bulkhead.get(TimedCommand.GRAPHICSMAGICK).getPeakActiveCount());
+            assertEquals(files.length,
+                    Bulkhead.get(TimedCommand.IMAGEMAGICK).getPeakActiveCount());
+        } finally {
+            executor.shutdownNow();
+            Framework.getProperties().remove(
+                    Bulkhead.PROP_PREFIX + TimedCommand.GRAPHICSMAGICK);
+            Framework.getProperties().remove(
+                    Bulkhead.PROP_PREFIX + TimedCommand.IMAGEMAGICK);
+            Bulkhead.resetAll();
+        }
+    }
+
+    @Test
+    public void testToolCapabilityRegistry() throws Exception {
+
+        ToolCapabilityRegistry registry = Framework.getService(ToolCapabilityRegistry.class);
+        assertNotNull(registry);
+        assertSame(registry, ToolCapabilityRegistry.getRegistry());
+
+        // A lookup does not wait for the first probing: the capabilities are
+        // unknown until it ends
+        ToolCapabilityRegistry notStarted = new ToolCapabilityRegistry() {
+            @Override
+            public synchronized void start() {
+            }
+        };
+        ToolCapabilities unknown = notStarted.getCapabilities(WHICH_TOOL.GRAPHICSMAGICK);
+        assertFalse(unknown.isProbed());
+        assertFalse(unknown.isAvailable());
+        assertEquals(0, unknown.getProbedAt());
+        assertFalse(notStarted.isProbed());
+
+        waitForToolProbing();
+        assertTrue(registry.isProbed());
+        assertTrue(registry.getCapabilities(WHICH_TOOL.IMAGEMAGICK).isProbed());
+
+        ToolCapabilities im = registry.getCapabilities(WHICH_TOOL.IMAGEMAGICK);
+        assertTrue(im.isAvailable());
+        assertFalse(im.getVersion().isEmpty());
+        assertTrue(im.canRead("jpeg"));
+        assertTrue(im.canRead("PNG"));
+        assertFalse(im.canRead("NOT-A-FORMAT"));
+
+        ToolCapabilities et = registry.getCapabilities(WHICH_TOOL.EXIFTOOL);
+        assertTrue(et.isAvailable());
+        assertTrue(et.getVersion().matches("\\d+\\.\\d+.*"));
+        assertTrue(et.canRead("JPG"));
+        assertTrue(ImageMetadataReader.isExifToolAvailable(false));
+
+        // Lookups don't probe again
+        assertSame(et, registry.getCapabilities(WHICH_TOOL.EXIFTOOL));
+
+        // Same result as a direct probe
+        ToolCapabilities gm = ToolCapabilityRegistry.probe(
+                WHICH_TOOL.GRAPHICSMAGICK, 30000);
+        assertEquals(gm.isAvailable(),
+                registry.isAvailable(WHICH_TOOL.GRAPHICSMAGICK));
+        assertEquals(gm.isAvailable(),
+                ImageMetadataReader.isGraphicsMagickAvailable(false));
+    }
+
+    @Test
+    public void testSavePictureMetadataInDocument_Async() throws Exception {
+
+        // Same document, xpath and parameters => same work (merged when
+        // scheduled)
+        Properties props = new Properties();
+        props.put("dc:format", "Format");
+        ExtractMetadataWork w1 = new ExtractMetadataWork(
+                docPNG.getRepositoryName(), docPNG.getId(), "file:content",
+                props, WHICH_TOOL.IMAGEMAGICK);
+        ExtractMetadataWork w2 = new ExtractMetadataWork(
+                docPNG.getRepositoryName(), docPNG.getId(), "file:content",
+                new HashMap<String, String>(props), WHICH_TOOL.IMAGEMAGICK);
+        assertEquals(w1.getId(), w2.getId());
+        assertEquals(ExtractMetadataWork.CATEGORY, w1.getCategory());
+        props.put("dc:source", "Units");
+        ExtractMetadataWork w3 = new ExtractMetadataWork(
+                docPNG.getRepositoryName(), docPNG.getId(), "file:content",
+                props, WHICH_TOOL.IMAGEMAGICK);
+        assertFalse(w1.getId().equals(w3.getId()));
+
+        // The operation returns the document unchanged...
+        OperationContext ctx = new OperationContext(coreSession);
+        ctx.setInput(docPNG);
+        OperationChain chain = new OperationChain("testChain");
+        chain.add(SavePictureMeadataInDocument.ID).set("async", true);
+        DocumentModel result = (DocumentModel) service.run(ctx, chain);
+        assertNull(result.getPropertyValue("imd:pixel_xdimension"));
+
+        // ...and the work, started after the commit, saves the values
+        TransactionHelper.commitOrRollbackTransaction();
+        WorkManager workManager = Framework.getLocalService(WorkManager.class);
+        assertTrue(workManager.awaitCompletion(
+                workManager.getCategoryQueueId(ExtractMetadataWork.CATEGORY),
+                20, TimeUnit.SECONDS));
+        TransactionHelper.startTransaction();
+
+        DocumentModel saved = coreSession.getDocument(docPNG.getRef());
+        assertEquals((long) 100, saved.getPropertyValue("imd:pixel_xdimension"));
+        assertEquals((long) 100, saved.getPropertyValue("imd:pixel_ydimension"));
+        assertEquals("sRGB", saved.getPropertyValue("imd:color_space"));
+        assertEquals((long) 96, saved.getPropertyValue("imd:xresolution"));
+    }
+
+    @Test
+    public void testMetadataPlanner() throws Exception {
+
+        MetadataPlanner planner = MetadataPlanner.getInstance();
+        ImageMetadataReader imdr = new ImageMetadataReader(
+                fileJPEG.getAbsolutePath());
+        assertEquals(ImageFormat.JPEG, imdr.getFormat());
+
+        assertTrue(MetadataPlanner.isExifToolKey("EXIF:Make"));
+        assertTrue(MetadataPlanner.isExifToolKey("XMP-dc:Creator"));
+        assertFalse(MetadataPlanner.isExifToolKey("Channel depth:red"));
+        assertFalse(MetadataPlanner.isExifToolKey(KEYS.WIDTH));
+
+        // Only header keys => no tool
+        String[] headerKeys = { KEYS.WIDTH, KEYS.HEIGHT };
+        assertEquals("{HEADER=[Width, Height]}",
+                planner.plan(headerKeys, imdr).toString());
+
+        // Header + ExifTool => one tool
+        String[] mixed = { KEYS.WIDTH, "EXIF:ImageWidth", "File:FileType" };
+        LinkedHashMap<MetadataPlanner.BACKEND, List<String>> plan = planner.plan(
+                mixed, imdr);
+        assertEquals(2, plan.size());
+        assertEquals(1, plan.get(MetadataPlanner.BACKEND.HEADER).size());
+        assertEquals(2, plan.get(MetadataPlanner.BACKEND.EXIFTOOL).size());
+
+        // ImageMagick is needed anyway => it also returns the header keys
+        String[] withMagick = { KEYS.WIDTH, KEYS.FORMAT };
+        plan = planner.plan(withMagick, imdr);
+        assertEquals(1, plan.size());
+        assertFalse(plan.containsKey(MetadataPlanner.BACKEND.HEADER));
+        assertFalse(plan.containsKey(MetadataPlanner.BACKEND.EXIFTOOL));
+
+        // Same values as with each tool
+        HashMap<String, String> result = imdr.getMetadata(mixed,
+                WHICH_TOOL.AUTO);
+        assertEquals("1597", result.get(KEYS.WIDTH));
+        assertEquals("1597", result.get("EXIF:ImageWidth"));
+        assertEquals("JPEG", result.get("File:FileType"));
+
+        // Never GraphicsMagick for other keys than the dimensions, even if it
+        // was measured faster: it does not return the same values
+        assertTrue(plan.containsKey(MetadataPlanner.BACKEND.IMAGEMAGICK));
+        result = imdr.getMetadata(withMagick, WHICH_TOOL.AUTO);
+        assertEquals(imdr.getMetadata(withMagick, WHICH_TOOL.IMAGEMAGICK),
+                result);
+        assertTrue(MetadataPlanner.isGraphicsMagickCompatible(Arrays.asList(
+                KEYS.WIDTH, KEYS.HEIGHT)));
+        assertFalse(MetadataPlanner.isGraphicsMagickCompatible(Arrays.asList(
+                KEYS.WIDTH, KEYS.COLORSPACE)));
+        assertFalse(MetadataPlanner.isGraphicsMagickCompatible(null));
+
+        // The operation
+        OperationContext ctx = new OperationContext(coreSession);
+        ctx.setInput(docJPEG);
+        OperationChain chain = new OperationChain("testChain");
+        Properties props = new Properties();
+        props.put("dc:format", KEYS.WIDTH);
+        props.put("dc:source", "File:FileType");
+        chain.add(SavePictureMeadataInDocument.ID).set("tool", "Auto").set(
+                "properties", props);
+        DocumentModel doc = (DocumentModel) service.run(ctx, chain);
+        assertEquals("1597", doc.getPropertyValue("dc:format"));
+        assertEquals("JPEG", doc.getPropertyValue("dc:source"));
+    }
+
+    @Test
+    public void testSingleExtractionWithAll() throws Exception {
+
+        final int[] identifyCount = { 0 };
+        ImageMetadataReader imdr = new ImageMetadataReader(
+                filePNG.getAbsolutePath()) {
+            @Override
+            protected IdentifyInfo newInfo(boolean inUseGM)
+                    throws InfoException {
+                identifyCount[0] += 1;
+                return super.newInfo(inUseGM);
+            }
+        };
+
+        // Not read from the header
+        String[] keys = { KEYS.FORMAT, "Page geometry" };
+        HashMap<String, String> result = imdr.getMetadata(keys);
+        String all = imdr.getAllMetadata();
+        assertEquals(1, identifyCount[0]);
+        assertTrue(all.indexOf("Format=" + result.get(KEYS.FORMAT)) > -1);
+
+        // ExifTool: once all the values are read, no other call
+        ExifToolProcessPool pool = ExifToolProcessPool.getInstance();
+        long requestsBefore = pool.getRequestCount();
+        imdr = new ImageMetadataReader(fileJPEG.getAbsolutePath());
+        HashMap<String, String> allValues = imdr.getMetadataWithExifTool(null);
+        String[] exifToolKeys = { "ImageWidth", "NotAnExifToolTag" };
+        result = imdr.getMetadataWithExifTool(exifToolKeys);
+        assertEquals(allValues.get("ImageWidth"), result.get("ImageWidth"));
+        assertEquals("", result.get("NotAnExifToolTag"));
+        String dump = imdr.getAllMetadata(WHICH_TOOL.EXIFTOOL);
+        assertTrue(dump.indexOf("ImageWidth=1597") > -1);
+        assertEquals(requestsBefore + 1, pool.getRequestCount());
+
+        // The operation, "all" and a typed field: one single exiftool call
+        // (none if the values are already in the cache)
+        OperationContext ctx = new OperationContext(coreSession);
+        ctx.setInput(docJPEG);
+        OperationChain chain = new OperationChain("testChain");
+        Properties props = new Properties();
+        props.put("dc:description", "all");
+        props.put("dc:format", "ImageWidth");
+        chain.add(SavePictureMeadataInDocument.ID).set("tool", "ExifTool").set(
+                "properties", props);
+        requestsBefore = pool.getRequestCount();
+        DocumentModel doc = (DocumentModel) service.run(ctx, chain);
+        assertTrue(pool.getRequestCount() <= requestsBefore + 1);
+        assertEquals("1597", doc.getPropertyValue("dc:format"));
+        String description = (String) doc.getPropertyValue("dc:description");
+        assertTrue(description.indexOf("FileType=JPEG") > -1);
+    }
+
+    @Test
+    public void testPing() throws Exception {
+
+        File nuxeoFile = FileUtils.getResourceFileFromContext(NUXEO_LOGO);
+        File[] files = { filePNG, fileGIF, fileTIF, fileJPEG, nuxeoFile };
+
+        for (File f : files) {
+            final int[] verboseCount = { 0 };
+            // Not backed by a file: the header parser is not used
+            ByteArrayBlob blob = new ByteArrayBlob(Files.readAllBytes(f.toPath()));
+            ImageMetadataReader imdr = new ImageMetadataReader(blob) {
+                @Override
+                protected IdentifyInfo newInfo(boolean inUseGM)
+                        throws InfoException {
+                    verboseCount[0] += 1;
+                    return super.newInfo(inUseGM);
+                }
+            };
+
+            // Must be the same as identify -verbose
+            HashMap<String, String> fromPing = imdr.getMetadata(ImageMetadataConstants.DEFAULT_KEYS);
+            assertEquals(f.getName(), 0, verboseCount[0]);
+
+            HashMap<String, String> fromIM = new ImageMetadataReader(
+                    f.getAbsolutePath()).getMetadata(null);
+            for (String key : ImageMetadataConstants.DEFAULT_KEYS) {
+                String expected = fromIM.get(key);
+                if (expected == null) {
+                    expected = "";
+                }
+                if (key.equals(KEYS.RESOLUTION) && f == fileGIF) {
+                    // Realigned by the reader
+                    expected = "72x72";
+                }
+                assertEquals(f.getName() + ", " + key, expected,
+                        fromPing.get(key));
+            }
+
+            // Format is not read with -ping
+            String[] withFormat = { KEYS.WIDTH, KEYS.FORMAT };
+            imdr.getMetadata(withFormat);
+            assertEquals(f.getName(), 1, verboseCount[0]);
+        }
+    }
+
+    @Test
+    public void testOutputConsumers() throws Exception {
+
+        String output = "======== a.jpg\nMake: Canon\nComment: a: b\n"
+                + "======== b.jpg\nMake: Nikon \n  2 image files read\n";
+        final HashMap<String, HashMap<String, String>> blocks = new HashMap<String, HashMap<String, String>>();
+        new KeyValueOutputConsumer(new KeyValueOutputConsumer.Sink() {
+            HashMap<String, String> current = null;
+
+            @Override
+            public void startBlock(String inName) {
+                current = new HashMap<String, String>();
+                blocks.put(inName, current);
+            }
+
+            @Override
+            public void put(String inKey, String inValue) {
+                current.put(inKey, inValue);
+            }
+        }).consumeOutput(new ByteArrayInputStream(
+                output.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(2, blocks.size());
+        assertEquals("Canon", blocks.get("a.jpg").get("Make"));
+        assertEquals("a: b", blocks.get("a.jpg").get("Comment"));
+        assertEquals(1, blocks.get("b.jpg").size());
+        assertEquals("Nikon", blocks.get("b.jpg").get("Make"));
+
+        // Line endings are kept (or not)
+        StringOutputConsumer lines = new StringOutputConsumer("UTF-8");
+        lines.consumeOutput(new ByteArrayInputStream("a\r\nb".getBytes()));
+        assertEquals("a\nb\n", lines.getOutput());
+        lines.clear();
+        assertEquals(0, lines.length());
+        StringOutputConsumer raw = new StringOutputConsumer("UTF-8", true);
+        raw.consumeOutput(new ByteArrayInputStream("a\r\nb".getBytes()));
+        assertEquals("a\r\nb", raw.getOutput());
+
+        // The XMP as a blob is the same as the XMP as a String
+        File withXmpFile = FileUtils.getResourceFileFromContext(WITH_XMP);
+        ImageMetadataReader imdr = new ImageMetadataReader(
+                withXmpFile.getAbsolutePath());
+        String xmp = imdr.getXMP();
+        Blob fromPacket = imdr.getXMPAsBlob();
+        assertNotNull(fromPacket);
+        assertEquals(xmp, new String(fromPacket.getByteArray(),
+                StandardCharsets.UTF_8));
+        Blob fromExifTool = imdr.getXMPWithExifToolAsBlob();
+        assertNotNull(fromExifTool);
+        assertEquals(imdr.getXMPWithExifTool(), new String(
+                fromExifTool.getByteArray(), StandardCharsets.UTF_8));
+
+        imdr = new ImageMetadataReader(fileJPEG.getAbsolutePath());
+        assertNull(imdr.getXMPAsBlob());
+        assertNull(imdr.getXMPWithExifToolAsBlob());
+
+        // Same values as before, the process is still usable after an error
+        // of the consumer
+        ExifToolProcessPool pool = ExifToolProcessPool.getInstance();
+        Assume.assumeTrue(pool.isEnabled());
+        ArrayList<String> args = new ArrayList<String>();
+        args.add("-s");
+        args.add("-ImageWidth");
+        args.add(fileJPEG.getAbsolutePath());
+        long started = pool.getStartedProcesses();
+        try {
+            pool.execute(args, new OutputConsumer() {
+                @Override
+                public void consumeOutput(InputStream inStream)
+                        throws IOException {
+                    throw new IOException("test");
+                }
+            });
+            fail("The consumer error should be thrown");
+        } catch (IOException e) {
+            assertEquals("test", e.getMessage());
+        }
+        StringOutputConsumer fromPool = new StringOutputConsumer("UTF-8");
+        pool.execute(args, fromPool);
+        assertEquals(started, pool.getStartedProcesses());
+        assertEquals(
+                new String(pool.execute(args), StandardCharsets.UTF_8).trim(),
+                fromPool.getOutput().trim());
+        assertTrue(fromPool.getOutput().startsWith("ImageWidth"));
+    }
+
+    @Test
+    public void testMetadataView() throws Exception {
+
+        String[] keys = { KEYS.WIDTH, KEYS.HEIGHT, KEYS.FORMAT,
+                "Channel depth:red", KEYS.RESOLUTION };
+        File[] files = { filePNG, fileGIF, fileTIF, fileJPEG };
+
+        for (File f : files) {
+            final int[] verboseCount = { 0 };
+            ImageMetadataReader imdr = new ImageMetadataReader(
+                    f.getAbsolutePath()) {
+                @Override
+                protected IdentifyInfo newInfo(boolean inUseGM)
+                        throws InfoException {
+                    verboseCount[0] += 1;
+                    return super.newInfo(inUseGM);
+                }
+            };
+
+            // Nothing is read before a value is accessed
+            MetadataView view = imdr.getMetadataView(keys,
+                    WHICH_TOOL.IMAGEMAGICK);
+            assertEquals(f.getName(), 0, verboseCount[0]);
+            assertEquals(f.getName(), 0, view.getResolvedCount());
+
+            // Same values as getMetadata(), only the keys accessed are copied
+            HashMap<String, String> expected = new ImageMetadataReader(
+                    f.getAbsolutePath()).getMetadata(keys);
+            assertEquals(f.getName(), expected.get(KEYS.WIDTH),
+                    view.get(KEYS.WIDTH));
+            assertEquals(f.getName(), 1, view.getResolvedCount());
+            assertFalse(f.getName(), view.isResolved(KEYS.HEIGHT));
+            assertEquals(f.getName(), expected, view.toMap());
+            assertEquals(f.getName(), 1, verboseCount[0]);
+            assertEquals(f.getName(), "", view.get("doesNotExist"));
+
+            // Only the default keys: identify -verbose is not run
+            verboseCount[0] = 0;
+            imdr = new ImageMetadataReader(f.getAbsolutePath()) {
+                @Override
+                protected IdentifyInfo newInfo(boolean inUseGM)
+                        throws InfoException {
+                    verboseCount[0] += 1;
+                    return super.newInfo(inUseGM);
+                }
+            };
+            view = imdr.getMetadataView(ImageMetadataConstants.DEFAULT_KEYS,
+                    WHICH_TOOL.IMAGEMAGICK);
+            HashMap<String, String> defaults = new ImageMetadataReader(
+                    f.getAbsolutePath()).getMetadata(ImageMetadataConstants.DEFAULT_KEYS);
+            for (String key : ImageMetadataConstants.DEFAULT_KEYS) {
+                assertEquals(f.getName() + ", " + key, defaults.get(key),
+                        view.get(key));
+            }
+            assertEquals(f.getName(), 0, verboseCount[0]);
+        }
+
+        // A view on values already read
+        HashMap<String, String> values = new HashMap<String, String>();
+        values.put(KEYS.WIDTH, "100");
+        MetadataView view = MetadataView.fromValues(values);
+        assertEquals("100", view.get(KEYS.WIDTH));
+        assertEquals("", view.get(KEYS.HEIGHT));
+    }
+
+    @Test
+    public void testFieldConvertersAndRecord() throws Exception {
+
+        // Compiled once per field
+        FieldConverter width = FieldConverter.getConverter(docPNG,
+                "imd:pixel_xdimension");
+        assertEquals(MetadataRecord.KIND.LONG, width.getKind());
+        assertSame(width,
+                FieldConverter.getConverter(docGIF, "imd:pixel_xdimension"));
+        FieldConverter title = FieldConverter.getConverter(docPNG, "dc:title");
+        assertEquals(MetadataRecord.KIND.STRING, title.getKind());
+
+        MetadataRecord record = new MetadataRecord(1);
+        width.convert("100.6", record);
+        title.convert(null, record);
+        width.convert("", record);
+        assertEquals(2, record.size());
+        assertEquals(0, record.indexOf("imd:pixel_xdimension"));
+        assertEquals(0L, record.getLong(0));
+        assertEquals("", record.getValue(1));
+        width.convert("100.6", record);
+        assertEquals(101L, record.getValue(0));
+
+        // Stored with the type of the field
+        Properties props = new Properties();
+        props.put("imd:pixel_xdimension", KEYS.WIDTH);
+        props.put("dc:title", KEYS.COLORSPACE);
+        DocumentMetadataUpdater updater = new DocumentMetadataUpdater(
+                "file:content", props, WHICH_TOOL.IMAGEMAGICK);
+        assertTrue(updater.update(docPNG, new ImageMetadataReader(
+                filePNG.getAbsolutePath())));
+        assertEquals(100L, docPNG.getPropertyValue("imd:pixel_xdimension"));
+        assertEquals("sRGB", docPNG.getPropertyValue("dc:title"));
+    }
+
+    @Test
+    public void testImageMetadataListener() throws Exception {
+
+        Framework.getProperties().setProperty(
+                ImageMetadataListener.ENABLED_PROP, "true");
+        try {
+            // Extracted at creation
+            DocumentModel doc = createPictureDocument(filePNG);
+            assertTrue(doc.hasFacet(DocumentMetadataUpdater.EXTRACTED_FACET));
+            assertEquals((long) 100,
+                    doc.getPropertyValue("imd:pixel_xdimension"));
+            Blob blob = (Blob) doc.getPropertyValue("file:content");
+            assertEquals(blob.getDigest(),
+                    doc.getPropertyValue(DocumentMetadataUpdater.EXTRACTED_DIGEST));
+
+            // The blob is not modified: nothing is done
+            doc.setPropertyValue("imd:pixel_xdimension", 0);
+            doc.setPropertyValue("dc:title", "new title");
+            doc = coreSession.saveDocument(doc);
+            assertEquals((long) 0, doc.getPropertyValue("imd:pixel_xdimension"));
+
+            // Same binary: skipped too
+            doc.setPropertyValue("file:content", new FileBlob(filePNG));
+            doc = coreSession.saveDocument(doc);
+            assertEquals((long) 0, doc.getPropertyValue("imd:pixel_xdimension"));
+
+            // New binary
+            doc.setPropertyValue("file:content", new FileBlob(fileGIF));
+            doc = coreSession.saveDocument(doc);
+            assertEquals((long) 328,
+                    doc.getPropertyValue("imd:pixel_xdimension"));
+
+            // The digest is compared only when the values were stored with
+            // the same tool and properties
+            DocumentMetadataUpdater updater = new DocumentMetadataUpdater(
+                    "file:content", null, WHICH_TOOL.IMAGEMAGICK);
+            assertTrue(updater.mayBeUpToDate(doc));
+            assertFalse(new DocumentMetadataUpdater("file:content", null,
+                    WHICH_TOOL.EXIFTOOL).mayBeUpToDate(doc));
+            assertFalse(updater.mayBeUpToDate(docGIF));
+        } finally {
+            Framework.getProperties().remove(ImageMetadataListener.ENABLED_PROP);
+        }
+    }
+
+    @Test
+    public void testTimeoutAndCircuitBreaker() throws Exception {
+
+        // window of 4 calls, opens at 50% of failures, for 200 ms.
+        CircuitBreaker breaker = new CircuitBreaker("test", 4, 2, 50, 200);
+        breaker.acquire();
+        breaker.recordSuccess();
+        breaker.acquire();
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.STATE.OPEN, breaker.getState());
+        try {
+            breaker.acquire();
+            fail("The breaker is open");
+        } catch (ToolUnavailableException e) {
+            assertEquals("test", e.getTool());
+        }
+
+        // One probe only, which closes the breaker
+        Thread.sleep(250);
+        breaker.acquire();
+        try {
+            breaker.acquire();
+            fail("Already probing");
+        } catch (ToolUnavailableException e) {
+            // Expected
+        }
+        breaker.recordSuccess();
+        assertEquals(CircuitBreaker.STATE.CLOSED, breaker.getState());
+        breaker.acquire();
+        breaker.recordSuccess();
+
+        // The process is killed when the timeout expires
+        Framework.getProperties().setProperty(
+                TimedCommand.TIMEOUT_PROP_PREFIX + "sleep", "1");
+        try {
+            IMOperation op = new IMOperation();
+            op.addRawArgs("30");
+            long start = System.currentTimeMillis();
+            try {
+                TimedCommand.run(new ImageCommand("sleep"), "sleep", op);
+                fail("sleep should have been killed");
+            } catch (ToolTimeoutException e) {
+                assertEquals("sleep", e.getTool());
+                assertEquals(1000, e.getTimeoutMs());
+            }
+            assertTrue(System.currentTimeMillis() - start < 10000);
+        } finally {
+            Framework.getProperties().remove(
+                    TimedCommand.TIMEOUT_PROP_PREFIX + "sleep");
+            CircuitBreaker.resetAll();
+        }
+    }
+
+    @Test
+    public void testBulkhead() throws Exception {
+
+        assertEquals("graphicsmagick",
+                ImageMetadataReader.getBulkhead(WHICH_TOOL.GRAPHICSMAGICK).getTool());
+        assertEquals("imagemagick",
+                ImageMetadataReader.getBulkhead(WHICH_TOOL.AUTO).getTool());
+
+        // One call at a time, waiting at most 200 ms.
+        final Bulkhead bulkhead = new Bulkhead("test", 1, 200);
+        bulkhead.acquire();
+        assertFalse(bulkhead.hasAvailablePermit());
+        assertEquals(1, bulkhead.getActiveCount());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> waiting = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    try {
+                        bulkhead.acquire();
+                        return true;
+                    } catch (ToolSaturatedException e) {
+                        return false;
+                    }
+                }
+            });
+            Thread.sleep(50);
+            assertEquals(1, bulkhead.getQueueLength());
+            assertFalse(waiting.get());
+            assertEquals(1, bulkhead.getRejectedCount());
+            assertTrue(bulkhead.getMaxWaitMs() >= 150);
+
+            // Released in time: the waiting call gets the permit
+            waiting = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    bulkhead.acquire();
+                    return true;
+                }
+            });
+            Thread.sleep(50);
+            bulkhead.release();
+            assertTrue(waiting.get());
+            assertEquals(2, bulkhead.getAcquiredCount());
+            bulkhead.release();
+            assertTrue(bulkhead.hasAvailablePermit());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+
+        MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+        Timer extract = registry.timer("nuxeo.imagemetadata.extract.imagemagick.png");
+        Timer wall = registry.timer("nuxeo.imagemetadata.tool.imagemagick.wall");
+        Counter launches = registry.counter("nuxeo.imagemetadata.tool.imagemagick.launches");
+        Counter bytes = registry.counter("nuxeo.imagemetadata.materialize.bytes");
+        long extractCount = extract.getCount();
+        long wallCount = wall.getCount();
+        long launchCount = launches.getCount();
+        long byteCount = bytes.getCount();
+
+        Framework.getProperties().setProperty(
+                ImageMetadataReader.STREAMING_ENABLED_PROP, "false");
+        try {
+            // Copied to a temp file, then read with identify
+            try (ImageMetadataReader imdr = new ImageMetadataReader(
+                    new ByteArrayBlob(Files.readAllBytes(filePNG.toPath())))) {
+                assertEquals(byteCount + filePNG.length(), bytes.getCount());
+                imdr.getAllMetadata(WHICH_TOOL.IMAGEMAGICK);
+            }
+        } finally {
+            Framework.getProperties().remove(
+                    ImageMetadataReader.STREAMING_ENABLED_PROP);
+        }
+
+        assertEquals(extractCount + 1, extract.getCount());
+        assertEquals(wallCount + 1, wall.getCount());
+        assertEquals(launchCount + 1, launches.getCount());
+        assertTrue(registry.getGauges().containsKey(
+                "nuxeo.imagemetadata.tool.imagemagick.bulkhead.queue"));
+        assertTrue(registry.getGauges().containsKey(
+                "nuxeo.imagemetadata.cache.hits"));
+    }
+
+    @Test
+    public void testBlobMaterializer() throws Exception {
+
+        File dir = Files.createTempDirectory("imdr-test").toFile();
+        byte[] bytes = Files.readAllBytes(filePNG.toPath());
+
+        // Not shared (no digest), deleted when released
+        BlobMaterializer materializer = new BlobMaterializer(dir,
+                bytes.length * 2, 60000);
+        BlobMaterializer.Copy copy1 = materializer.acquire(new ByteArrayBlob(
+                bytes));
+        BlobMaterializer.Copy copy2 = materializer.acquire(new ByteArrayBlob(
+                bytes));
+        assertNotSame(copy1, copy2);
+        assertEquals(dir, new File(copy1.getPath()).getParentFile());
+        assertEquals(bytes.length * 2, materializer.getUsedBytes());
+        try {
+            materializer.acquire(new ByteArrayBlob(bytes));
+            fail("The quota is exceeded");
+        } catch (IOException e) {
+            // Expected
+        }
+        materializer.release(copy1);
+        assertFalse(new File(copy1.getPath()).exists());
+        materializer.release(copy2);
+        assertEquals(0, materializer.getUsedBytes());
+
+        // Same digest: the copy is reused, and kept after it is released,
+        // until the quota needs its space
+        ByteArrayBlob blob = new ByteArrayBlob(bytes);
+        blob.setDigest("testBlobMaterializer");
+        copy1 = materializer.acquire(blob);
+        copy2 = materializer.acquire(blob);
+        assertSame(copy1, copy2);
+        materializer.release(copy1);
+        materializer.release(copy2);
+        assertTrue(new File(copy1.getPath()).exists());
+        assertSame(copy1, materializer.acquire(blob));
+        materializer.release(copy1);
+        copy2 = materializer.acquire(new ByteArrayBlob(bytes));
+        BlobMaterializer.Copy copy3 = materializer.acquire(new ByteArrayBlob(
+                bytes));
+        assertFalse(new File(copy1.getPath()).exists());
+        materializer.release(copy2);
+        materializer.release(copy3);
+        assertEquals(0, materializer.getCopyCount());
+
+        // The reader deletes its copy when closed
+        Framework.getProperties().setProperty(
+                ImageMetadataReader.STREAMING_ENABLED_PROP, "false");
+        try {
+            int count = BlobMaterializer.getInstance().getCopyCount();
+            try (ImageMetadataReader imdr = new ImageMetadataReader(
+                    new ByteArrayBlob(bytes))) {
+                assertEquals(count + 1,
+                        BlobMaterializer.getInstance().getCopyCount());
+                assertEquals("100",
+                        imdr.getMetadata(new String[] { KEYS.WIDTH }).get(
+                                KEYS.WIDTH));
+            }
+            assertEquals(count, BlobMaterializer.getInstance().getCopyCount());
+        } finally {
+            Framework.getProperties().remove(
+                    ImageMetadataReader.STREAMING_ENABLED_PROP);
+            FileUtils.deleteTree(dir);
+        }
+    }
+
+    @Test
+    public void testPrefixReads() throws Exception {
+
+        // Only the beginning of the file is read
+        byte[] bytes = Files.readAllBytes(fileJPEG.toPath());
+        ImageHeaderInfo fromFile = ImageHeaderParser.parse(fileJPEG);
+        try (PrefixBytesReader reader = new PrefixBytesReader(
+                new ByteArrayInputStream(bytes), bytes.length, 1024, 65536)) {
+            ImageHeaderInfo fromPrefix = ImageHeaderParser.parse(reader);
+            assertEquals(fromFile.toMetadata(), fromPrefix.toMetadata());
+            assertTrue(reader.getLoadedBytes() < bytes.length);
+        }
+
+        // The prefix grows when needed
+        File withXmpFile = FileUtils.getResourceFileFromContext(WITH_XMP);
+        bytes = Files.readAllBytes(withXmpFile.toPath());
+        try (PrefixBytesReader reader = new PrefixBytesReader(
+                new ByteArrayInputStream(bytes), bytes.length, 256, 65536)) {
+            XMPPacketExtractor.XMPPacket packet = XMPPacketExtractor.extract(reader);
+            assertEquals(
+                    XMPPacketExtractor.extract(withXmpFile).getPacketAsString(),
+                    packet.getPacketAsString());
+            assertTrue(reader.getLoadedBytes() > 256);
+            assertTrue(reader.getLoadedBytes() < bytes.length);
+        }
+
+        // And never goes after the limit
+        try (PrefixBytesReader reader = new PrefixBytesReader(
+                new ByteArrayInputStream(bytes), bytes.length, 256, 512)) {
+            XMPPacketExtractor.extract(reader);
+            fail("The XMP is not in the first 512 bytes");
+        } catch (PrefixBytesReader.PrefixLimitException e) {
+            // Expected
+        }
+
+        // A blob which is not a file is not copied to read its header or its
+        // XMP
+        Blob blob = new ByteArrayBlob(bytes, "image/jpeg");
+        int count = BlobMaterializer.getInstance().getCopyCount();
+        try (ImageMetadataReader imdr = new ImageMetadataReader(blob)) {
+            assertEquals("2033", imdr.getHeaderInfo().toMetadata().get(
+                    KEYS.WIDTH));
+            assertNotNull(imdr.getXMPPacket());
+            assertEquals(count, BlobMaterializer.getInstance().getCopyCount());
+        }
+
+        // Unless disabled
+        Framework.getProperties().setProperty(
+                ImageMetadataReader.PREFIX_MAX_BYTES_PROP, "0");
+        try (ImageMetadataReader imdr = new ImageMetadataReader(blob)) {
+            assertNull(imdr.getHeaderInfo());
+        } finally {
+            Framework.getProperties().remove(
+                    ImageMetadataReader.PREFIX_MAX_BYTES_PROP);
+        }
+    }
+
+    @Test
+    public void testXMPStreamParser() throws Exception {
+
+        File withXmpFile = FileUtils.getResourceFileFromContext(WITH_XMP);
+        XMPPacketExtractor.XMPPacket packet = XMPPacketExtractor.extract(withXmpFile);
+
+        XMPStreamParser parser = new XMPStreamParser(Arrays.asList(
+                "xmp:CreatorTool", "dc:subject", "dc:rights", "dc:title"));
+        HashMap<String, String> values = parser.parse(packet);
+        assertFalse(parser.isComplete());
+        assertEquals("Adobe Photoshop CS2 Macintosh",
+                values.get("xmp:CreatorTool"));
+        assertEquals(
+                "Coral, East Flower Garden Bank, FGBNMS, "
+                        + "West Flower Garden Bank, spawn",
+                values.get("dc:subject"));
+        assertEquals("NOAA/FGBNMS/Schmahl", values.get("dc:rights"));
+        assertNull(values.get("dc:title"));
+
+        // The parsing stops once all the properties are found: the truncated
+        // XML is not an error
+        String xmp = packet.getPacketAsString();
+        String truncated = xmp.substring(0,
+                xmp.indexOf("</xmp:CreatorTool>") + 18);
+        parser = new XMPStreamParser(Arrays.asList("xmp:CreatorTool",
+                "aux:Lens"));
+        values = parser.parse(new ByteArrayInputStream(
+                truncated.getBytes(StandardCharsets.UTF_8)));
+        assertTrue(parser.isComplete());
+        assertEquals("10.0-17.0 mm f/3.5-4.5", values.get("aux:Lens"));
+
+        // Attributes, and usual prefixes found by namespace
+        xmp = "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\">"
+                + "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">"
+                + "<rdf:Description rdf:about=\"\""
+                + " xmlns:ps=\"http://ns.adobe.com/photoshop/1.0/\""
+                + " xmlns:my=\"http://example.com/my/\""
+                + " ps:City=\"Paris\" my:Rating=\"4\"/>"
+                + "</rdf:RDF></x:xmpmeta>";
+        parser = new XMPStreamParser(Arrays.asList("photoshop:City",
+                "my:Rating"));
+        values = parser.parse(new ByteArrayInputStream(
+                xmp.getBytes(StandardCharsets.UTF_8)));
+        assertEquals("Paris", values.get("photoshop:City"));
+        assertEquals("4", values.get("my:Rating"));
+
+        // The operation
+        DocumentModel doc = createPictureDocument(withXmpFile);
+        OperationContext ctx = new OperationContext(coreSession);
+        ctx.setInput(doc);
+        OperationChain chain = new OperationChain("testChain");
+        Properties props = new Properties();
+        props.put("dc:source", "xmp:CreatorTool");
+        props.put("dc:rights", "dc:rights");
+        props.put("dc:description", "dc:title");
+        chain.add(SaveXMPMetadataInDocument.ID).set("properties", props);
+        doc = (DocumentModel) service.run(ctx, chain);
+
+        doc = coreSession.getDocument(doc.getRef());
+        assertEquals("Adobe Photoshop CS2 Macintosh",
+                doc.getPropertyValue("dc:source"));
+        assertEquals("NOAA/FGBNMS/Schmahl", doc.getPropertyValue("dc:rights"));
+        String description = (String) doc.getPropertyValue("dc:description");
+        assertTrue(description == null || description.isEmpty());
+    }
+
+    @Test
+    public void testWritePictureMetadata() throws Exception {
+
+        assertTrue(ImageMetadataReader.isExifToolAvailable(false));
+
+        HashMap<String, Serializable> tags = new HashMap<String, Serializable>();
+        tags.put("XMP-dc:Title", "The title");
+        tags.put("XMP-dc:Subject", new String[] { "one", "two" });
+        List<String> xmpProperties = Arrays.asList("dc:title", "dc:subject");
+
+        // Batch, with a file exiftool can't write
+        Blob notAnImage = new ByteArrayBlob(
+                "Not an image".getBytes(StandardCharsets.UTF_8), "text/plain");
+        notAnImage.setFilename("not-an-image.txt");
+        List<Blob> written = ImageMetadataWriter.write(
+                Arrays.asList(new FileBlob(fileJPEG), notAnImage,
+                        new FileBlob(filePNG)),
+                Arrays.asList(tags, tags, tags));
+        assertEquals(3, written.size());
+        assertNull(written.get(1));
+        for (int i : new int[] { 0, 2 }) {
+            try (ImageMetadataReader imdr = new ImageMetadataReader(
+                    written.get(i))) {
+                HashMap<String, String> values = imdr.getXMPProperties(xmpProperties);
+                assertEquals("The title", values.get("dc:title"));
+                assertEquals("one, two", values.get("dc:subject"));
+            }
+        }
+
+        // The blobs are not modified
+        try (ImageMetadataReader imdr = new ImageMetadataReader(
+                new FileBlob(fileJPEG))) {
+            assertTrue(imdr.getXMPProperties(xmpProperties).isEmpty());
+        }
+
+        // Streamed
+        Blob blob = new ByteArrayBlob(Files.readAllBytes(filePNG.toPath()),
+                "image/png");
+        blob = ImageMetadataWriter.write(blob, tags);
+        try (ImageMetadataReader imdr = new ImageMetadataReader(blob)) {
+            assertEquals("The title",
+                    imdr.getXMPProperties(xmpProperties).get("dc:title"));
+        }
+
+        // The operation
+        DocumentModel doc = createPictureDocument(fileJPEG);
+        doc.setPropertyValue("dc:title", "From the document");
+        doc.setPropertyValue("dc:subjects", new String[] { "a", "b" });
+        OperationContext ctx = new OperationContext(coreSession);
+        ctx.setInput(doc);
+        OperationChain chain = new OperationChain("testChain");
+        Properties props = new Properties();
+        props.put("dc:title", "XMP-dc:Title");
+        props.put("dc:subjects", "XMP-dc:Subject");
+        chain.add(WritePictureMetadata.ID).set("properties", props);
+        blob = (Blob) service.run(ctx, chain);
+        try (ImageMetadataReader imdr = new ImageMetadataReader(blob)) {
+            HashMap<String, String> values = imdr.getXMPProperties(xmpProperties);
+            assertEquals("From the document", values.get("dc:title"));
+            assertEquals("a, b", values.get("dc:subject"));
+        }
+    }
+
+    @Test
+    public void testScanDepth() throws Exception {
+
+        // Not only the default keys, so identify -verbose is used
+        String[] keys = new String[ImageMetadataConstants.DEFAULT_KEYS.length + 1];
+        System.arraycopy(ImageMetadataConstants.DEFAULT_KEYS, 0, keys, 0,
+                ImageMetadataConstants.DEFAULT_KEYS.length);
+        keys[keys.length - 1] = KEYS.FORMAT;
+        String[] exifToolKeys = { "ImageWidth", "ImageHeight", "FileType" };
+
+        // Single-frame files: same values whatever the depth
+        File[] files = { filePNG, fileGIF, fileTIF, fileJPEG };
+        for (File f : files) {
+            ImageMetadataReader imdr = new ImageMetadataReader(
+                    f.getAbsolutePath());
+            HashMap<String, String> full = imdr.getMetadata(keys,
+                    WHICH_TOOL.IMAGEMAGICK);
+            HashMap<String, String> fullExifTool = imdr.getMetadata(
+                    exifToolKeys, WHICH_TOOL.EXIFTOOL);
+            for (SCAN_DEPTH depth : new SCAN_DEPTH[] { SCAN_DEPTH.FAST,
+                    SCAN_DEPTH.FASTEST }) {
+                assertEquals(f.getName() + ", " + depth, full,
+                        imdr.getMetadata(keys, WHICH_TOOL.IMAGEMAGICK, depth));
+                assertEquals(f.getName() + ", " + depth, fullExifTool,
+                        imdr.getMetadata(exifToolKeys, WHICH_TOOL.EXIFTOOL,
+                                depth));
+                assertEquals(depth, imdr.getScanDepth());
+                // The parser returns the values of the last frame
+                assertNull(imdr.getHeaderInfo());
+            }
+            imdr.setScanDepth(SCAN_DEPTH.FULL);
+            assertNotNull(imdr.getHeaderInfo());
+        }
+
+        // Multi-page file: the values of the last page by default, of the
+        // first one with the [0] selector
+        File multiPage = FileUtils.getResourceFileFromContext(MULTIPAGE_TIF);
+        String[] sizeKeys = { KEYS.WIDTH, KEYS.HEIGHT };
+        for (String[] theKeys : new String[][] { sizeKeys, keys }) {
+            ImageMetadataReader imdr = new ImageMetadataReader(
+                    multiPage.getAbsolutePath());
+            HashMap<String, String> full = imdr.getMetadata(theKeys,
+                    WHICH_TOOL.IMAGEMAGICK);
+            assertEquals("20", full.get(KEYS.WIDTH));
+            assertEquals("10", full.get(KEYS.HEIGHT));
+            HashMap<String, String> fast = imdr.getMetadata(theKeys,
+                    WHICH_TOOL.IMAGEMAGICK, SCAN_DEPTH.FAST);
+            assertEquals("40", fast.get(KEYS.WIDTH));
+            assertEquals("30", fast.get(KEYS.HEIGHT));
+            assertFalse(full.equals(fast));
+        }
+
+        // Piped to identify, with the format in front of the frame selector
+        Blob blob = new ByteArrayBlob(Files.readAllBytes(fileGIF.toPath()),
+                "image/gif");
+        try (ImageMetadataReader imdr = new ImageMetadataReader(blob)) {
+            HashMap<String, String> full = imdr.getMetadata(keys,
+                    WHICH_TOOL.IMAGEMAGICK);
+            assertEquals(full, imdr.getMetadata(keys, WHICH_TOOL.IMAGEMAGICK,
+                    SCAN_DEPTH.FAST));
+        }
+
+        // The operation
+        DocumentModel[] docs = new DocumentModel[2];
+        String[] depths = { "Full", "Fast" };
+        for (int i = 0; i < depths.length; i++) {
+            OperationContext ctx = new OperationContext(coreSession);
+            ctx.setInput(createPictureDocument(fileTIF));
+            OperationChain chain = new OperationChain("testChain");
+            Properties props = new Properties();
+            props.put("dc:format", KEYS.FORMAT);
+            props.put("dc:description", KEYS.COLORSPACE);
+            chain.add(SavePictureMeadataInDocument.ID).set("properties", props).set(
+                    "scanDepth", depths[i]);
+            docs[i] = (DocumentModel) service.run(ctx, chain);
+        }
+        assertEquals(docs[0].getPropertyValue("dc:format"),
+                docs[1].getPropertyValue("dc:format"));
+        assertEquals(docs[0].getPropertyValue("dc:description"),
+                docs[1].getPropertyValue("dc:description"));
+        assertEquals(SCAN_DEPTH.FAST,
+                DocumentMetadataUpdater.scanDepthFromName("fast"));
+        assertEquals(SCAN_DEPTH.FULL,
+                DocumentMetadataUpdater.scanDepthFromName("whatever"));
+    }
+
+    @Test
+    public void testXMPPacketExtractorSizes() throws Exception {
+
+        // Extended XMP announcing a 4 GB packet
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[] { (byte) 0xFF, (byte) 0xD8 });
+        byte[] id = "http://ns.adobe.com/xmp/extension/\0".getBytes(StandardCharsets.US_ASCII);
+        byte[] guid = "0123456789ABCDEF0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+        int length = 2 + id.length + guid.length + 8 + 4;
+        out.write(new byte[] { (byte) 0xFF, (byte) 0xE1, (byte) (length >> 8),
+                (byte) length });
+        out.write(id);
+        out.write(guid);
+        out.write(new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                (byte) 0xF0, 0, 0, 0, 0 });
+        out.write("<x/>".getBytes(StandardCharsets.US_ASCII));
+        out.write(new byte[] { (byte) 0xFF, (byte) 0xD9 });
+
+        File f = File.createTempFile("IMDR-test-", ".jpg");
+        try {
+            Files.write(f.toPath(), out.toByteArray());
+            XMPPacketExtractor.XMPPacket packet = XMPPacketExtractor.extract(f);
+            assertNotNull(packet);
+            assertTrue(packet.isEmpty());
+            assertNull(packet.getExtendedPacket());
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testExifToolProcessPoolWait() throws Exception {
+
+        final PoolForTest pool = new PoolForTest(1);
+        ExifToolProcess process = pool.borrow(0);
+        try {
+            // The only process is busy
+            try {
+                pool.borrow(200);
+                fail("No process should be available");
+            } catch (ToolSaturatedException e) {
+                // Expected
+            }
+
+            // A thread waiting for a process is woken up by shutdown()
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            Future<ExifToolProcess> waiting = executor.submit(new Callable<ExifToolProcess>() {
+                @Override
+                public ExifToolProcess call() throws Exception {
+                    return pool.borrow(60000);
+                }
+            });
+            Thread.sleep(200);
+            pool.shutdown();
+            try {
+                waiting.get(5, TimeUnit.SECONDS);
+                fail("The pool is shut down");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+            executor.shutdown();
+        } finally {
+            pool.giveBack(process, false);
+        }
+        assertEquals(0, pool.getProcessCount());
+    }
+
+    @Test
+    public void testToolFailuresNotCached() throws Exception {
+
+        FileBlob blob = new FileBlob(fileJPEG);
+        blob.setDigest("testToolFailuresNotCached-" + System.currentTimeMillis());
+        String[] theKeys = { KEYS.WIDTH, KEYS.FORMAT };
+        HashMap<String, String> expected = new ImageMetadataReader(
+                fileJPEG.getAbsolutePath()).getMetadata(theKeys);
+
+        // A timeout says nothing about the file: the next call runs the tool
+        // again, and a new timeout is still reported as a timeout
+        AtomicInteger calls = new AtomicInteger(0);
+        for (int i = 0; i < 2; i++) {
+            try {
+                new FailingOnceReader(blob, new ToolTimeoutException(
+                        TimedCommand.IMAGEMAGICK, 1000), calls).getMetadata(theKeys);
+                fail("The tool should have timed out");
+            } catch (ToolTimeoutException e) {
+                assertEquals(1000, e.getTimeoutMs());
+            }
+        }
+        assertEquals(2, calls.get());
+
+        // Same for a busy tool
+        try {
+            new FailingOnceReader(blob, new ToolSaturatedException(
+                    TimedCommand.IMAGEMAGICK, 0), calls).getMetadata(theKeys);
+            fail("The tool should have been saturated");
+        } catch (ToolSaturatedException e) {
+            // Expected
+        }
+
+        assertEquals(expected,
+                new FailingOnceReader(blob, null, calls).getMetadata(theKeys));
+        assertEquals(4, calls.get());
+    }
+
+    @Test
+    public void testExifToolProcessErrors() throws Exception {
+
+        ExifToolProcess process = new ExifToolProcess(Framework.getProperty(
+                ExifToolProcessPool.EXIFTOOL_PATH_PROP, "exiftool"));
+        try {
+            // Much more than a stderr pipe can hold: exiftool must not block
+            // on it, which would end with a (false) timeout
+            ArrayList<String> args = new ArrayList<String>();
+            args.add("-s");
+            for (int i = 0; i < 5000; i++) {
+                args.add("/not/a/file-" + i + ".jpg");
+            }
+            try {
+                process.execute(args, new Pipe(null, new ByteArrayOutputStream()),
+                        30000);
+                fail("The files don't exist");
+            } catch (ExifToolProcess.ExifToolErrorException e) {
+                assertTrue(e.getMessage().contains("/not/a/file-4999.jpg"));
+            }
+            assertTrue(process.isHealthy());
+
+            // Only the errors of the request
+            try {
+                process.execute(Arrays.asList("/not/a/file.jpg"));
+                fail("The file does not exist");
+            } catch (ExifToolProcess.ExifToolErrorException e) {
+                assertFalse(e.getMessage().contains("file-"));
+            }
+            String output = new String(process.execute(Arrays.asList("-s",
+                    "-ImageWidth", fileJPEG.getAbsolutePath())),
+                    StandardCharsets.UTF_8);
+            assertTrue(output.contains("1597"));
+        } finally {
+            process.close();
+        }
+    }
+
+    protected static class PoolForTest extends ExifToolProcessPool {
+
+        public PoolForTest(int inPoolSize) {
+            super(inPoolSize, DEFAULT_MAX_REQUESTS, "exiftool");
+        }
+
+        @Override
+        public ExifToolProcess borrow(long inMaxWaitMs) throws IOException,
+                InterruptedException {
+            return super.borrow(inMaxWaitMs);
+        }
+
+        @Override
+        public void giveBack(ExifToolProcess inProcess, boolean inCanBeReused) {
+            super.giveBack(inProcess, inCanBeReused);
+        }
+    }
+
+    /*
+     * Once armed, the first read of each new stream waits until the barrier
+     * is reached by all the parties
+     */
+    protected static class GatedBlob extends ByteArrayBlob {
+
+        private static final long serialVersionUID = 1L;
+
+        protected final transient CyclicBarrier barrier;
+
+        protected volatile boolean armed = false;
+
+        public GatedBlob(byte[] inBytes, CyclicBarrier inBarrier) {
+            super(inBytes);
+            barrier = inBarrier;
+        }
+
+        public void arm() {
+            armed = true;
+        }
+
+        @Override
+        public InputStream getStream() throws IOException {
+
+            if (!armed) {
+                return super.getStream();
+            }
+            return new FilterInputStream(super.getStream()) {
+
+                protected boolean passed = false;
+
+                @Override
+                public int read() throws IOException {
+                    pass();
+                    return super.read();
+                }
+
+                @Override
+                public int read(byte[] inBuffer, int inOffset, int inLength)
+                        throws IOException {
+                    pass();
+                    return super.read(inBuffer, inOffset, inLength);
+                }
+
+                protected void pass() throws IOException {
+                    if (!passed) {
+                        passed = true;
+                        try {
+                            barrier.await(60, TimeUnit.SECONDS);
+                        } catch (InterruptedException | BrokenBarrierException
+                                | TimeoutException e) {
+                            throw new IOException(
+                                    "The other calls did not run", e);
+                        }
+                    }
+                }
+            };
+        }
+    }
+
+    /*
+     * Fails with inFailure instead of running ImageMagick (or
+     * GraphicsMagick). Counts the calls in inCalls
+     */
+    protected static class FailingOnceReader extends ImageMetadataReader {
+
+        protected ClientException failure;
+
+        protected final AtomicInteger calls;
+
+        public FailingOnceReader(Blob inBlob, ClientException inFailure,
+                AtomicInteger inCalls) throws IOException {
+            super(inBlob);
+            failure = inFailure;
+            calls = inCalls;
+        }
+
+        @Override
+        protected IdentifyInfo newInfo(boolean inUseGM) throws InfoException {
+            calls.incrementAndGet();
+            if (failure != null) {
+                ClientException e = failure;
+                failure = null;
+                throw e;
+            }
+            return super.newInfo(inUseGM);
+        }
+    }
 }